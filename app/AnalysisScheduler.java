@@ -0,0 +1,172 @@
+package app;
+import machine.*;
+import java.awt.event.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+/*
+ * Runs machine analysis (and model construction) on a worker thread, so
+ * large machines don't freeze the interface on every change.
+ *
+ * Requests are debounced: each one restarts a short timer, and only when it
+ * fires is the machine snapshotted (here, on the event thread) and handed to
+ * the worker, which analyzes it with a ShadowMachine. A newer snapshot
+ * interrupts any run still going, and results are only adopted if the
+ * machine hasn't changed since their snapshot.
+ *
+ * Until the first results for a new machine are in, analysis goes through
+ * the ModelCache, so reopening a machine doesn't analyze it all again.
+ */
+public class AnalysisScheduler implements ActionListener
+{
+    public static final int DEBOUNCE_MS = 150;
+
+    private StatelyApp app;
+    private ExecutorService worker;
+    private Timer timer;
+
+    private Machine machine;
+    private ShadowMachine shadow;
+    private Future<?> running;
+    private int generation = 0; // bumped by every change
+    private boolean stale = false;
+    private ModelCache cache = ModelCache.getDefault();
+    private boolean useCache = false; // no results for this machine yet
+
+    public AnalysisScheduler(StatelyApp app)
+    {
+        this.app = app;
+
+        worker = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "Stately analysis");
+                t.setDaemon(true);
+                return t;
+            });
+
+        timer = new Timer(DEBOUNCE_MS, this);
+        timer.setRepeats(false);
+    }
+
+    // True between a change and the adoption of its analysis.
+    public boolean isStale() { return stale; }
+
+    public void setMachine(Machine m)
+    {
+        cancel();
+        machine = m;
+        shadow = new ShadowMachine();
+        stale = false;
+        useCache = true;
+    }
+
+    // Call after the machine has changed (and has been compiled).
+    public void request()
+    {
+        generation++;
+        stale = true;
+        timer.restart();
+    }
+
+    // Analyze right away on this thread instead, if anything is pending.
+    // For things that need up-to-date results, like exporting.
+    public void finish()
+    {
+        if(!stale)
+        {
+            return;
+        }
+
+        cancel();
+        if(useCache)
+        {
+            cache.analyze(machine);
+        }
+        else
+        {
+            machine.analyze();
+        }
+        stale = false;
+        useCache = false;
+        app.reportAnalysis();
+    }
+
+    private void cancel()
+    {
+        timer.stop();
+        generation++;
+        if(running != null)
+        {
+            running.cancel(true);
+            running = null;
+        }
+    }
+
+    private void start()
+    {
+        if(running != null)
+        {
+            running.cancel(true);
+        }
+
+        MachineSnapshot snap = new MachineSnapshot(machine);
+        ShadowMachine sh = shadow;
+        ModelCache c = useCache ? cache : null;
+        int gen = generation;
+
+        running = worker.submit(() -> {
+                try
+                {
+                    MachineAnalysis a = sh.analyze(snap, c);
+                    if(a.getModel() != null)
+                    {
+                        a.getModel().getCompiled(); // lower it here too
+                    }
+                    SwingUtilities.invokeLater(() -> adopt(gen, a));
+                }
+                catch(CancellationException ex)
+                {
+                    // superseded
+                }
+                catch(Throwable t)
+                {
+                    t.printStackTrace();
+                    SwingUtilities.invokeLater(() -> fail(gen));
+                }
+            });
+    }
+
+    private void adopt(int gen, MachineAnalysis a)
+    {
+        if(gen != generation)
+        {
+            return;
+        }
+
+        running = null;
+        machine.adoptAnalysis(a);
+        stale = false;
+        useCache = false;
+        app.reportAnalysis();
+    }
+
+    // Something went wrong on the worker; redo it here, where any error
+    // reaches the user as it would have without the worker.
+    private void fail(int gen)
+    {
+        if(gen == generation)
+        {
+            running = null;
+            finish();
+        }
+    }
+
+    // ActionListener (the debounce timer)
+
+    public void actionPerformed(ActionEvent e)
+    {
+        if(e.getSource() == timer)
+        {
+            start();
+        }
+    }
+}
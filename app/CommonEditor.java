@@ -93,6 +93,12 @@ public abstract class CommonEditor<T> extends JPanel implements Editor<T>, State
     
     public void machineSwapped(MachineEvent e) {}
 
+    public void analysisUpdated()
+    {
+        reloadStatus();
+        revalidate();
+    }
+
     public void selectionModified() {}
 
     // Private
@@ -79,6 +79,8 @@ public abstract class EditorController<T> implements StatelyListener
     {
         load(null);
     }
+
+    public void analysisUpdated() {}
     
     public void selectionModified() {}
 }
@@ -158,6 +158,8 @@ public class Inputter extends JPanel implements InputSource, StatelyListener, Si
         rebuild();
     }
 
+    public void analysisUpdated() {}
+
     public void selectionModified()
     {
 
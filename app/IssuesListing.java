@@ -99,5 +99,10 @@ public class IssuesListing extends JPanel implements StatelyListener
         rebuild();
     }
 
+    public void analysisUpdated()
+    {
+        rebuild();
+    }
+
     public void selectionModified() {}
 }
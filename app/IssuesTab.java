@@ -8,6 +8,7 @@ public class IssuesTab extends JPanel implements StatelyListener, ItemListener
 {
     private StatelyApp app;
     private IssuesListing issues;
+    private JLabel title;
     private JCheckBox filterToSelected;
     private boolean filtering = false;
     
@@ -30,12 +31,19 @@ public class IssuesTab extends JPanel implements StatelyListener, ItemListener
         JPanel optionsPanel = new JPanel();
         optionsPanel.setOpaque(false);
         optionsPanel.setLayout(new GridLayout(1,2));
-        optionsPanel.add(Helper.makeTitle(app, "Issues", app.colors.title, null));
+        title = Helper.makeTitle(app, "Issues", app.colors.title, null);
+        optionsPanel.add(title);
         optionsPanel.add(filterToSelected);
         add(optionsPanel, BorderLayout.NORTH);
         add(issues, BorderLayout.CENTER);
     }
 
+    // Issues are from the last finished analysis, which may be out of date.
+    private void fixTitle()
+    {
+        title.setText(app.isAnalysisStale() ? "Issues (analyzing...)" : "Issues");
+    }
+
     private void makeFilter()
     {
         if(filtering)
@@ -73,8 +81,9 @@ public class IssuesTab extends JPanel implements StatelyListener, ItemListener
 
     // StatelyListener
     
-    public void machineModified(MachineEvent e) { makeFilter(); }
-    public void machineSwapped(MachineEvent e) { makeFilter(); }
+    public void machineModified(MachineEvent e) { fixTitle(); makeFilter(); }
+    public void machineSwapped(MachineEvent e) { fixTitle(); makeFilter(); }
+    public void analysisUpdated() { fixTitle(); makeFilter(); }
     public void selectionModified() { makeFilter(); }
 
     
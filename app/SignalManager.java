@@ -201,5 +201,10 @@ public class SignalManager extends JPanel implements ActionListener, ListSelecti
         rebuild();
     }
 
+    public void analysisUpdated()
+    {
+        rebuild();
+    }
+
     public void selectionModified() {}
 }
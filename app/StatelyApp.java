@@ -4,8 +4,10 @@ import machine.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 import javax.swing.filechooser.*;
 
@@ -15,9 +17,18 @@ public class StatelyApp extends JFrame implements ActionListener
     public static final String FL_EXTENSION = "fsm.fl";
     public static final String TRANSFORM_TMP = "/tmp/stately_tmp";
     public static final FileNameExtensionFilter FILE_EXTENSION_FILTER = new FileNameExtensionFilter("FSM files", EXTENSION);
+    public static final FileNameExtensionFilter BINARY_EXTENSION_FILTER = new FileNameExtensionFilter("Binary FSM files", BinaryFSM.EXTENSION);
+    public static final FileNameExtensionFilter ANY_FSM_EXTENSION_FILTER = new FileNameExtensionFilter("FSM files (text or binary)", EXTENSION, BinaryFSM.EXTENSION);
+    public static final String VCD_EXTENSION = "vcd";
+    public static final FileNameExtensionFilter VCD_EXTENSION_FILTER = new FileNameExtensionFilter("VCD files", VCD_EXTENSION);
+    public static final FileNameExtensionFilter STIMULUS_EXTENSION_FILTER = new FileNameExtensionFilter("Stimulus files", StimulusFile.EXTENSION, VCD_EXTENSION);
     public static final double STATE_CREATE_DX = 80;
     public static final double STATE_CREATE_DY = 0;
-    public static final int STATE_HISTORY_LIMIT = 100;
+    public static final int STATE_HISTORY_LIMIT = 1000000;
+    public static final long STATE_HISTORY_BYTES = 64L << 20;
+    public static final int STATE_PRINT_LIMIT = 100; // cycles, for printRecord()
+    public static final long VCD_FLUSH_INTERVAL_MS = 1000; // while streaming
+    public static final int REPLAY_BATCH = 4096; // cycles recorded at a time
     
     public StatelyConfig config;
     public StatelyColors colors = new StatelyColors();
@@ -25,12 +36,14 @@ public class StatelyApp extends JFrame implements ActionListener
     public StatelyMeasures measures = new StatelyMeasures();
 
     private Inputter inputter;
+    private WaveformPanel waveforms;
     private Viewer viewer;
     private MachineEditor machineEditor;
     private SelectionManager<State> selectedStates = new SelectionManager<>();
     private Set<Signal> erroneousSignals = new HashSet<>();
     private Set<Signal> warneousSignals = new HashSet<>();
     private Simulator simulator;
+    private AnalysisScheduler analysisScheduler;
     
     private Machine machine;
     private ArrayList<StatelyListener> listeners = new ArrayList<>();
@@ -39,9 +52,11 @@ public class StatelyApp extends JFrame implements ActionListener
     private JMenuItem menuHelp;
     private JMenuItem menuRename, menuEditExternal;
 
-    private JMenuItem menuSimForward, menuSimBackward, menuSimPrintRecord;
+    private JMenuItem menuSimForward, menuSimBackward, menuSimPrintRecord, menuSimExportVCD, menuSimReplay, menuSimPin;
+    private JCheckBoxMenuItem menuSimStreamVCD;
+    private Map<JMenuItem,SimulationEngine> menuSimEngines = new HashMap<>();
     
-    private JMenuItem menuDebugMakeSignals, menuDebugPrintMachine, menuDebugPrintModel, menuDebugPrintTL, menuDebugPrintFL;
+    private JMenuItem menuDebugMakeSignals, menuDebugPrintMachine, menuDebugPrintModel, menuDebugPrintTL, menuDebugPrintFL, menuDebugCheckGenerated;
 
     private File lastSaveFile;
     private File lastDir;
@@ -50,6 +65,8 @@ public class StatelyApp extends JFrame implements ActionListener
 
     private Historian historian;
     private JLabel historyStepIndicator;
+    private VCDWriter vcdStream; // null unless streaming
+    private long vcdFlushTime;
     
     public StatelyApp(File f)
     {
@@ -69,12 +86,19 @@ public class StatelyApp extends JFrame implements ActionListener
         c.setBackground(colors.background);
 
         simulator = new Simulator(null);
+        simulator.setBuilder(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "Stately simulator setup");
+                t.setDaemon(true);
+                return t;
+            }), SwingUtilities::invokeLater);
+        analysisScheduler = new AnalysisScheduler(this);
         newFSM("MyFSM");
 
         inputter = new Inputter(this);
         simulator.setInputSource(inputter);
         historyStepIndicator = Helper.makeLLL(this, "");
         fixHistoryStepIndicator();
+        simulator.addSimulationListener(this::fixStepIndicatorText); // for the engine
         viewer = new Viewer(this);
         machineEditor = new MachineEditor(this);
 
@@ -83,8 +107,12 @@ public class StatelyApp extends JFrame implements ActionListener
         leftPanel.setLayout(new BorderLayout());
         leftPanel.add(historyStepIndicator, BorderLayout.NORTH);
         leftPanel.add(viewer, BorderLayout.CENTER);
+        waveforms = new WaveformPanel(this);
+        JTabbedPane bottomTabs = new JTabbedPane();
+        bottomTabs.addTab("Signals", inputter);
+        bottomTabs.addTab("Waveforms", waveforms);
         JSplitPane leftDivide = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
-                                               leftPanel, inputter);
+                                               leftPanel, bottomTabs);
         leftDivide.setResizeWeight(1.0f);
         JSplitPane divide = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
                                            leftDivide, machineEditor);
@@ -125,6 +153,26 @@ public class StatelyApp extends JFrame implements ActionListener
         menuSimPrintRecord = new JMenuItem("Print recording");
         menuSimPrintRecord.addActionListener(this);
         menuSimPrintRecord.setAccelerator(KeyStroke.getKeyStroke("ctrl R"));
+        menuSimExportVCD = new JMenuItem("Export recording as VCD...");
+        menuSimExportVCD.addActionListener(this);
+        menuSimStreamVCD = new JCheckBoxMenuItem("Stream recording to VCD...");
+        menuSimStreamVCD.addActionListener(this);
+        menuSimReplay = new JMenuItem("Replay stimulus...");
+        menuSimReplay.addActionListener(this);
+        menuSimPin = new JMenuItem("Pin inputs...");
+        menuSimPin.addActionListener(this);
+
+        JMenu engineMenu = new JMenu("Engine");
+        ButtonGroup engineGroup = new ButtonGroup();
+        for(SimulationEngine engine: SimulationEngine.values())
+        {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(engine.toString());
+            item.setSelected(engine == simulator.getEngine());
+            item.addActionListener(this);
+            engineGroup.add(item);
+            engineMenu.add(item);
+            menuSimEngines.put(item, engine);
+        }
 
         menuDebugMakeSignals = new JMenuItem("Make some signals");
         menuDebugMakeSignals.addActionListener(this);
@@ -137,6 +185,8 @@ public class StatelyApp extends JFrame implements ActionListener
         menuDebugPrintTL.addActionListener(this);
         menuDebugPrintFL = new JMenuItem("Print FL to terminal");
         menuDebugPrintFL.addActionListener(this);
+        menuDebugCheckGenerated = new JMenuItem("Check generated simulator");
+        menuDebugCheckGenerated.addActionListener(this);
 
         menuHelp = new JMenuItem("Help");
         menuHelp.addActionListener(this);
@@ -160,6 +210,12 @@ public class StatelyApp extends JFrame implements ActionListener
         simMenu.add(menuSimForward);
         simMenu.add(menuSimBackward);
         simMenu.add(menuSimPrintRecord);
+        simMenu.add(menuSimExportVCD);
+        simMenu.add(menuSimStreamVCD);
+        simMenu.add(menuSimReplay);
+        simMenu.addSeparator();
+        simMenu.add(engineMenu);
+        simMenu.add(menuSimPin);
 
         JMenu debugMenu = new JMenu("Debug");
         debugMenu.add(menuDebugMakeSignals);
@@ -168,6 +224,7 @@ public class StatelyApp extends JFrame implements ActionListener
         debugMenu.add(menuDebugPrintModel);
         debugMenu.add(menuDebugPrintTL);
         debugMenu.add(menuDebugPrintFL);
+        debugMenu.add(menuDebugCheckGenerated);
 
         JMenu helpMenu = new JMenu("Help");
         helpMenu.add(menuHelp);
@@ -222,25 +279,38 @@ public class StatelyApp extends JFrame implements ActionListener
 
     private void fixHistoryStepIndicator()
     {
-        if(historyStepIndicator != null)
+        fixStepIndicatorText();
+
+        if(waveforms != null)
         {
-            if(historian != null)
-            {
-                int cycle = historian.getHistorySize();
-                if(cycle >= 0)
-                {
-                    historyStepIndicator.setText("Cycle: " + cycle);
-                }
-                else
-                {
-                    historyStepIndicator.setText("---");
-                }
-            }
-            else
-            {
-                historyStepIndicator.setText("---");
-            }
+            waveforms.historyUpdated();
+        }
+    }
+
+    private void fixStepIndicatorText()
+    {
+        if(historyStepIndicator == null)
+        {
+            return;
+        }
+
+        String text = "---";
+        if(historian != null && historian.getHistorySize() >= 0)
+        {
+            text = "Cycle: " + historian.getHistorySize();
+        }
+
+        // slow engines are set up in the background
+        String engine = simulator.getEngine().toString();
+        if(simulator.isBuilding())
+        {
+            text += "   (setting up " + engine + ", simulating with " + SimulationEngine.COMPILED + " meanwhile)";
         }
+        else if(simulator.getBuildProblem() != null)
+        {
+            text += "   (" + engine + " unavailable, simulating with " + SimulationEngine.COMPILED + ": " + simulator.getBuildProblem() + ")";
+        }
+        historyStepIndicator.setText(text);
     }
 
     private void newFSM(String name)
@@ -256,8 +326,27 @@ public class StatelyApp extends JFrame implements ActionListener
     public void addStatelyListener(StatelyListener l) { listeners.add(l); }
     
     public Machine getMachine() { return machine; }
+    public Historian getHistorian() { return historian; }
     public MachineEditor getMachineEditor() { return machineEditor; }
     public Simulator getSimulator() { return simulator; }
+    public boolean isAnalysisStale() { return analysisScheduler.isStale(); }
+
+    // Make sure the machine's status, issues and model are up to date,
+    // waiting for analysis if need be.
+    public void finishAnalysis()
+    {
+        analysisScheduler.finish();
+    }
+
+    // Called by the AnalysisScheduler when new analysis results are in.
+    public void reportAnalysis()
+    {
+        applyAnalysis();
+        for(StatelyListener l: listeners)
+        {
+            l.analysisUpdated();
+        }
+    }
 
     // Call this after non-cosmetic properties of the machine have changed.
     public void reportMachineModification(Object source)
@@ -271,7 +360,8 @@ public class StatelyApp extends JFrame implements ActionListener
             return;
         }
 
-        analyze();
+        machine.compile();
+        analysisScheduler.request();
 
         MachineEvent e = new MachineEvent(source);
         for(StatelyListener l: listeners)
@@ -287,9 +377,17 @@ public class StatelyApp extends JFrame implements ActionListener
     {
         machine = m;
         simulator.setMachine(machine);
-        analyze();
+        analysisScheduler.setMachine(machine);
+        applyAnalysis();
         simulator.setState(null);
+        if(historian != null)
+        {
+            historian.clear(); // deletes any trace spill file
+        }
+        stopVCDStream();
         historian = new Historian(machine);
+        historian.setLimit(STATE_HISTORY_LIMIT);
+        historian.setByteLimit(STATE_HISTORY_BYTES);
         fixHistoryStepIndicator();
         selectedStates.clear();
         MachineEvent e = new MachineEvent(this, m);
@@ -361,7 +459,7 @@ public class StatelyApp extends JFrame implements ActionListener
 
     public void printRecord()
     {
-        String s = historian.makeWaveform();
+        String s = historian.makeWaveform(STATE_PRINT_LIMIT);
         System.out.println(s);
     }
 
@@ -371,16 +469,217 @@ public class StatelyApp extends JFrame implements ActionListener
 
         if(cur != null)
         {
-            SimulationState now = new SimulationState(cur, simulator.getEnvironment());
-            historian.record(now);
+            recordState(new SimulationState(cur, simulator.getEnvironment()));
         }
 
         fixHistoryStepIndicator();
     }
 
+    private void recordState(SimulationState now)
+    {
+        historian.record(now);
+        if(vcdStream != null)
+        {
+            try
+            {
+                vcdStream.record(now);
+                long t = System.currentTimeMillis();
+                if(t - vcdFlushTime >= VCD_FLUSH_INTERVAL_MS)
+                {
+                    vcdStream.flush(); // keep the file viewable meanwhile
+                    vcdFlushTime = t;
+                }
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+                stopVCDStream();
+                JOptionPane.showMessageDialog(this, "VCD streaming stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    // Simulate through a stimulus file (or VCD) from the current state,
+    // recording every cycle. Replays can be long, so they run on a
+    // SwingWorker with their own Simulator, behind a modal progress dialog
+    // (so the machine can't change meanwhile). Recorded cycles are handed
+    // to this thread REPLAY_BATCH at a time, moving the simulator along.
+    public void replayStimulus(File f)
+    {
+        machineEditor.apply(); // apply any unsaved edits
+        finishAnalysis();
+        if(simulator.getState() == null)
+        {
+            JOptionPane.showMessageDialog(this, "Cannot replay without a simulation state.");
+            return;
+        }
+
+        Model model = machine.getStatus() == MachineStatus.HAPPY ? machine.getModel() : null;
+        State start = simulator.getState();
+        SimulationEngine engine = simulator.getEngine();
+        Map<Signal,Value> pins = simulator.getPinnedInputs();
+
+        JDialog dialog = new JDialog(this, "Replaying " + f.getName(), true);
+        JProgressBar bar = new JProgressBar(0, 100);
+        bar.setStringPainted(true);
+        bar.setString("Reading...");
+        JButton cancel = new JButton("Cancel");
+        JPanel panel = new JPanel(new BorderLayout(8, 8));
+        panel.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
+        panel.add(bar, BorderLayout.CENTER);
+        panel.add(cancel, BorderLayout.SOUTH);
+        dialog.setContentPane(panel);
+        dialog.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        dialog.pack();
+        dialog.setSize(Math.max(dialog.getWidth(), 360), dialog.getHeight());
+        dialog.setLocationRelativeTo(this);
+
+        SwingWorker<Long,Void> worker = new SwingWorker<Long,Void>()
+        {
+            protected Long doInBackground() throws Exception
+            {
+                File tmp = null;
+                StimulusFile stim = null;
+                try
+                {
+                    if(f.getName().endsWith("." + VCD_EXTENSION))
+                    {
+                        tmp = File.createTempFile("stately-stimulus", "." + StimulusFile.EXTENSION);
+                        try(Reader in = new FileReader(f))
+                        {
+                            stim = StimulusWriter.fromVCD(in, tmp);
+                        }
+                    }
+                    else
+                    {
+                        stim = new StimulusFile(f);
+                    }
+
+                    Simulator sim = new Simulator(machine);
+                    sim.setPinnedInputs(pins);
+                    sim.setModel(model);
+                    try
+                    {
+                        sim.setEngine(engine);
+                    }
+                    catch(IllegalStateException e)
+                    {
+                        // the default engine will do
+                    }
+                    sim.setState(start);
+
+                    StimulusReplay replay = new StimulusReplay(stim);
+                    long total = Math.max(stim.getCycleCount(), 1);
+                    java.util.List<SimulationState> batch = new ArrayList<>();
+                    long cycles = replay.replay(sim, s ->
+                    {
+                        batch.add(s);
+                        if(batch.size() >= REPLAY_BATCH)
+                        {
+                            handOver(batch, sim.getNextState());
+                            setProgress((int)Math.min(100 * replay.getCycle() / total, 100));
+                        }
+                    });
+                    handOver(batch, sim.getState());
+                    return cycles;
+                }
+                finally
+                {
+                    if(stim != null)
+                    {
+                        stim.close();
+                    }
+                    if(tmp != null && !tmp.delete())
+                    {
+                        tmp.deleteOnExit();
+                    }
+                }
+            }
+
+            // Record 'batch' and go to 'after' on the event thread, waiting
+            // for it (so a fast replay can't queue up the whole file).
+            private void handOver(java.util.List<SimulationState> batch, State after)
+            {
+                if(isCancelled())
+                {
+                    throw new CancellationException();
+                }
+                java.util.List<SimulationState> done = new ArrayList<>(batch);
+                batch.clear();
+                try
+                {
+                    SwingUtilities.invokeAndWait(() ->
+                    {
+                        for(SimulationState s: done)
+                        {
+                            recordState(s);
+                        }
+                        if(after != null)
+                        {
+                            simulator.setState(after);
+                        }
+                        fixHistoryStepIndicator();
+                    });
+                }
+                catch(InterruptedException e)
+                {
+                    throw new CancellationException();
+                }
+                catch(java.lang.reflect.InvocationTargetException e)
+                {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+
+            protected void done()
+            {
+                dialog.dispose();
+                try
+                {
+                    System.out.println("Replayed " + get() + " cycles from: " + f.getPath());
+                }
+                catch(CancellationException e)
+                {
+                    System.out.println("Replay cancelled: " + f.getPath());
+                }
+                catch(Throwable t)
+                {
+                    Throwable cause = t instanceof ExecutionException ? t.getCause() : t;
+                    cause.printStackTrace();
+                    JOptionPane.showMessageDialog(StatelyApp.this, cause.getMessage());
+                }
+                fixHistoryStepIndicator();
+            }
+        };
+        worker.addPropertyChangeListener(e ->
+        {
+            if("progress".equals(e.getPropertyName()))
+            {
+                bar.setValue((Integer)e.getNewValue());
+                bar.setString(null);
+            }
+        });
+        cancel.addActionListener(e -> worker.cancel(true));
+        worker.execute();
+        dialog.setVisible(true); // until done() disposes of it
+    }
+
+    // A VCD being streamed is only appended to, so the cycles stepped back
+    // over stay in it; a comment there marks where the history was rewound.
     public void stepBackward()
     {
         SimulationState prev = historian.unrecord();
+        if(prev != null && vcdStream != null)
+        {
+            try
+            {
+                vcdStream.comment("stepped back a cycle");
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
         
         if(prev != null && prev.getState() != null && machine != null && machine.getStates().contains(prev.getState()))
         {
@@ -571,9 +870,9 @@ public class StatelyApp extends JFrame implements ActionListener
 
     // Private
 
-    private void analyze()
+    // Pass on the machine's current analysis.
+    private void applyAnalysis()
     {
-        machine.analyze();
         erroneousSignals.clear();
         warneousSignals.clear();
         for(Issue i: machine.getIssues())
@@ -590,7 +889,7 @@ public class StatelyApp extends JFrame implements ActionListener
 
         if(machine.getStatus() == MachineStatus.HAPPY)
         {
-            simulator.setModel(new Model(machine));
+            simulator.setModel(machine.getModel());
         }
         else
         {
@@ -677,6 +976,53 @@ public class StatelyApp extends JFrame implements ActionListener
         {
             printRecord();
         }
+        else if(source == menuSimReplay)
+        {
+            JFileChooser jfc = new JFileChooser();
+            if(lastDir != null)
+            {
+                jfc.setCurrentDirectory(lastDir);
+            }
+            jfc.setFileFilter(STIMULUS_EXTENSION_FILTER);
+            if(jfc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION)
+            {
+                replayStimulus(jfc.getSelectedFile());
+            }
+        }
+        else if(source == menuSimPin)
+        {
+            pinInputs();
+        }
+        else if(source == menuSimExportVCD)
+        {
+            exportVCD();
+        }
+        else if(source == menuSimStreamVCD)
+        {
+            if(vcdStream == null)
+            {
+                startVCDStream();
+            }
+            else
+            {
+                stopVCDStream();
+            }
+        }
+        else if(menuSimEngines.containsKey(source))
+        {
+            try
+            {
+                simulator.setEngine(menuSimEngines.get(source));
+            }
+            catch(IllegalStateException ex)
+            {
+                JOptionPane.showMessageDialog(this, ex.getMessage());
+                for(Map.Entry<JMenuItem,SimulationEngine> entry: menuSimEngines.entrySet())
+                {
+                    entry.getKey().setSelected(entry.getValue() == simulator.getEngine());
+                }
+            }
+        }
         else if(source == menuHelp)
         {
             help();
@@ -743,6 +1089,7 @@ public class StatelyApp extends JFrame implements ActionListener
             if(machine != null)
             {
                 machineEditor.apply(); // apply any unsaved edits
+                finishAnalysis();
                 if(machine.getStatus() == MachineStatus.HAPPY)
                 {
                     System.out.println();
@@ -774,6 +1121,7 @@ public class StatelyApp extends JFrame implements ActionListener
             if(machine != null)
             {
                 machineEditor.apply(); // apply any unsaved edits
+                finishAnalysis();
                 if(machine.getStatus() == MachineStatus.HAPPY)
                 {
                     System.out.println();
@@ -786,6 +1134,31 @@ public class StatelyApp extends JFrame implements ActionListener
                 }
             }
         }
+        else if(source == menuDebugCheckGenerated)
+        {
+            if(machine != null)
+            {
+                machineEditor.apply(); // apply any unsaved edits
+                finishAnalysis();
+                if(machine.getStatus() == MachineStatus.HAPPY)
+                {
+                    CompiledModel cm = new CompiledModel(new SpecializedModel(machine.getModel(), new HashMap<>()));
+                    try
+                    {
+                        String problem = StepperGenerator.checkEquivalence(cm, StepperGenerator.generate(cm), 100000, 0);
+                        System.out.println("\n" + (problem == null ? "Generated simulator agrees with the model." : problem) + "\n");
+                    }
+                    catch(IllegalStateException ex)
+                    {
+                        System.out.println("\n" + ex.getMessage() + "\n");
+                    }
+                }
+                else
+                {
+                    System.out.println("\nMachine not happy (outstanding errors), cannot generate simulator.\n");
+                }
+            }
+        }
     }
 
     // Actions driven by above
@@ -802,6 +1175,48 @@ public class StatelyApp extends JFrame implements ActionListener
         JOptionPane.showMessageDialog(this, message);
     }
 
+    // Inputs the SPECIALIZED and GENERATED engines may assume constant
+    private void pinInputs()
+    {
+        if(machine == null || machine.getModel() == null)
+        {
+            JOptionPane.showMessageDialog(this, "Cannot pin inputs of unhappy machine.");
+            return;
+        }
+
+        String[] choices = { "not pinned", "0", "1" };
+        java.util.List<Signal> inputs = machine.getModel().getInputs();
+        Map<Signal,Value> pinned = simulator.getPinnedInputs();
+        java.util.List<JComboBox<String>> choosers = new ArrayList<>();
+        JPanel panel = new JPanel(new GridLayout(0, 2));
+        for(Signal s: inputs)
+        {
+            JComboBox<String> chooser = new JComboBox<>(choices);
+            Value v = pinned.get(s);
+            chooser.setSelectedIndex(v == null ? 0 : v.getBoolean() ? 2 : 1);
+            panel.add(new JLabel(s.getName()));
+            panel.add(chooser);
+            choosers.add(chooser);
+        }
+
+        Object[] message = { "Inputs pinned to 0 or 1 are assumed constant by the " + SimulationEngine.SPECIALIZED + " and " + SimulationEngine.GENERATED + " engines,\nwhich then ignore their values here (e.g. pin reset to 0).", new JScrollPane(panel) };
+        if(JOptionPane.showConfirmDialog(this, message, "Pin inputs", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION)
+        {
+            return;
+        }
+
+        pinned.clear();
+        for(int i = 0; i < inputs.size(); i++)
+        {
+            int choice = choosers.get(i).getSelectedIndex();
+            if(choice > 0)
+            {
+                pinned.put(inputs.get(i), new Value(choice == 2));
+            }
+        }
+        simulator.setPinnedInputs(pinned);
+    }
+
     // "New" in the menu
     private void mkNew()
     {
@@ -825,7 +1240,7 @@ public class StatelyApp extends JFrame implements ActionListener
         {
             jfc.setCurrentDirectory(lastDir);
         }
-        jfc.setFileFilter(FILE_EXTENSION_FILTER);
+        jfc.setFileFilter(ANY_FSM_EXTENSION_FILTER);
         int res = jfc.showOpenDialog(this);
         if(res == JFileChooser.APPROVE_OPTION)
         {
@@ -863,15 +1278,17 @@ public class StatelyApp extends JFrame implements ActionListener
         {
             jfc.setCurrentDirectory(lastDir);
         }
+        jfc.addChoosableFileFilter(BINARY_EXTENSION_FILTER);
         jfc.setFileFilter(FILE_EXTENSION_FILTER);
         int res = jfc.showSaveDialog(this);
         if(res == JFileChooser.APPROVE_OPTION)
         {
             File chosen = jfc.getSelectedFile();
             String name = chosen.getName();
-            if(!name.endsWith("." + EXTENSION))
+            String ext = jfc.getFileFilter() == BINARY_EXTENSION_FILTER ? BinaryFSM.EXTENSION : EXTENSION;
+            if(!name.endsWith("." + EXTENSION) && !name.endsWith("." + BinaryFSM.EXTENSION))
             {
-                name += "." + EXTENSION;
+                name += "." + ext;
             }
             File chosenExt = new File(chosen.getParent(), name);
             saveFSMToFile(chosenExt);
@@ -883,17 +1300,18 @@ public class StatelyApp extends JFrame implements ActionListener
     {
         try
         {
-            String s = readFile(f);
-            Tokenizer t = new Tokenizer(s);
-            java.util.List<Token> tokens = t.tokenize();
-            SExpParser p = new SExpParser(tokens);
-            SExp exp = p.parse();
-            if(!tokens.isEmpty())
+            MachineReader reader = new MachineReader(Charset.defaultCharset());
+            Machine m = reader.read(f);
+            if(reader.hasStrayTokens())
             {
                 System.out.println("Warning - stray tokens left in file...");
             }
-            Machine m = Machine.fromSExp(exp);
-            System.out.println("Read successfully from: " + f.getPath());
+            System.out.println("Read successfully from: " + f.getPath() + " (" + reader.getTimings() + ")");
+            int restored = ModelCache.getDefault().restoreCode(m);
+            if(restored > 0)
+            {
+                System.out.println("Restored " + restored + " compiled code(s) from " + ModelCache.getDefault().getDirectory());
+            }
             setMachine(m);
             return true;
         }
@@ -918,7 +1336,14 @@ public class StatelyApp extends JFrame implements ActionListener
                 throw new IllegalArgumentException("Bad file name");
             }
             File tmp = new File(f.getParent(), f.getName() + "~");
-            writeFileSafe(f, tmp, machine.toSExp().toString());
+            if(isBinaryFile(f))
+            {
+                writeFileSafe(f, tmp, BinaryFSM.toBytes(machine));
+            }
+            else
+            {
+                writeFileSafe(f, tmp, machine.toSExp().toString());
+            }
             System.out.println("Wrote successfully to: " + f.getPath());
             lastSaveFile = f;
             lastDir = f.getParentFile();
@@ -960,6 +1385,7 @@ public class StatelyApp extends JFrame implements ActionListener
             return;
         }
 
+        finishAnalysis();
         if(machine.getStatus() != MachineStatus.HAPPY)
         {
             JOptionPane.showMessageDialog(this, "Cannot export unhappy machine.");
@@ -968,9 +1394,10 @@ public class StatelyApp extends JFrame implements ActionListener
 
         String parent = lastSaveFile.getParent();
         String fsmFileName = lastSaveFile.getName();
-        if(fsmFileName.endsWith("." + EXTENSION))
+        String ext = isBinaryFile(lastSaveFile) ? BinaryFSM.EXTENSION : EXTENSION;
+        if(fsmFileName.endsWith("." + ext))
         {
-            String flFileName = fsmFileName.substring(0, fsmFileName.length() - EXTENSION.length()) + FL_EXTENSION;
+            String flFileName = fsmFileName.substring(0, fsmFileName.length() - ext.length()) + FL_EXTENSION;
 
             File f = new File(parent, flFileName);
             try
@@ -992,12 +1419,96 @@ public class StatelyApp extends JFrame implements ActionListener
         }
         else
         {
-            JOptionPane.showMessageDialog(this, "Save file doesn't end with ." + EXTENSION + ",\nrefusing to export just in case.");
+            JOptionPane.showMessageDialog(this, "Save file doesn't end with ." + EXTENSION + " or ." + BinaryFSM.EXTENSION + ",\nrefusing to export just in case.");
         }
 
         fixTitle();
     }
 
+    // Everything recorded since the history was last cleared.
+    private void exportVCD()
+    {
+        if(machine == null)
+        {
+            return;
+        }
+
+        File f = chooseVCDFile();
+        if(f != null)
+        {
+            try
+            {
+                VCDWriter.writeTrace(historian.getTrace(), machine.getName(), new FileWriter(f));
+                System.out.println("Exported recording to: " + f.getPath());
+            }
+            catch(Throwable t)
+            {
+                t.printStackTrace();
+                JOptionPane.showMessageDialog(this, t.getMessage());
+            }
+        }
+    }
+
+    // Write cycles to a VCD file as they are recorded, until stopped.
+    private void startVCDStream()
+    {
+        File f = machine == null ? null : chooseVCDFile();
+        if(f != null)
+        {
+            try
+            {
+                vcdStream = new VCDWriter(new FileWriter(f), machine);
+                vcdFlushTime = System.currentTimeMillis();
+                System.out.println("Streaming recording to: " + f.getPath());
+            }
+            catch(Throwable t)
+            {
+                t.printStackTrace();
+                JOptionPane.showMessageDialog(this, t.getMessage());
+            }
+        }
+        menuSimStreamVCD.setSelected(vcdStream != null);
+    }
+
+    private void stopVCDStream()
+    {
+        if(vcdStream != null)
+        {
+            try
+            {
+                vcdStream.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+            vcdStream = null;
+            menuSimStreamVCD.setSelected(false);
+        }
+    }
+
+    private File chooseVCDFile()
+    {
+        JFileChooser jfc = new JFileChooser();
+        if(lastDir != null)
+        {
+            jfc.setCurrentDirectory(lastDir);
+        }
+        jfc.setFileFilter(VCD_EXTENSION_FILTER);
+        int res = jfc.showSaveDialog(this);
+        if(res != JFileChooser.APPROVE_OPTION)
+        {
+            return null;
+        }
+
+        File chosen = jfc.getSelectedFile();
+        if(!chosen.getName().endsWith("." + VCD_EXTENSION))
+        {
+            chosen = new File(chosen.getParent(), chosen.getName() + "." + VCD_EXTENSION);
+        }
+        return chosen;
+    }
+
     private void rename()
     {
         if(machine == null)
@@ -1077,13 +1588,13 @@ public class StatelyApp extends JFrame implements ActionListener
         Transformatron t = new Transformatron(m);
         String contents = readFile(f);
         Tokenizer tz = new Tokenizer(contents);
-        java.util.List<Token> tokens = tz.tokenize();
-        SExpParser p =new SExpParser(tokens);
+        TokenCursor tokens = new TokenCursor(tz.tokenize());
+        SExpParser p = new SExpParser(tokens);
         while(!tokens.isEmpty())
         {
-            if(tokens.get(0).kind == TokenKind.COMMENT)
+            if(tokens.peek().kind == TokenKind.COMMENT)
             {
-                tokens.remove(0);
+                tokens.next();
             }
             else
             {
@@ -1120,10 +1631,29 @@ public class StatelyApp extends JFrame implements ActionListener
         writeFile(f, out);
     }
 
+    private static boolean isBinaryFile(File f)
+    {
+        return f.getName().endsWith("." + BinaryFSM.EXTENSION);
+    }
+
     // Writes to a second file, deletes the destination (if it exists), then renames.
     private static void writeFileSafe(File f, File tmp, String s) throws IOException
     {
         writeFile(tmp, s);
+        replaceFile(f, tmp);
+    }
+
+    private static void writeFileSafe(File f, File tmp, byte[] bytes) throws IOException
+    {
+        try(OutputStream out = new FileOutputStream(tmp))
+        {
+            out.write(bytes);
+        }
+        replaceFile(f, tmp);
+    }
+
+    private static void replaceFile(File f, File tmp)
+    {
         if(f.exists())
         {
             if(!f.delete())
@@ -1148,15 +1678,15 @@ public class StatelyApp extends JFrame implements ActionListener
     // Might add a \n
     private static String readFile(File f) throws IOException
     {
-        String text = "";
+        StringBuilder text = new StringBuilder();
         BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f)));
         String line = br.readLine();
         while(line != null)
         {
-            text += line + "\n";
+            text.append(line).append('\n');
             line = br.readLine();
         }
         br.close();
-        return text;
+        return text.toString();
     }
 }
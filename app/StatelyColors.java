@@ -7,6 +7,7 @@ public class StatelyColors
     public Color background = Color.GRAY;
     public Color viewer_background = Color.BLACK;
     public Color viewer_focus = new Color(127,127,255);
+    public Color viewer_stale_text = Color.LIGHT_GRAY;
     public Color machine_editor_background = Color.LIGHT_GRAY;
     public Color editor_background = Color.DARK_GRAY;
     public Color editor_foreground = Color.WHITE;
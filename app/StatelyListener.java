@@ -4,5 +4,6 @@ public interface StatelyListener
 {
     public void machineModified(MachineEvent e);
     public void machineSwapped(MachineEvent e);
+    public void analysisUpdated(); // new status, issues and model (see AnalysisScheduler)
     public void selectionModified();
 }
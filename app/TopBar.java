@@ -34,6 +34,10 @@ public class TopBar extends JPanel implements StatelyListener
         if(m != null)
         {
             info = "Machine status: " + m.getStatus();
+            if(app.isAnalysisStale())
+            {
+                info += " (analyzing...)";
+            }
 
             int warnings = 0;
             int errors = 0;
@@ -77,5 +81,10 @@ public class TopBar extends JPanel implements StatelyListener
         update();
     }
 
+    public void analysisUpdated()
+    {
+        update();
+    }
+
     public void selectionModified() {}
 }
@@ -8,6 +8,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
 import java.awt.event.*;
 import java.util.*;
 import javax.swing.*;
@@ -55,6 +56,9 @@ public class Viewer extends JPanel implements SimulationListener, StatelyListene
 
     public static final boolean SHOW_FOCUS = false;
     public static final int FOCUS_INSET = 0;
+
+    // Stale analysis indicator
+    public static final int STALE_TEXT_INSET = 6;
     
     private StatelyApp app;
     private Pt viewCenter = new Pt(0,0); // what world coordinates are in the center of view?
@@ -229,6 +233,12 @@ public class Viewer extends JPanel implements SimulationListener, StatelyListene
         repaint();
     }
 
+    public void analysisUpdated()
+    {
+        generateIssueInfo();
+        repaint();
+    }
+
     public void selectionModified()
     {
         repaint();
@@ -452,6 +462,7 @@ public class Viewer extends JPanel implements SimulationListener, StatelyListene
         Graphics2D g2d = (Graphics2D)g;
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
                              RenderingHints.VALUE_ANTIALIAS_ON);
+        AffineTransform screen = g2d.getTransform();
         g2d.translate(getWidth()/2, getHeight()/2);
         g2d.scale(scale, scale);
         g2d.translate(-viewCenter.getX(), -viewCenter.getY());
@@ -569,6 +580,15 @@ public class Viewer extends JPanel implements SimulationListener, StatelyListene
             g.setColor(app.colors.selection_box_outline);
             g.drawRect(sx, sy, sw, sh);
         }
+
+        // Issue markers and simulation may be out of date
+        if(app.isAnalysisStale())
+        {
+            g2d.setTransform(screen);
+            g.setColor(app.colors.viewer_stale_text);
+            g.setFont(app.fonts.label);
+            g.drawString("Analyzing...", STALE_TEXT_INSET, STALE_TEXT_INSET + g.getFontMetrics().getAscent());
+        }
     }
 
     public void drawState(Graphics g, State st, boolean isInitial)
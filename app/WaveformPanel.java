@@ -0,0 +1,265 @@
+package app;
+import machine.*;
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+
+// The recorded trace (see Historian.getTrace) as digital waveforms.
+// Only the visible cycles and signals are painted, walking each signal's
+// runs of equal values, so long traces scroll and zoom smoothly.
+public class WaveformPanel extends JPanel implements StatelyListener, AdjustmentListener, MouseWheelListener
+{
+    public static final int ROW_HEIGHT = 20;
+    public static final int WAVE_HEIGHT = 12;
+    public static final int NAME_WIDTH = 140;
+    public static final int NAME_INSET = 4;
+    public static final double MIN_CYCLE_WIDTH = 1e-4; // pixels per cycle
+    public static final double MAX_CYCLE_WIDTH = 64;
+    public static final double ZOOM_FACTOR = 1.25;
+
+    private StatelyApp app;
+    private Waves waves;
+    private JScrollBar cycleBar;
+    private JScrollBar signalBar;
+
+    private double cycleWidth = 8;
+    private boolean follow = true; // keep the last cycle in view
+    private boolean adjusting = false;
+
+    public WaveformPanel(StatelyApp app)
+    {
+        this.app = app;
+        app.addStatelyListener(this);
+
+        setBackground(app.colors.sim_signals_background);
+        setLayout(new BorderLayout());
+
+        waves = new Waves();
+        waves.addMouseWheelListener(this);
+        waves.addComponentListener(new ComponentAdapter() {
+                public void componentResized(ComponentEvent e)
+                {
+                    refresh();
+                }
+            });
+
+        cycleBar = new JScrollBar(JScrollBar.HORIZONTAL);
+        cycleBar.addAdjustmentListener(this);
+        signalBar = new JScrollBar(JScrollBar.VERTICAL);
+        signalBar.addAdjustmentListener(this);
+
+        add(waves, BorderLayout.CENTER);
+        add(cycleBar, BorderLayout.SOUTH);
+        add(signalBar, BorderLayout.EAST);
+    }
+
+    private TraceStore getTrace()
+    {
+        Historian h = app.getHistorian();
+        return h == null ? null : h.getTrace();
+    }
+
+    // Call when things have been recorded or unrecorded.
+    public void historyUpdated()
+    {
+        refresh();
+    }
+
+    private void refresh()
+    {
+        fit(cycleBar.getValue());
+    }
+
+    // Fit the scroll bars to the trace and the view, starting at 'first'
+    // unless following.
+    private void fit(int first)
+    {
+        TraceStore trace = getTrace();
+        int cycles = trace == null ? 0 : trace.size();
+        int signals = trace == null ? 0 : trace.getSignals().size();
+
+        int visibleCycles = Math.max(1, (int)Math.min(Integer.MAX_VALUE, getWaveWidth() / cycleWidth));
+        int visibleRows = Math.max(1, waves.getHeight() / ROW_HEIGHT);
+
+        adjusting = true;
+        if(follow)
+        {
+            first = cycles - visibleCycles;
+        }
+        first = Math.max(0, Math.min(first, cycles - visibleCycles));
+        cycleBar.setValues(first, Math.min(visibleCycles, Math.max(cycles, 1)), 0, Math.max(cycles, 1));
+        cycleBar.setBlockIncrement(Math.max(1, visibleCycles - 1));
+        cycleBar.setUnitIncrement(Math.max(1, visibleCycles / 16));
+
+        int row = Math.max(0, Math.min(signalBar.getValue(), signals - visibleRows));
+        signalBar.setValues(row, Math.min(visibleRows, Math.max(signals, 1)), 0, Math.max(signals, 1));
+        signalBar.setBlockIncrement(Math.max(1, visibleRows - 1));
+        adjusting = false;
+
+        waves.repaint();
+    }
+
+    private int getWaveWidth()
+    {
+        return Math.max(1, waves.getWidth() - NAME_WIDTH);
+    }
+
+    // Zoom in (steps < 0) or out, keeping the cycle under x in place.
+    private void zoom(int steps, int x)
+    {
+        double anchor = cycleBar.getValue() + Math.max(0, x - NAME_WIDTH) / cycleWidth;
+        cycleWidth *= Math.pow(ZOOM_FACTOR, -steps);
+        cycleWidth = Math.max(MIN_CYCLE_WIDTH, Math.min(MAX_CYCLE_WIDTH, cycleWidth));
+
+        follow = false;
+        fit((int)Math.max(0, anchor - Math.max(0, x - NAME_WIDTH) / cycleWidth));
+    }
+
+    private void paintWaves(Graphics2D g)
+    {
+        int w = waves.getWidth();
+        int h = waves.getHeight();
+        g.setColor(app.colors.sim_signals_background);
+        g.fillRect(0, 0, w, h);
+
+        TraceStore trace = getTrace();
+        if(trace == null || trace.size() == 0)
+        {
+            return;
+        }
+
+        java.util.List<Signal> signals = trace.getSignals();
+        int firstCycle = cycleBar.getValue();
+        int endCycle = (int)Math.min(trace.size(), firstCycle + (long)Math.ceil(getWaveWidth() / cycleWidth) + 1);
+        int firstRow = signalBar.getValue();
+
+        g.setFont(app.fonts.label);
+        FontMetrics fm = g.getFontMetrics();
+        for(int row = firstRow; row < signals.size() && (row - firstRow) * ROW_HEIGHT < h; row++)
+        {
+            Signal s = signals.get(row);
+            int top = (row - firstRow) * ROW_HEIGHT;
+            int y = top + (ROW_HEIGHT + fm.getAscent() - fm.getDescent()) / 2;
+
+            g.setColor(app.colors.label_text);
+            g.setClip(0, top, NAME_WIDTH - NAME_INSET, ROW_HEIGHT);
+            g.drawString(s.getName(), NAME_INSET, y);
+
+            g.setClip(NAME_WIDTH, top, w - NAME_WIDTH, ROW_HEIGHT);
+            paintSignal(g, trace, s, firstCycle, endCycle, top + (ROW_HEIGHT - WAVE_HEIGHT) / 2);
+        }
+        g.setClip(null);
+    }
+
+    private void paintSignal(Graphics2D g, TraceStore trace, Signal s, int firstCycle, int endCycle, int top)
+    {
+        int bottom = top + WAVE_HEIGHT;
+        Color on = s.getKind() == SignalKind.INPUT ? app.colors.sim_signal_on_input : app.colors.sim_signal_on_other;
+
+        int c = firstCycle;
+        while(c < endCycle)
+        {
+            byte v = trace.getValue(c, s);
+            int next = Math.min(trace.nextChange(s, c), endCycle);
+            int x0 = xOf(c, firstCycle);
+            int x1 = xOf(next, firstCycle);
+
+            if(x1 > x0)
+            {
+                if(v == TraceStore.UNKNOWN)
+                {
+                    g.setColor(app.colors.sim_signal_unknown);
+                    g.fillRect(x0, top, x1 - x0, WAVE_HEIGHT);
+                }
+                else
+                {
+                    g.setColor(on);
+                    g.drawLine(x0, v == TraceStore.HIGH ? top : bottom, x1, v == TraceStore.HIGH ? top : bottom);
+                }
+                if(c > firstCycle)
+                {
+                    g.setColor(on);
+                    g.drawLine(x0, top, x0, bottom);
+                }
+                c = next;
+            }
+            else
+            {
+                // several changes within this pixel
+                g.setColor(on);
+                g.drawLine(x0, top, x0, bottom);
+                c = Math.max(c + 1, cycleAt(x0 + 1, firstCycle));
+            }
+        }
+    }
+
+    private int xOf(int cycle, int firstCycle)
+    {
+        return NAME_WIDTH + (int)Math.floor((cycle - firstCycle) * cycleWidth);
+    }
+
+    // The first cycle at or right of x.
+    private int cycleAt(int x, int firstCycle)
+    {
+        return firstCycle + (int)Math.min(Integer.MAX_VALUE / 2, Math.ceil((x - NAME_WIDTH) / cycleWidth));
+    }
+
+    // The drawing area.
+    private class Waves extends JComponent
+    {
+        public void paintComponent(Graphics g)
+        {
+            paintWaves((Graphics2D)g.create());
+        }
+    }
+
+    // AdjustmentListener
+
+    public void adjustmentValueChanged(AdjustmentEvent e)
+    {
+        if(adjusting)
+        {
+            return;
+        }
+        if(e.getSource() == cycleBar)
+        {
+            follow = cycleBar.getValue() + cycleBar.getVisibleAmount() >= cycleBar.getMaximum();
+        }
+        waves.repaint();
+    }
+
+    // MouseWheelListener
+
+    public void mouseWheelMoved(MouseWheelEvent e)
+    {
+        if(e.isControlDown())
+        {
+            zoom(e.getWheelRotation(), e.getX());
+        }
+        else if(e.isShiftDown())
+        {
+            cycleBar.setValue(cycleBar.getValue() + e.getWheelRotation() * cycleBar.getUnitIncrement());
+        }
+        else
+        {
+            signalBar.setValue(signalBar.getValue() + e.getWheelRotation());
+        }
+    }
+
+    // StatelyListener
+
+    public void machineModified(MachineEvent e)
+    {
+        refresh();
+    }
+
+    public void machineSwapped(MachineEvent e)
+    {
+        follow = true;
+        refresh();
+    }
+
+    public void analysisUpdated() {}
+
+    public void selectionModified() {}
+}
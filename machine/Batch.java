@@ -0,0 +1,519 @@
+package machine;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Headless entry point: analyzes .fsm files and exports their FL, several
+ * files at a time, without the GUI (nothing here touches AWT).
+ *
+ *     java -cp Stately.jar machine.Batch [options] <file|directory|glob>...
+ *
+ * Directories are searched recursively for .fsm (and binary .fsmb)
+ * files. Each file's issues are printed, followed by a timing line.
+ * Analysis goes through the ModelCache unless -x is given. The exit
+ * status is 1 if any file couldn't be processed or has errors.
+ *
+ * With -o, a file found in a directory (or by a glob) keeps its path
+ * under that directory in the output directory, so same-named files from
+ * different subdirectories don't overwrite each other's output. Files
+ * that would still share an output file are rejected up front.
+ */
+public class Batch
+{
+    public static final String EXTENSION = "fsm";
+    public static final String FL_EXTENSION = "fsm.fl";
+
+    public static final String USAGE = String.join("\n",
+        "Usage: java -cp Stately.jar machine.Batch [options] <file|directory|glob>...",
+        "  -o <dir>       write output files to <dir>, under each file's path relative to",
+        "                 the directory or glob it was found by (default: next to each file)",
+        "  -n             don't export FL",
+        "  -c <fsm|fsmb>  also convert each file to text or binary (see -o for where)",
+        "  -s <stimulus>  also simulate each happy machine through a .stim or .vcd file",
+        "                 (may be repeated; each file is replayed in its own lane)",
+        "  -j <threads>   files to process at a time (default: number of processors)",
+        "  -x             don't use the model cache",
+        "  -q             don't print warnings");
+
+    private File outDir;
+    private boolean exportFL = true;
+    private String convertTo; // extension, or null
+    private List<File> stimuli = new ArrayList<>();
+    private List<File> stimulusFiles = new ArrayList<>(); // stimuli, converted if they're VCDs
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean quiet = false;
+    private ModelCache cache = ModelCache.getDefault(); // or null
+    private List<Path> files = new ArrayList<>();
+    private Map<Path,Path> relativePaths = new HashMap<>(); // to the directory each file was found in
+
+    public static void main(String[] args)
+    {
+        Batch b = new Batch();
+        try
+        {
+            b.parseArgs(args);
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        System.exit(b.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args)
+    {
+        for(int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            switch(arg)
+            {
+            case "-o":
+                outDir = new File(getOptionArg(args, ++i, arg));
+                break;
+            case "-n":
+                exportFL = false;
+                break;
+            case "-c":
+                convertTo = getOptionArg(args, ++i, arg);
+                if(!convertTo.equals(EXTENSION) && !convertTo.equals(BinaryFSM.EXTENSION))
+                {
+                    throw new IllegalArgumentException("Can only convert to " + EXTENSION + " or " + BinaryFSM.EXTENSION);
+                }
+                break;
+            case "-s":
+                stimuli.add(new File(getOptionArg(args, ++i, arg)));
+                break;
+            case "-j":
+                try
+                {
+                    threads = Integer.parseInt(getOptionArg(args, ++i, arg));
+                }
+                catch(NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Not a number of threads: " + args[i]);
+                }
+                if(threads < 1)
+                {
+                    throw new IllegalArgumentException("Need at least one thread");
+                }
+                break;
+            case "-q":
+                quiet = true;
+                break;
+            case "-x":
+                cache = null;
+                break;
+            default:
+                if(arg.startsWith("-"))
+                {
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+                addFiles(arg);
+            }
+        }
+
+        if(files.isEmpty())
+        {
+            throw new IllegalArgumentException("No ." + EXTENSION + " files given");
+        }
+
+        if(exportFL || convertTo != null)
+        {
+            Map<File,Path> outputs = new HashMap<>();
+            for(Path p: files)
+            {
+                Path other = outputs.put(getOutputFile(p, FL_EXTENSION).getAbsoluteFile(), p);
+                if(other != null)
+                {
+                    throw new IllegalArgumentException("Both " + other + " and " + p + " would be written to " + getOutputFile(p, FL_EXTENSION));
+                }
+            }
+        }
+    }
+
+    private static String getOptionArg(String[] args, int i, String option)
+    {
+        if(i >= args.length)
+        {
+            throw new IllegalArgumentException("Missing argument to " + option);
+        }
+        return args[i];
+    }
+
+    private void addFiles(String arg)
+    {
+        try
+        {
+            if(isGlob(arg))
+            {
+                addGlob(arg);
+            }
+            else
+            {
+                Path p = Paths.get(arg);
+                if(Files.isDirectory(p))
+                {
+                    addMatching(p, p.getFileSystem().getPathMatcher("glob:**.{" + EXTENSION + "," + BinaryFSM.EXTENSION + "}"));
+                }
+                else if(Files.exists(p))
+                {
+                    add(p, p.getFileName());
+                }
+                else
+                {
+                    throw new IllegalArgumentException("No such file: " + arg);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            throw new IllegalArgumentException("Cannot list " + arg + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean isGlob(String s)
+    {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+    }
+
+    // Search from the directories before the first wildcard.
+    private void addGlob(String glob) throws IOException
+    {
+        String prefix = glob;
+        while(isGlob(prefix))
+        {
+            int slash = prefix.lastIndexOf('/');
+            prefix = slash < 0 ? "" : prefix.substring(0, slash);
+        }
+        boolean relative = prefix.isEmpty(); // to the working directory
+        Path root = Paths.get(relative ? "." : prefix);
+        PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + glob);
+        int before = files.size();
+        if(Files.isDirectory(root))
+        {
+            addMatching(root, p -> matcher.matches(relative ? root.relativize(p) : p));
+        }
+        if(files.size() == before)
+        {
+            throw new IllegalArgumentException("No files match " + glob);
+        }
+    }
+
+    private void addMatching(Path root, PathMatcher matcher) throws IOException
+    {
+        List<Path> found = new ArrayList<>();
+        try(java.util.stream.Stream<Path> walk = Files.walk(root))
+        {
+            walk.filter(p -> Files.isRegularFile(p) && matcher.matches(p)).forEach(found::add);
+        }
+        Collections.sort(found);
+        for(Path p: found)
+        {
+            add(p, root.relativize(p));
+        }
+    }
+
+    // The same file given twice is only processed once.
+    private void add(Path p, Path relative)
+    {
+        if(!relativePaths.containsKey(p))
+        {
+            files.add(p);
+            relativePaths.put(p, relative);
+        }
+    }
+
+    // Process all files, printing their reports in order. False if any failed.
+    private boolean run()
+    {
+        // the files are what's done in parallel
+        if(threads > 1 && files.size() > 1)
+        {
+            Parallel.setEnabled(false);
+        }
+
+        if(outDir != null && (exportFL || convertTo != null))
+        {
+            for(Path p: files)
+            {
+                getOutputFile(p, FL_EXTENSION).getParentFile().mkdirs();
+            }
+        }
+
+        List<File> tmps = new ArrayList<>();
+        try
+        {
+            for(File stimulus: stimuli)
+            {
+                stimulusFiles.add(stimulus.getName().endsWith(".vcd") ? convertVCD(stimulus, tmps) : stimulus);
+            }
+            return runFiles();
+        }
+        catch(IOException e)
+        {
+            System.err.println(e.getMessage());
+            return false;
+        }
+        finally
+        {
+            for(File tmp: tmps)
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static File convertVCD(File vcd, List<File> tmps) throws IOException
+    {
+        try(Reader in = new FileReader(vcd))
+        {
+            File tmp = File.createTempFile("stately-stimulus", "." + StimulusFile.EXTENSION);
+            tmps.add(tmp);
+            StimulusWriter.fromVCD(in, tmp).close();
+            return tmp;
+        }
+        catch(IOException e)
+        {
+            throw new IOException("Cannot read " + vcd + ": " + e.getMessage(), e);
+        }
+    }
+
+    private boolean runFiles()
+    {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        List<Future<Result>> futures = new ArrayList<>();
+        for(Path p: files)
+        {
+            futures.add(pool.submit(() -> process(p)));
+        }
+        pool.shutdown();
+
+        boolean ok = true;
+        for(Future<Result> f: futures)
+        {
+            Result r;
+            try
+            {
+                r = f.get();
+            }
+            catch(InterruptedException | ExecutionException e)
+            {
+                throw new Error("Internal error: batch worker failed", e);
+            }
+            System.out.print(r.report);
+            ok &= r.ok;
+        }
+        System.out.println(files.size() + " file(s) in " + millis(System.nanoTime() - start) + " ms" + (ok ? "" : ", with failures"));
+        if(cache != null)
+        {
+            System.out.println("model cache: " + cache.getStats());
+        }
+        return ok;
+    }
+
+    private Result process(Path p)
+    {
+        Result r = new Result();
+        StringBuilder sb = new StringBuilder();
+        long t0 = System.nanoTime();
+        long tRead = 0, tConvert = 0, tAnalyze = 0, tFL = 0, tSim = 0;
+        boolean cached = false;
+        MachineReader reader = new MachineReader();
+
+        try
+        {
+            Machine m = reader.read(p);
+            tRead = System.nanoTime() - t0;
+
+            long t = System.nanoTime();
+            if(convertTo != null)
+            {
+                sb.append(p + ": " + convert(p, m) + "\n");
+                tConvert = System.nanoTime() - t;
+            }
+
+            t = System.nanoTime();
+            if(cache != null)
+            {
+                cached = cache.analyze(m);
+            }
+            else
+            {
+                m.analyze();
+            }
+            tAnalyze = System.nanoTime() - t;
+
+            for(Issue i: m.getIssues())
+            {
+                if(i.isError() || !quiet)
+                {
+                    sb.append(p + ": " + i + "\n");
+                }
+            }
+
+            CompileMemo memo = m.getCompileMemo();
+            if(!quiet && memo.getHits() + memo.getRebinds() > 0)
+            {
+                sb.append(p + ": compile memo: " + memo.getStats() + "\n");
+            }
+
+            r.ok = m.getStatus() == MachineStatus.HAPPY;
+            if(r.ok && exportFL)
+            {
+                t = System.nanoTime();
+                File fl = getOutputFile(p, FL_EXTENSION);
+                writeFile(fl, FLOut.generateFL(m));
+                tFL = System.nanoTime() - t;
+                sb.append(p + ": exported " + fl.getPath() + "\n");
+            }
+
+            if(r.ok && !stimuli.isEmpty())
+            {
+                t = System.nanoTime();
+                for(String line: simulate(m))
+                {
+                    sb.append(p + ": " + line + "\n");
+                }
+                tSim = System.nanoTime() - t;
+            }
+
+            sb.append(p + ": " + m.getStatus());
+        }
+        catch(Throwable e)
+        {
+            r.ok = false;
+            sb.append(p + ": FAILED: " + e + "\n");
+            sb.append(p + ": -");
+        }
+
+        sb.append(" (read " + millis(tRead) + " ms [" + reader.getTimings() + "]");
+        if(convertTo != null)
+        {
+            sb.append(", convert " + millis(tConvert) + " ms");
+        }
+        sb.append(", analyze " + millis(tAnalyze) + " ms" + (cached ? " (cached)" : ""));
+        if(exportFL)
+        {
+            sb.append(", FL " + millis(tFL) + " ms");
+        }
+        if(!stimuli.isEmpty())
+        {
+            sb.append(", simulate " + millis(tSim) + " ms");
+        }
+        sb.append(", total " + millis(System.nanoTime() - t0) + " ms)\n");
+
+        r.report = sb.toString();
+        return r;
+    }
+
+    // Named after the input, minus its .fsm or .fsmb extension, and with -o,
+    // at its path relative to where it was found.
+    private File getOutputFile(Path p, String extension)
+    {
+        Path relative = relativePaths.get(p);
+        String name = relative.getFileName().toString();
+        for(String ext: new String[] { EXTENSION, BinaryFSM.EXTENSION })
+        {
+            if(name.endsWith("." + ext))
+            {
+                name = name.substring(0, name.length() - ext.length() - 1);
+                break;
+            }
+        }
+        name += "." + extension;
+
+        File dir = p.toAbsolutePath().getParent().toFile();
+        if(outDir != null)
+        {
+            dir = relative.getParent() == null ? outDir : new File(outDir, relative.getParent().toString());
+        }
+        return new File(dir, name);
+    }
+
+    private String convert(Path p, Machine m) throws IOException
+    {
+        File out = getOutputFile(p, convertTo);
+        if(out.getAbsoluteFile().equals(p.toAbsolutePath().toFile()))
+        {
+            return "already ." + convertTo + ", not converted";
+        }
+
+        if(convertTo.equals(BinaryFSM.EXTENSION))
+        {
+            try(OutputStream os = new FileOutputStream(out))
+            {
+                BinaryFSM.write(m, os);
+            }
+        }
+        else
+        {
+            writeFile(out, m.toSExp().toString());
+        }
+        return "converted to " + out.getPath();
+    }
+
+    // Each machine reads the stimuli on its own, from its initial state,
+    // with one lane of a ParallelSimulator per stimulus.
+    private List<String> simulate(Machine m) throws IOException
+    {
+        List<StimulusFile> opened = new ArrayList<>();
+        try
+        {
+            List<StimulusReplay> replays = new ArrayList<>();
+            for(File f: stimulusFiles)
+            {
+                StimulusFile stim = new StimulusFile(f);
+                opened.add(stim);
+                replays.add(new StimulusReplay(stim));
+            }
+
+            int words = (replays.size() + ParallelSimulator.LANES_PER_WORD - 1) / ParallelSimulator.LANES_PER_WORD;
+            ParallelSimulator sim = new ParallelSimulator(m.getModel(), words);
+            List<State> ends = new StimulusLanes(replays).replay(sim);
+
+            List<String> lines = new ArrayList<>();
+            for(int i = 0; i < replays.size(); i++)
+            {
+                long cycles = replays.get(i).getFile().getCycleCount();
+                String name = stimuli.size() > 1 ? stimuli.get(i) + ": " : "";
+                lines.add(name + "simulated " + cycles + " cycles, ending in " + ends.get(i).getName());
+            }
+            return lines;
+        }
+        finally
+        {
+            for(StimulusFile stim: opened)
+            {
+                stim.close();
+            }
+        }
+    }
+
+    private static void writeFile(File f, String s) throws IOException
+    {
+        try(Writer out = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))
+        {
+            out.write(s);
+            out.write("\n");
+        }
+    }
+
+    private static long millis(long nanos)
+    {
+        return nanos / 1000000;
+    }
+
+    private static class Result
+    {
+        boolean ok;
+        String report;
+    }
+}
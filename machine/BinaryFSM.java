@@ -0,0 +1,322 @@
+package machine;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/*
+ * A compact binary alternative to the .fsm text format (which stays the
+ * interchange format). Names, kinds and descriptions are read from a
+ * shared string table and records of fixed size, so nothing is
+ * tokenized; code is kept apart from them and decoded as it is.
+ *
+ * Format (big-endian): the magic bytes "FSMB", a version int, then the
+ * machine's name (a string index), the initial state (a state index, -1
+ * for none), the numbers of strings, signals and states, and the offsets
+ * of the four sections below from the start of the file (as longs).
+ *
+ * - Strings: the end of each string within the string data (ints), then
+ *   the data, in UTF-8. Names, kinds and descriptions are string indices.
+ * - Signals: fixed-size records of name, kind, description, flags
+ *   (byte, 1 = internal), priority, and the offset (long) and length of
+ *   its code.
+ * - States: fixed-size records of name, description, flags (byte, 1 =
+ *   virtual), x, y, and the offset (long) and length of its code.
+ * - Code: UTF-8 code blobs; offsets are from the start of the section.
+ */
+public class BinaryFSM
+{
+    public static final String EXTENSION = "fsmb";
+    public static final int MAGIC = 0x46534d42; // "FSMB"
+    public static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 7 * 4 + 4 * 8;
+    static final int SIGNAL_RECORD_BYTES = 4 + 4 + 4 + 1 + 4 + 8 + 4;
+    static final int STATE_RECORD_BYTES = 4 + 4 + 1 + 4 + 4 + 8 + 4;
+
+    private static final int FLAG_INTERNAL = 1;
+    private static final int FLAG_VIRTUAL = 1;
+
+    public static boolean isBinary(byte[] bytes)
+    {
+        return bytes.length >= 4 && ByteBuffer.wrap(bytes).getInt(0) == MAGIC;
+    }
+
+    public static byte[] toBytes(Machine m)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try
+        {
+            write(m, out);
+        }
+        catch(IOException e)
+        {
+            throw new Error("Internal error: can't write to memory", e);
+        }
+        return out.toByteArray();
+    }
+
+    public static void write(Machine m, OutputStream out) throws IOException
+    {
+        Strings strings = new Strings();
+        ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+        List<Signal> signals = m.getSignals();
+        List<State> states = m.getStates();
+
+        ByteArrayOutputStream signalBytes = new ByteArrayOutputStream();
+        DataOutputStream sig = new DataOutputStream(signalBytes);
+        for(Signal s: signals)
+        {
+            sig.writeInt(strings.get(s.getName()));
+            sig.writeInt(strings.get(SignalKind.toAtom(s.getKind())));
+            sig.writeInt(strings.get(s.getDescription()));
+            sig.writeByte(s.getInternal() ? FLAG_INTERNAL : 0);
+            sig.writeInt(s.getPriority());
+            writeCode(sig, codeBytes, s.getCode().getSource());
+        }
+
+        ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+        DataOutputStream sta = new DataOutputStream(stateBytes);
+        int initial = -1;
+        for(int i = 0; i < states.size(); i++)
+        {
+            State st = states.get(i);
+            if(st == m.getInitialState())
+            {
+                initial = i;
+            }
+            sta.writeInt(strings.get(st.getName()));
+            sta.writeInt(strings.get(st.getDescription()));
+            sta.writeByte(st.isVirtual() ? FLAG_VIRTUAL : 0);
+            sta.writeInt((int)st.getX());
+            sta.writeInt((int)st.getY());
+            writeCode(sta, codeBytes, st.getCode().getSource());
+        }
+
+        int name = strings.get(m.getName());
+        byte[] stringBytes = strings.toBytes();
+
+        long stringsOffset = HEADER_BYTES;
+        long signalsOffset = stringsOffset + stringBytes.length;
+        long statesOffset = signalsOffset + signalBytes.size();
+        long codeOffset = statesOffset + stateBytes.size();
+
+        DataOutputStream d = new DataOutputStream(new BufferedOutputStream(out));
+        d.writeInt(MAGIC);
+        d.writeInt(VERSION);
+        d.writeInt(name);
+        d.writeInt(initial);
+        d.writeInt(strings.size());
+        d.writeInt(signals.size());
+        d.writeInt(states.size());
+        d.writeLong(stringsOffset);
+        d.writeLong(signalsOffset);
+        d.writeLong(statesOffset);
+        d.writeLong(codeOffset);
+        d.write(stringBytes);
+        signalBytes.writeTo(d);
+        stateBytes.writeTo(d);
+        codeBytes.writeTo(d);
+        d.flush();
+    }
+
+    private static void writeCode(DataOutputStream record, ByteArrayOutputStream code, String source) throws IOException
+    {
+        byte[] bytes = (source == null ? "" : source).getBytes(StandardCharsets.UTF_8);
+        record.writeLong(code.size());
+        record.writeInt(bytes.length);
+        code.write(bytes);
+    }
+
+    // The buffer must not change while any code is still unread.
+    public static Machine read(ByteBuffer buf) throws IOException
+    {
+        try
+        {
+            return unpack(buf.duplicate().order(ByteOrder.BIG_ENDIAN));
+        }
+        catch(IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e)
+        {
+            throw new IOException("Corrupt binary FSM file", e);
+        }
+    }
+
+    private static Machine unpack(ByteBuffer buf) throws IOException
+    {
+        if(buf.limit() < HEADER_BYTES || buf.getInt(0) != MAGIC)
+        {
+            throw new IOException("Not a binary FSM file");
+        }
+        int version = buf.getInt(4);
+        if(version != VERSION)
+        {
+            throw new IOException("Unsupported binary FSM file version " + version);
+        }
+
+        int nameIndex = buf.getInt(8);
+        int initial = buf.getInt(12);
+        int stringCount = count(buf.getInt(16));
+        int signalCount = count(buf.getInt(20));
+        int stateCount = count(buf.getInt(24));
+        int stringsOffset = offset(buf, buf.getLong(28));
+        int signalsOffset = offset(buf, buf.getLong(36));
+        int statesOffset = offset(buf, buf.getLong(44));
+        int codeOffset = offset(buf, buf.getLong(52));
+
+        fits(buf, stringsOffset, (stringCount + 1L) * 4);
+        fits(buf, signalsOffset, (long)signalCount * SIGNAL_RECORD_BYTES);
+        fits(buf, statesOffset, (long)stateCount * STATE_RECORD_BYTES);
+
+        String[] strings = readStrings(buf, stringsOffset, stringCount);
+        Machine m = new Machine(string(strings, nameIndex));
+
+        List<Signal> signals = new ArrayList<>(signalCount);
+        for(int i = 0; i < signalCount; i++)
+        {
+            int at = signalsOffset + i * SIGNAL_RECORD_BYTES;
+            SignalKind kind = SignalKind.fromAtom(string(strings, buf.getInt(at + 4)));
+            if(kind == null)
+            {
+                throw new IllegalArgumentException("Bad signal kind");
+            }
+            Signal s = new Signal(string(strings, buf.getInt(at)), kind, m);
+            s.setDescription(string(strings, buf.getInt(at + 8)));
+            s.setInternal((buf.get(at + 12) & FLAG_INTERNAL) != 0);
+            s.setPriority(buf.getInt(at + 13));
+            setCode(s.getCode(), buf, codeOffset, buf.getLong(at + 17), buf.getInt(at + 25));
+            signals.add(s);
+        }
+
+        List<State> states = new ArrayList<>(stateCount);
+        for(int i = 0; i < stateCount; i++)
+        {
+            int at = statesOffset + i * STATE_RECORD_BYTES;
+            State st = new State(string(strings, buf.getInt(at)), m);
+            st.setDescription(string(strings, buf.getInt(at + 4)));
+            st.setVirtual((buf.get(at + 8) & FLAG_VIRTUAL) != 0);
+            st.setPosition(buf.getInt(at + 9), buf.getInt(at + 13));
+            setCode(st.getCode(), buf, codeOffset, buf.getLong(at + 17), buf.getInt(at + 25));
+            states.add(st);
+        }
+
+        m.addSignals(signals);
+        m.addStates(states);
+        if(initial >= 0 && initial < stateCount)
+        {
+            m.setInitialState(states.get(initial));
+        }
+        return m;
+    }
+
+    private static String[] readStrings(ByteBuffer buf, int offset, int count)
+    {
+        String[] strings = new String[count];
+        int data = offset + (count + 1) * 4;
+        int start = buf.getInt(offset);
+        for(int i = 0; i < count; i++)
+        {
+            int end = buf.getInt(offset + (i + 1) * 4);
+            strings[i] = decode(buf, data + start, end - start);
+            start = end;
+        }
+        return strings;
+    }
+
+    private static String string(String[] strings, int index)
+    {
+        if(index < 0 || index >= strings.length)
+        {
+            throw new IllegalArgumentException("Bad string index " + index);
+        }
+        return strings[index];
+    }
+
+    private static void setCode(Code<?> code, ByteBuffer buf, int codeOffset, long offset, int length)
+    {
+        if(offset < 0 || length < 0 || codeOffset + offset + length > buf.limit())
+        {
+            throw new IllegalArgumentException("Bad code offset " + offset);
+        }
+        code.setSource(decode(buf, codeOffset + (int)offset, length));
+    }
+
+    // Without moving 'buf'.
+    private static String decode(ByteBuffer buf, int start, int length)
+    {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(start + length).position(start);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    private static int count(int n)
+    {
+        if(n < 0)
+        {
+            throw new IllegalArgumentException("Bad count " + n);
+        }
+        return n;
+    }
+
+    private static int offset(ByteBuffer buf, long offset)
+    {
+        if(offset < 0 || offset > buf.limit())
+        {
+            throw new IllegalArgumentException("Bad section offset " + offset);
+        }
+        return (int)offset;
+    }
+
+    private static void fits(ByteBuffer buf, int offset, long length)
+    {
+        if(offset + length > buf.limit())
+        {
+            throw new IllegalArgumentException("Section doesn't fit in the file");
+        }
+    }
+
+    // The string table being written, each string once.
+    private static class Strings
+    {
+        private Map<String,Integer> indices = new HashMap<>();
+        private ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private List<Integer> ends = new ArrayList<>();
+
+        int get(String s)
+        {
+            if(s == null)
+            {
+                s = "";
+            }
+            Integer i = indices.get(s);
+            if(i == null)
+            {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                data.write(bytes, 0, bytes.length);
+                i = ends.size();
+                ends.add(data.size());
+                indices.put(s, i);
+            }
+            return i;
+        }
+
+        int size()
+        {
+            return ends.size();
+        }
+
+        byte[] toBytes() throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(out);
+            d.writeInt(0);
+            for(int end: ends)
+            {
+                d.writeInt(end);
+            }
+            data.writeTo(d);
+            d.flush();
+            return out.toByteArray();
+        }
+    }
+}
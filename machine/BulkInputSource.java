@@ -0,0 +1,8 @@
+package machine;
+
+// Input for ParallelSimulator: whole words of input bits at once.
+public interface BulkInputSource
+{
+    // Bit i of the result is the input's value in lane i of the given word.
+    public long getInputWord(Signal input, int word);
+}
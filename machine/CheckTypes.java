@@ -12,50 +12,24 @@ public class CheckTypes
 {
     public static List<Issue> checkTypes(Machine m)
     {
-        List<Issue> issues = new ArrayList<Issue>();
-
-        for(State st: m.getStates())
-        {
-            if(st.getCode().isCompiled())
-            {
-                check(st.getRootStatement(), st, issues);
-            }
-        }
-        
-        return issues;
+        return Parallel.flatMap(m.getStates(), st -> checkState(st));
     }
 
-    private static void check(Statement stm, State st, List<Issue> issues)
+    private static List<Issue> checkState(State st)
     {
-        StatementKind k = stm.getKind();
+        List<Issue> issues = new ArrayList<Issue>();
 
-        if(k == StatementKind.GROUP)
+        if(st.getCode().isCompiled())
         {
-            for(Statement stm2: stm.getStatements())
+            for(Signal s: st.getRootStatement().getEmittedSignals())
             {
-                check(stm2, st, issues);
+                if(s.getKind() != SignalKind.STATEWISE)
+                {
+                    issues.add(Issue.cannotEmit(s, st));
+                }
             }
         }
-        else if(k == StatementKind.EMIT)
-        {
-            Signal s = stm.getSignal();
-            if(s.getKind() != SignalKind.STATEWISE)
-            {
-                issues.add(Issue.cannotEmit(s, st));
-            }
-        }
-        else if(k == StatementKind.COND)
-        {
-            check(stm.getTrueBranch(), st, issues);
-            check(stm.getFalseBranch(), st, issues);
-        }
-        else if(k == StatementKind.GOTO)
-        {
-            // nothing
-        }
-        else
-        {
-            throw Misc.impossible();
-        }
+        
+        return issues;
     }
 }
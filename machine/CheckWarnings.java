@@ -10,15 +10,17 @@ import java.util.*;
 public class CheckWarnings
 {
     public static List<Issue> checkWarnings(Machine m)
+    {
+        return Parallel.flatMap(m.getStates(), st -> checkState(st));
+    }
+
+    private static List<Issue> checkState(State st)
     {
         List<Issue> issues = new ArrayList<Issue>();
 
-        for(State st: m.getStates())
+        if(st.isVirtual() && !alwaysGotos(st.getRootStatement(), st))
         {
-            if(st.isVirtual() && !alwaysGotos(st.getRootStatement(), st))
-            {
-                issues.add(Issue.virtualNoGoto(st));
-            }
+            issues.add(Issue.virtualNoGoto(st));
         }
         
         return issues;
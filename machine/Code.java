@@ -1,4 +1,6 @@
 package machine;
+import java.util.*;
+
 public abstract class Code<T>
 {
     private String source = "";
@@ -6,6 +8,8 @@ public abstract class Code<T>
     private boolean compSuccess;
     private String error = "";
     private Machine machine;
+    private Set<Signal> referencedSignals = new HashSet<>();
+    private Set<State> referencedStates = new HashSet<>();
     
     public Code(Machine m)
     {
@@ -19,6 +23,12 @@ public abstract class Code<T>
         compiled = null;
         compSuccess = false;
         error = null;
+        referencedSignals.clear();
+        referencedStates.clear();
+        if(machine != null)
+        {
+            machine.updateReferences(this);
+        }
     }
 
     // If it's already compiled, return true.
@@ -35,8 +45,14 @@ public abstract class Code<T>
         
         try
         {
-            compiled = compileSource();
+            compiled = machine != null ? machine.getCompileMemo().compile(this) : compileSource();
             compSuccess = true;
+            referencedSignals.addAll(findReferencedSignals(compiled));
+            referencedStates.addAll(findReferencedStates(compiled));
+            if(machine != null)
+            {
+                machine.updateReferences(this);
+            }
         }
         catch(CodeError t)
         {
@@ -46,12 +62,32 @@ public abstract class Code<T>
         return compSuccess;
     }
 
+    // Take a compilation of this source made elsewhere (see ModelCache),
+    // instead of compiling it again.
+    void adoptCompiled(T c)
+    {
+        reset();
+        compiled = c;
+        compSuccess = true;
+        referencedSignals.addAll(findReferencedSignals(compiled));
+        referencedStates.addAll(findReferencedStates(compiled));
+        if(machine != null)
+        {
+            machine.updateReferences(this);
+        }
+    }
+
     public T getCompiled() { return compiled; }
     public String getError() { return error; }
     public Machine getMachine() { return machine; }
-    public String getSource() { return source; }
     public boolean isCompiled() { return compSuccess; }
+
+    // As of the last successful compilation, empty if not compiled.
+    public Set<Signal> getReferencedSignals() { return new HashSet<>(referencedSignals); }
+    public Set<State> getReferencedStates() { return new HashSet<>(referencedStates); }
     
+    public String getSource() { return source; }
+
     public void setSource(String s)
     {
         reset();
@@ -60,4 +96,7 @@ public abstract class Code<T>
 
     // Subclass implements this. Throw error on fail.
     protected abstract T compileSource();
+    protected abstract Set<Signal> findReferencedSignals(T compiled);
+    protected abstract Set<State> findReferencedStates(T compiled);
+    protected abstract T translate(T compiled, Map<Signal,Signal> signalMap, Map<State,State> stateMap);
 }
@@ -0,0 +1,190 @@
+package machine;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Machine-wide memo of compiled code by source text, so that states and
+ * signals with identical code (common in generated machines, see
+ * Transformatron) are bracketified, tokenized and parsed once.
+ *
+ * Each entry remembers which signal and state every name resolved to.
+ * If they all still resolve the same way, the compiled tree is shared:
+ * nothing changes a tree once it's compiled, except for the caches it
+ * fills in as it's asked (see Statement.getGOTOs), which are safe to
+ * share between threads. If some now resolve to other signals or states,
+ * it's translated to those instead of being parsed again. If some don't
+ * resolve at all, the code is compiled as usual, for its errors.
+ *
+ * Only successful compilations are kept. Safe to use from the threads of
+ * Machine.compileAll.
+ */
+public class CompileMemo
+{
+    private Machine machine;
+    private Map<String,Entry> statements = new ConcurrentHashMap<>();
+    private Map<String,Entry> expressions = new ConcurrentHashMap<>();
+
+    private long hits = 0, rebinds = 0, misses = 0;
+    private long hitNanos = 0, missNanos = 0; // hits include rebinds
+
+    public CompileMemo(Machine m)
+    {
+        machine = m;
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getRebinds() { return rebinds; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getCompileNanos() { return hitNanos + missNanos; }
+
+    // Roughly: what the hits would have taken at the misses' average.
+    public synchronized long getSavedNanos()
+    {
+        return misses == 0 ? 0 : Math.max(0, (hits + rebinds) * missNanos / misses - hitNanos);
+    }
+
+    // Of all compilations, those that didn't need parsing.
+    public synchronized double getHitRate()
+    {
+        long total = hits + rebinds + misses;
+        return total == 0 ? 0 : (double)(hits + rebinds) / total;
+    }
+
+    public synchronized String getStats()
+    {
+        return hits + " hit(s), " + rebinds + " rebound, " + misses + " miss(es) (" + Math.round(100 * getHitRate()) +
+            "%), compiled in " + getCompileNanos() / 1000000 + " ms, saved ~" + getSavedNanos() / 1000000 + " ms";
+    }
+
+    public int size()
+    {
+        return statements.size() + expressions.size();
+    }
+
+    public void clear()
+    {
+        statements.clear();
+        expressions.clear();
+    }
+
+    // Sources no longer in the machine (e.g. after lots of editing) are
+    // only dropped, all at once, when there are many more entries than code.
+    void trim(int codes)
+    {
+        if(size() > 2 * codes + 64)
+        {
+            clear();
+        }
+    }
+
+    // Instead of code.compileSource(), which it calls on a miss.
+    @SuppressWarnings("unchecked")
+    <T> T compile(Code<T> code)
+    {
+        long t0 = System.nanoTime();
+        String source = code.getSource();
+        Map<String,Entry> entries = code instanceof StatementCode ? statements : expressions;
+
+        Entry e = entries.get(source);
+        if(e != null)
+        {
+            Map<Signal,Signal> signalMap = new HashMap<>();
+            Map<State,State> stateMap = new HashMap<>();
+            if(e.rebind(signalMap, stateMap))
+            {
+                T compiled = (T)e.compiled;
+                boolean rebound = !signalMap.isEmpty() || !stateMap.isEmpty();
+                if(rebound)
+                {
+                    compiled = code.translate(compiled, signalMap, stateMap);
+                    entries.put(source, new Entry(compiled, code));
+                }
+                count(rebound ? 0 : 1, rebound ? 1 : 0, 0, System.nanoTime() - t0);
+                return compiled;
+            }
+        }
+
+        T compiled = code.compileSource(); // throws on errors, which aren't kept
+        entries.put(source, new Entry(compiled, code));
+        count(0, 0, 1, System.nanoTime() - t0);
+        return compiled;
+    }
+
+    private synchronized void count(int hit, int rebound, int miss, long nanos)
+    {
+        hits += hit;
+        rebinds += rebound;
+        misses += miss;
+        if(miss > 0)
+        {
+            missNanos += nanos;
+        }
+        else
+        {
+            hitNanos += nanos;
+        }
+    }
+
+    private class Entry
+    {
+        final Object compiled;
+
+        // What the names resolved to when it was compiled
+        final String[] signalNames;
+        final Signal[] signals;
+        final String[] stateNames;
+        final State[] states;
+
+        <T> Entry(T compiled, Code<T> code)
+        {
+            this.compiled = compiled;
+
+            Set<Signal> ss = code.findReferencedSignals(compiled);
+            signals = ss.toArray(new Signal[0]);
+            signalNames = new String[signals.length];
+            for(int i = 0; i < signals.length; i++)
+            {
+                signalNames[i] = signals[i].getName();
+            }
+
+            Set<State> sts = code.findReferencedStates(compiled);
+            states = sts.toArray(new State[0]);
+            stateNames = new String[states.length];
+            for(int i = 0; i < states.length; i++)
+            {
+                stateNames[i] = states[i].getName();
+            }
+        }
+
+        // Fills the maps with what now resolves differently. False if
+        // anything doesn't resolve at all.
+        boolean rebind(Map<Signal,Signal> signalMap, Map<State,State> stateMap)
+        {
+            for(int i = 0; i < signals.length; i++)
+            {
+                Signal s = machine.findSignal(signalNames[i]);
+                if(s == null)
+                {
+                    return false;
+                }
+                if(s != signals[i])
+                {
+                    signalMap.put(signals[i], s);
+                }
+            }
+            for(int i = 0; i < states.length; i++)
+            {
+                State st = machine.findState(stateNames[i]);
+                if(st == null)
+                {
+                    return false;
+                }
+                if(st != states[i])
+                {
+                    stateMap.put(states[i], st);
+                }
+            }
+            return true;
+        }
+    }
+}
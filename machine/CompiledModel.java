@@ -0,0 +1,788 @@
+package machine;
+import java.util.*;
+
+/*
+ * Flat, index-based form of a Model, for simulation.
+ *
+ * Signals get dense slot indices (inputs first, then generated signals in
+ * computation order) and non-virtual states get dense state indices.
+ * Expressions are lowered into parallel node arrays, so evaluating a cycle
+ * reads and writes a boolean[] of slot values and allocates nothing.
+ *
+ * Compiled from a SpecializedModel, each state gets its own residual
+ * signal computations and transitions, and pinned inputs are forced to
+ * their values, except in the bit-parallel stepLanes() which computes
+ * signals for all states at once.
+ *
+ * Subexpressions used in more than one place (see SharedExpressions) are
+ * wires, evaluated at most once per cycle: each has a value slot and a
+ * "done" slot after the signals' slots, which step() and friends clear.
+ */
+public class CompiledModel implements ModelStepper
+{
+    // Node kinds
+    private static final int CONSTANT = 0; // a: 0 or 1
+    private static final int SIGNAL = 1; // a: slot
+    private static final int NOT = 2; // a: operand node
+    private static final int AND = 3; // a: first operand in 'operands', b: operand count
+    private static final int OR = 4;
+    private static final int NAND = 5;
+    private static final int NOR = 6;
+    private static final int XOR = 7;
+    private static final int STATE_IS = 8; // a: index into 'stateSets'
+    private static final int WIRE = 9; // a: wire index
+
+    // Three-valued logic, for partial evaluation (see DecisionDiagrams)
+    public static final byte FALSE = 0;
+    public static final byte TRUE = 1;
+    public static final byte UNKNOWN = 2;
+
+    private Model model;
+    private SpecializedModel specialized; // null if not specialized
+
+    private List<Signal> signals = new ArrayList<>(); // by slot
+    private Map<Signal,Integer> slots = new HashMap<>();
+    private List<State> states = new ArrayList<>(); // by state index
+    private Map<State,Integer> stateIndices = new HashMap<>();
+
+    // Nodes
+    private int[] kinds;
+    private int[] as;
+    private int[] bs;
+    private int[] operands;
+    private boolean[][] stateSets;
+    private int[][] stateMembers; // same sets, as lists of state indices
+    private int[] wireRoots; // by wire index
+    private int wireSlots; // first wire value slot
+    private int doneSlots; // first wire "done" slot
+
+    private int[] inputSlots;
+    private int[] computedSlots; // computation order
+    private int[] computedRoots; // for any state
+    private int[][] stateComputedRoots; // by state index, specialized
+    private int[] computedIndices; // by slot, into computedSlots, -1 for inputs
+    private int[] pinnedSlots;
+    private boolean[] pinnedValues;
+    private int[][] transitionRoots; // by state index
+    private int[][] transitionDestinations; // by state index, state indices
+    private ModelTransition[][] transitions; // by state index
+    private int resetRoot;
+    private int initialState;
+
+    public CompiledModel(Model m)
+    {
+        model = m;
+        compile();
+    }
+
+    public CompiledModel(SpecializedModel sm)
+    {
+        model = sm.getModel();
+        specialized = sm;
+        compile();
+    }
+
+    public Model getModel() { return model; }
+    public SpecializedModel getSpecializedModel() { return specialized; }
+    public int[] getComputedSlots() { return computedSlots.clone(); }
+    public int getInitialStateIndex() { return initialState; }
+    public int getInputCount() { return inputSlots.length; }
+    public int[] getInputSlots() { return inputSlots.clone(); }
+    public Signal getSignal(int slot) { return signals.get(slot); }
+    public int getSlotCount() { return signals.size() + 2 * wireRoots.length; }
+    public int getWireCount() { return wireRoots.length; }
+    public State getState(int index) { return states.get(index); }
+    public int getStateCount() { return states.size(); }
+
+    // -1 if the signal isn't part of the model
+    public int getSlot(Signal s)
+    {
+        Integer slot = slots.get(s);
+        return slot == null ? -1 : slot;
+    }
+
+    // -1 if the state isn't part of the model (e.g. virtual)
+    public int getStateIndex(State st)
+    {
+        Integer index = stateIndices.get(st);
+        return index == null ? -1 : index;
+    }
+
+    public int getDestination(int state, int transition)
+    {
+        return transitionDestinations[state][transition];
+    }
+
+    public ModelTransition getTransition(int state, int transition)
+    {
+        return transitions[state][transition];
+    }
+
+    public int getTransitionCount(int state)
+    {
+        return transitions[state].length;
+    }
+
+    // Preconditions: input slots of 'values' are filled in.
+    // Fills in the generated signals, and returns the index of the
+    // transition taken from 'state', or -1 if it remains.
+    public int step(boolean[] values, int state)
+    {
+        clearWires(values);
+        for(int i = 0; i < pinnedSlots.length; i++)
+        {
+            values[pinnedSlots[i]] = pinnedValues[i];
+        }
+
+        int[] computed = stateComputedRoots[state];
+        for(int i = 0; i < computedSlots.length; i++)
+        {
+            values[computedSlots[i]] = evaluate(computed[i], values, state);
+        }
+
+        int[] roots = transitionRoots[state];
+        int taken = -1;
+        for(int t = 0; t < roots.length; t++)
+        {
+            if(evaluate(roots[t], values, state))
+            {
+                if(taken >= 0)
+                {
+                    throw new Error("Internal error: multiple transitions from state " + states.get(state).getName());
+                }
+                taken = t;
+            }
+        }
+        return taken;
+    }
+
+    // Precondition: 'values' has been filled in by step() (or another
+    // ModelStepper's, so wires are recomputed).
+    public boolean isReset(boolean[] values, int state)
+    {
+        clearWires(values);
+        return evaluate(resetRoot, values, state);
+    }
+
+    // Bit-parallel version of step(): bit i of every word belongs to lane i.
+    // 'words' is indexed by slot and 'stateLanes' by state index (the lanes
+    // currently in that state). Fills in the generated signals' words and
+    // sets 'nextStateLanes', ignoring reset.
+    public void stepLanes(long[] words, long[] stateLanes, long[] nextStateLanes)
+    {
+        clearWires(words);
+        for(int i = 0; i < computedSlots.length; i++)
+        {
+            words[computedSlots[i]] = evaluateLanes(computedRoots[i], words, stateLanes);
+        }
+
+        Arrays.fill(nextStateLanes, 0);
+        for(int state = 0; state < stateLanes.length; state++)
+        {
+            long lanes = stateLanes[state];
+            if(lanes == 0)
+            {
+                continue;
+            }
+
+            int[] roots = transitionRoots[state];
+            long moved = 0;
+            for(int t = 0; t < roots.length; t++)
+            {
+                long taken = evaluateLanes(roots[t], words, stateLanes) & lanes;
+                if((taken & moved) != 0)
+                {
+                    throw new Error("Internal error: multiple transitions from state " + states.get(state).getName());
+                }
+                moved |= taken;
+                nextStateLanes[transitionDestinations[state][t]] |= taken;
+            }
+            nextStateLanes[state] |= lanes & ~moved;
+        }
+    }
+
+    // Precondition: 'words' has been filled in by stepLanes().
+    public long getResetLanes(long[] words, long[] stateLanes)
+    {
+        return evaluateLanes(resetRoot, words, stateLanes);
+    }
+
+    private void clearWires(boolean[] values)
+    {
+        Arrays.fill(values, doneSlots, doneSlots + wireRoots.length, false);
+    }
+
+    private void clearWires(long[] words)
+    {
+        Arrays.fill(words, doneSlots, doneSlots + wireRoots.length, 0L);
+    }
+
+    // Three-valued version of step(), where inputs may be UNKNOWN.
+    // Fills in the generated signals and the value of each transition
+    // condition from 'state' (into 'conditions').
+    public void stepTernary(byte[] values, int state, byte[] conditions)
+    {
+        for(int i = 0; i < pinnedSlots.length; i++)
+        {
+            values[pinnedSlots[i]] = pinnedValues[i] ? TRUE : FALSE;
+        }
+
+        int[] computed = stateComputedRoots[state];
+        for(int i = 0; i < computedSlots.length; i++)
+        {
+            values[computedSlots[i]] = evaluateTernary(computed[i], values, state);
+        }
+
+        int[] roots = transitionRoots[state];
+        for(int t = 0; t < roots.length; t++)
+        {
+            conditions[t] = evaluateTernary(roots[t], values, state);
+        }
+    }
+
+    // Precondition: 'values' and 'conditions' have been filled in by stepTernary().
+    // Find an UNKNOWN input slot that some UNKNOWN signal or transition
+    // condition depends on, or -1 if everything is known.
+    public int findUnknownInput(byte[] values, int state, byte[] conditions)
+    {
+        int[] computed = stateComputedRoots[state];
+        for(int i = 0; i < computedSlots.length; i++)
+        {
+            if(values[computedSlots[i]] == UNKNOWN)
+            {
+                int slot = findUnknownInput(computed[i], values, state);
+                if(slot >= 0)
+                {
+                    return slot;
+                }
+            }
+        }
+
+        int[] roots = transitionRoots[state];
+        for(int t = 0; t < roots.length; t++)
+        {
+            if(conditions[t] == UNKNOWN)
+            {
+                int slot = findUnknownInput(roots[t], values, state);
+                if(slot >= 0)
+                {
+                    return slot;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    // Make an Environment equivalent to what Model.fillEnvironment would give.
+    public Environment toEnvironment(boolean[] values, int state, int transition)
+    {
+        Environment e = new Environment(states.get(state));
+        for(int slot = 0; slot < signals.size(); slot++)
+        {
+            e.setValue(signals.get(slot), new Value(values[slot]));
+        }
+        e.setPath(transition < 0 ? null : transitions[state][transition].getPath());
+        return e;
+    }
+
+    private boolean evaluate(int node, boolean[] values, int state)
+    {
+        int a = as[node];
+        int end = a + bs[node];
+
+        switch(kinds[node])
+        {
+        case CONSTANT:
+            return a != 0;
+        case SIGNAL:
+            return values[a];
+        case NOT:
+            return !evaluate(a, values, state);
+        case AND:
+            for(int i = a; i < end; i++)
+            {
+                if(!evaluate(operands[i], values, state))
+                {
+                    return false;
+                }
+            }
+            return true;
+        case OR:
+            for(int i = a; i < end; i++)
+            {
+                if(evaluate(operands[i], values, state))
+                {
+                    return true;
+                }
+            }
+            return false;
+        case NAND:
+            for(int i = a; i < end; i++)
+            {
+                if(!evaluate(operands[i], values, state))
+                {
+                    return true;
+                }
+            }
+            return false;
+        case NOR:
+            for(int i = a; i < end; i++)
+            {
+                if(evaluate(operands[i], values, state))
+                {
+                    return false;
+                }
+            }
+            return true;
+        case XOR:
+            boolean result = false;
+            for(int i = a; i < end; i++)
+            {
+                result ^= evaluate(operands[i], values, state);
+            }
+            return result;
+        case STATE_IS:
+            return stateSets[a][state];
+        case WIRE:
+            if(!values[doneSlots + a])
+            {
+                values[wireSlots + a] = evaluate(wireRoots[a], values, state);
+                values[doneSlots + a] = true;
+            }
+            return values[wireSlots + a];
+        default:
+            throw Misc.impossible();
+        }
+    }
+
+    private byte evaluateTernary(int node, byte[] values, int state)
+    {
+        int a = as[node];
+        int end = a + bs[node];
+        boolean unknown = false;
+
+        switch(kinds[node])
+        {
+        case CONSTANT:
+            return a != 0 ? TRUE : FALSE;
+        case SIGNAL:
+            return values[a];
+        case NOT:
+            return not(evaluateTernary(a, values, state));
+        case AND:
+        case NAND:
+            for(int i = a; i < end; i++)
+            {
+                byte v = evaluateTernary(operands[i], values, state);
+                if(v == FALSE)
+                {
+                    return kinds[node] == AND ? FALSE : TRUE;
+                }
+                unknown |= v == UNKNOWN;
+            }
+            return unknown ? UNKNOWN : kinds[node] == AND ? TRUE : FALSE;
+        case OR:
+        case NOR:
+            for(int i = a; i < end; i++)
+            {
+                byte v = evaluateTernary(operands[i], values, state);
+                if(v == TRUE)
+                {
+                    return kinds[node] == OR ? TRUE : FALSE;
+                }
+                unknown |= v == UNKNOWN;
+            }
+            return unknown ? UNKNOWN : kinds[node] == OR ? FALSE : TRUE;
+        case XOR:
+            boolean result = false;
+            for(int i = a; i < end; i++)
+            {
+                byte v = evaluateTernary(operands[i], values, state);
+                if(v == UNKNOWN)
+                {
+                    return UNKNOWN;
+                }
+                result ^= v == TRUE;
+            }
+            return result ? TRUE : FALSE;
+        case STATE_IS:
+            return stateSets[a][state] ? TRUE : FALSE;
+        case WIRE:
+            return evaluateTernary(wireRoots[a], values, state);
+        default:
+            throw Misc.impossible();
+        }
+    }
+
+    private static byte not(byte v)
+    {
+        return v == UNKNOWN ? UNKNOWN : v == TRUE ? FALSE : TRUE;
+    }
+
+    // Precondition: 'node' evaluates to UNKNOWN.
+    private int findUnknownInput(int node, byte[] values, int state)
+    {
+        int k = kinds[node];
+        int a = as[node];
+
+        if(k == SIGNAL)
+        {
+            int i = computedIndices[a];
+            return i < 0 ? a : findUnknownInput(stateComputedRoots[state][i], values, state);
+        }
+        else if(k == NOT)
+        {
+            return findUnknownInput(a, values, state);
+        }
+        else if(k == WIRE)
+        {
+            return findUnknownInput(wireRoots[a], values, state);
+        }
+        else if(k == AND || k == OR || k == NAND || k == NOR || k == XOR)
+        {
+            for(int i = a; i < a + bs[node]; i++)
+            {
+                if(evaluateTernary(operands[i], values, state) == UNKNOWN)
+                {
+                    return findUnknownInput(operands[i], values, state);
+                }
+            }
+        }
+
+        throw Misc.impossible();
+    }
+
+    private long evaluateLanes(int node, long[] words, long[] stateLanes)
+    {
+        int a = as[node];
+        int end = a + bs[node];
+        long result;
+
+        switch(kinds[node])
+        {
+        case CONSTANT:
+            return a != 0 ? -1L : 0L;
+        case SIGNAL:
+            return words[a];
+        case NOT:
+            return ~evaluateLanes(a, words, stateLanes);
+        case AND:
+        case NAND:
+            result = -1L;
+            for(int i = a; i < end && result != 0; i++)
+            {
+                result &= evaluateLanes(operands[i], words, stateLanes);
+            }
+            return kinds[node] == AND ? result : ~result;
+        case OR:
+        case NOR:
+            result = 0L;
+            for(int i = a; i < end && result != -1L; i++)
+            {
+                result |= evaluateLanes(operands[i], words, stateLanes);
+            }
+            return kinds[node] == OR ? result : ~result;
+        case XOR:
+            result = 0L;
+            for(int i = a; i < end; i++)
+            {
+                result ^= evaluateLanes(operands[i], words, stateLanes);
+            }
+            return result;
+        case STATE_IS:
+            result = 0L;
+            for(int st: stateMembers[a])
+            {
+                result |= stateLanes[st];
+            }
+            return result;
+        case WIRE:
+            if(words[doneSlots + a] == 0)
+            {
+                words[wireSlots + a] = evaluateLanes(wireRoots[a], words, stateLanes);
+                words[doneSlots + a] = -1L;
+            }
+            return words[wireSlots + a];
+        default:
+            throw Misc.impossible();
+        }
+    }
+
+    // Compilation
+
+    private List<Integer> kindList = new ArrayList<>();
+    private List<Integer> aList = new ArrayList<>();
+    private List<Integer> bList = new ArrayList<>();
+    private List<Integer> operandList = new ArrayList<>();
+    private List<boolean[]> stateSetList = new ArrayList<>();
+    private List<Integer> wireRootList = new ArrayList<>();
+    private Map<Expression,Integer> lowered = new IdentityHashMap<>();
+    private SharedExpressions shared;
+
+    private void compile()
+    {
+        for(Signal s: model.getInputs())
+        {
+            addSlot(s);
+        }
+
+        List<ModelSignalComputation> mscs = model.getSignalComputations();
+        for(ModelSignalComputation msc: mscs)
+        {
+            addSlot(msc.getSignal());
+        }
+
+        for(State st: model.getStates())
+        {
+            stateIndices.put(st, states.size());
+            states.add(st);
+        }
+
+        shared = new SharedExpressions(findRoots());
+
+        inputSlots = new int[model.getInputs().size()];
+        for(int i = 0; i < inputSlots.length; i++)
+        {
+            inputSlots[i] = i;
+        }
+
+        computedSlots = new int[mscs.size()];
+        computedRoots = new int[mscs.size()];
+        computedIndices = new int[signals.size()];
+        Arrays.fill(computedIndices, -1);
+        for(int i = 0; i < mscs.size(); i++)
+        {
+            computedSlots[i] = slots.get(mscs.get(i).getSignal());
+            computedRoots[i] = lower(mscs.get(i).getExpression());
+            computedIndices[computedSlots[i]] = i;
+        }
+
+        stateComputedRoots = new int[states.size()][];
+        for(int i = 0; i < states.size(); i++)
+        {
+            if(specialized == null)
+            {
+                stateComputedRoots[i] = computedRoots;
+                continue;
+            }
+
+            List<ModelSignalComputation> residual = specialized.getSignalComputations(states.get(i));
+            stateComputedRoots[i] = new int[residual.size()];
+            for(int j = 0; j < residual.size(); j++)
+            {
+                stateComputedRoots[i][j] = lower(residual.get(j).getExpression());
+            }
+        }
+
+        Map<Signal,Value> pinned = specialized == null ? new HashMap<>() : specialized.getPinnedInputs();
+        pinnedSlots = new int[pinned.size()];
+        pinnedValues = new boolean[pinned.size()];
+        int p = 0;
+        for(Map.Entry<Signal,Value> entry: pinned.entrySet())
+        {
+            pinnedSlots[p] = slots.get(entry.getKey());
+            pinnedValues[p] = entry.getValue().getBoolean();
+            p++;
+        }
+
+        transitionRoots = new int[states.size()][];
+        transitionDestinations = new int[states.size()][];
+        transitions = new ModelTransition[states.size()][];
+        for(int i = 0; i < states.size(); i++)
+        {
+            List<ModelTransition> ts = specialized == null ? model.getTransitionsFromState(states.get(i)) : specialized.getTransitionsFromState(states.get(i));
+            transitionRoots[i] = new int[ts.size()];
+            transitionDestinations[i] = new int[ts.size()];
+            transitions[i] = ts.toArray(new ModelTransition[ts.size()]);
+            for(int t = 0; t < ts.size(); t++)
+            {
+                List<State> path = ts.get(t).getPath();
+                transitionRoots[i][t] = lower(ts.get(t).getCondition());
+                transitionDestinations[i][t] = stateIndices.get(path.get(path.size() - 1));
+            }
+        }
+
+        resetRoot = lower(specialized == null ? model.getResetCondition() : specialized.getResetCondition());
+        initialState = stateIndices.get(model.getInitialState());
+
+        kinds = toArray(kindList);
+        as = toArray(aList);
+        bs = toArray(bList);
+        operands = toArray(operandList);
+        wireRoots = toArray(wireRootList);
+        wireSlots = signals.size();
+        doneSlots = wireSlots + wireRoots.length;
+        stateSets = stateSetList.toArray(new boolean[stateSetList.size()][]);
+        stateMembers = new int[stateSets.length][];
+        for(int i = 0; i < stateSets.length; i++)
+        {
+            List<Integer> members = new ArrayList<>();
+            for(int st = 0; st < stateSets[i].length; st++)
+            {
+                if(stateSets[i][st])
+                {
+                    members.add(st);
+                }
+            }
+            stateMembers[i] = toArray(members);
+        }
+
+        kindList = aList = bList = operandList = wireRootList = null;
+        stateSetList = null;
+        lowered = null;
+        shared = null;
+    }
+
+    // Every expression that compile() lowers.
+    private List<Expression> findRoots()
+    {
+        List<Expression> roots = new ArrayList<>();
+        for(ModelSignalComputation msc: model.getSignalComputations())
+        {
+            roots.add(msc.getExpression());
+        }
+        for(State st: states)
+        {
+            if(specialized != null)
+            {
+                for(ModelSignalComputation msc: specialized.getSignalComputations(st))
+                {
+                    roots.add(msc.getExpression());
+                }
+            }
+            for(ModelTransition mt: specialized == null ? model.getTransitionsFromState(st) : specialized.getTransitionsFromState(st))
+            {
+                roots.add(mt.getCondition());
+            }
+        }
+        roots.add(specialized == null ? model.getResetCondition() : specialized.getResetCondition());
+        return roots;
+    }
+
+    private void addSlot(Signal s)
+    {
+        slots.put(s, signals.size());
+        signals.add(s);
+    }
+
+    private int lower(Expression e)
+    {
+        Integer existing = lowered.get(e);
+        if(existing != null)
+        {
+            return existing;
+        }
+
+        int node = lowerNode(e);
+        if(shared.isShared(e))
+        {
+            wireRootList.add(node);
+            node = addNode(WIRE, wireRootList.size() - 1, 0);
+        }
+        lowered.put(e, node);
+        return node;
+    }
+
+    private int lowerNode(Expression e)
+    {
+        int node;
+        ExpressionKind k = e.getKind();
+        if(k == ExpressionKind.CONSTANT)
+        {
+            node = addNode(CONSTANT, e.getConstant().getBoolean() ? 1 : 0, 0);
+        }
+        else if(k == ExpressionKind.SIGNAL)
+        {
+            Integer slot = slots.get(e.getSignal());
+            if(slot == null)
+            {
+                throw new Error("Internal error: model missing signal " + e.getSignal().getName());
+            }
+            node = addNode(SIGNAL, slot, 0);
+        }
+        else if(k == ExpressionKind.OPERATION)
+        {
+            List<Expression> ands = e.getOperands();
+            int[] loweredOperands = new int[ands.size()];
+            for(int i = 0; i < loweredOperands.length; i++)
+            {
+                loweredOperands[i] = lower(ands.get(i));
+            }
+
+            if(e.getOperator() == Operator.NOT)
+            {
+                if(loweredOperands.length != 1)
+                {
+                    throw new Error("Uncaught arity problem - >1");
+                }
+                node = addNode(NOT, loweredOperands[0], 0);
+            }
+            else
+            {
+                int first = operandList.size();
+                for(int operand: loweredOperands)
+                {
+                    operandList.add(operand);
+                }
+                node = addNode(lowerOperator(e.getOperator()), first, loweredOperands.length);
+            }
+        }
+        else if(k == ExpressionKind.STATE_IS)
+        {
+            boolean[] set = new boolean[states.size()];
+            for(State st: e.getStates())
+            {
+                Integer index = stateIndices.get(st);
+                if(index != null) // virtual states are never current
+                {
+                    set[index] = true;
+                }
+            }
+            stateSetList.add(set);
+            node = addNode(STATE_IS, stateSetList.size() - 1, 0);
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+        return node;
+    }
+
+    private int addNode(int kind, int a, int b)
+    {
+        kindList.add(kind);
+        aList.add(a);
+        bList.add(b);
+        return kindList.size() - 1;
+    }
+
+    private static int lowerOperator(Operator op)
+    {
+        switch(op)
+        {
+        case AND:
+            return AND;
+        case OR:
+            return OR;
+        case NAND:
+            return NAND;
+        case NOR:
+            return NOR;
+        case XOR:
+            return XOR;
+        default:
+            throw Misc.impossible();
+        }
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int[] array = new int[list.size()];
+        for(int i = 0; i < array.length; i++)
+        {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,334 @@
+package machine;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/*
+ * One decision diagram per (non-virtual) state of a CompiledModel.
+ *
+ * Within a state, every generated signal and the choice of transition are
+ * functions of the inputs alone, so a state's diagram tests inputs (each at
+ * most once on any path) until it reaches a leaf holding the transition
+ * taken and the values of all generated signals. Nodes and leaves are
+ * shared, so the diagrams are reduced DAGs.
+ *
+ * States whose diagram would exceed NODE_LIMIT are left to CompiledModel.
+ * Optionally, states whose diagrams test at most TABLE_INPUT_LIMIT inputs
+ * get a lookup table indexed directly by those inputs instead.
+ *
+ * Building is bounded as a whole too: once there are TOTAL_NODE_LIMIT
+ * nodes, TABLE_ENTRY_LIMIT table entries, or TIME_LIMIT_MS have passed,
+ * the remaining states are left to CompiledModel (or not tabulated).
+ */
+public class DecisionDiagrams implements ModelStepper
+{
+    public static final int NODE_LIMIT = 1 << 14; // per state, while building
+    public static final int TABLE_INPUT_LIMIT = 16;
+    public static final int TOTAL_NODE_LIMIT = 1 << 20;
+    public static final int TABLE_ENTRY_LIMIT = 1 << 22;
+    public static final long TIME_LIMIT_MS = 5000;
+
+    private CompiledModel compiled;
+    private int[] computedSlots;
+
+    // Nodes test an input slot; references >= 0 are nodes, < 0 are ~leaf.
+    private int[] vars;
+    private int[] los;
+    private int[] his;
+
+    private int[] leafTransitions;
+    private boolean[][] leafOutputs; // in the order of computedSlots
+
+    private int[] roots; // by state index
+    private boolean[] fallback; // by state index
+    private int[][] tableInputs; // by state index, null if not tabulated
+    private int[][] tables; // by state index, leaf indices
+
+    private long deadline; // System.nanoTime(), while building
+
+    // Throws CancellationException if the thread is interrupted meanwhile.
+    public DecisionDiagrams(CompiledModel cm, boolean tabulate)
+    {
+        compiled = cm;
+        computedSlots = cm.getComputedSlots();
+        deadline = System.nanoTime() + TIME_LIMIT_MS * 1000000;
+        build();
+        if(tabulate)
+        {
+            tabulate();
+        }
+    }
+
+    public int getLeafCount() { return leafTransitions.length; }
+    public int getNodeCount() { return vars.length; }
+    public boolean hasDiagram(int state) { return !fallback[state]; }
+    public boolean isTabulated(int state) { return tables[state] != null; }
+
+    public int step(boolean[] values, int state)
+    {
+        if(fallback[state])
+        {
+            return compiled.step(values, state);
+        }
+
+        int leaf;
+        int[] table = tables[state];
+        if(table != null)
+        {
+            int[] inputs = tableInputs[state];
+            int index = 0;
+            for(int i = 0; i < inputs.length; i++)
+            {
+                if(values[inputs[i]])
+                {
+                    index |= 1 << i;
+                }
+            }
+            leaf = table[index];
+        }
+        else
+        {
+            int node = roots[state];
+            while(node >= 0)
+            {
+                node = values[vars[node]] ? his[node] : los[node];
+            }
+            leaf = ~node;
+        }
+
+        boolean[] outputs = leafOutputs[leaf];
+        for(int i = 0; i < computedSlots.length; i++)
+        {
+            values[computedSlots[i]] = outputs[i];
+        }
+        return leafTransitions[leaf];
+    }
+
+    // Building
+
+    private List<Integer> varList = new ArrayList<>();
+    private List<Integer> loList = new ArrayList<>();
+    private List<Integer> hiList = new ArrayList<>();
+    private Map<List<Integer>,Integer> uniqueNodes = new HashMap<>();
+    private List<Integer> leafTransitionList = new ArrayList<>();
+    private List<boolean[]> leafOutputList = new ArrayList<>();
+    private Map<String,Integer> uniqueLeaves = new HashMap<>();
+    private int explored;
+
+    private void build()
+    {
+        int stateCount = compiled.getStateCount();
+        roots = new int[stateCount];
+        fallback = new boolean[stateCount];
+        tableInputs = new int[stateCount][];
+        tables = new int[stateCount][];
+
+        for(int state = 0; state < stateCount; state++)
+        {
+            checkInterrupted();
+            if(varList.size() > TOTAL_NODE_LIMIT || System.nanoTime() > deadline)
+            {
+                fallback[state] = true;
+                continue;
+            }
+
+            byte[] values = new byte[compiled.getSlotCount()];
+            Arrays.fill(values, CompiledModel.UNKNOWN);
+            byte[] conditions = new byte[compiled.getTransitionCount(state)];
+
+            int nodes = varList.size();
+            int leaves = leafTransitionList.size();
+            explored = 0;
+            roots[state] = build(state, values, conditions);
+            fallback[state] = explored > NODE_LIMIT;
+            if(fallback[state])
+            {
+                discard(nodes, leaves);
+            }
+        }
+
+        vars = toArray(varList);
+        los = toArray(loList);
+        his = toArray(hiList);
+        leafTransitions = toArray(leafTransitionList);
+        leafOutputs = leafOutputList.toArray(new boolean[leafOutputList.size()][]);
+
+        varList = loList = hiList = leafTransitionList = null;
+        leafOutputList = null;
+        uniqueNodes = null;
+        uniqueLeaves = null;
+    }
+
+    private int build(int state, byte[] values, byte[] conditions)
+    {
+        if(++explored > NODE_LIMIT)
+        {
+            return ~0; // abandoned, see build()
+        }
+
+        compiled.stepTernary(values, state, conditions);
+        int input = compiled.findUnknownInput(values, state, conditions);
+
+        if(input < 0)
+        {
+            return ~leaf(state, values, conditions);
+        }
+
+        values[input] = CompiledModel.FALSE;
+        int lo = build(state, values, conditions);
+        values[input] = CompiledModel.TRUE;
+        int hi = build(state, values, conditions);
+        values[input] = CompiledModel.UNKNOWN;
+
+        if(lo == hi)
+        {
+            return lo;
+        }
+
+        List<Integer> key = Arrays.asList(input, lo, hi);
+        Integer existing = uniqueNodes.get(key);
+        if(existing != null)
+        {
+            return existing;
+        }
+
+        varList.add(input);
+        loList.add(lo);
+        hiList.add(hi);
+        uniqueNodes.put(key, varList.size() - 1);
+        return varList.size() - 1;
+    }
+
+    private int leaf(int state, byte[] values, byte[] conditions)
+    {
+        int transition = -1;
+        for(int t = 0; t < conditions.length; t++)
+        {
+            if(conditions[t] == CompiledModel.TRUE)
+            {
+                if(transition >= 0)
+                {
+                    throw new Error("Internal error: multiple transitions from state " + compiled.getState(state).getName());
+                }
+                transition = t;
+            }
+        }
+
+        boolean[] outputs = new boolean[computedSlots.length];
+        for(int i = 0; i < outputs.length; i++)
+        {
+            outputs[i] = values[computedSlots[i]] == CompiledModel.TRUE;
+        }
+
+        String key = leafKey(transition, outputs);
+        Integer existing = uniqueLeaves.get(key);
+        if(existing != null)
+        {
+            return existing;
+        }
+
+        leafTransitionList.add(transition);
+        leafOutputList.add(outputs);
+        uniqueLeaves.put(key, leafTransitionList.size() - 1);
+        return leafTransitionList.size() - 1;
+    }
+
+    private static String leafKey(int transition, boolean[] outputs)
+    {
+        StringBuilder key = new StringBuilder(transition + ":");
+        for(boolean b: outputs)
+        {
+            key.append(b ? '1' : '0');
+        }
+        return key.toString();
+    }
+
+    // Forget the nodes and leaves made since there were 'nodes' and
+    // 'leaves' of them (by an abandoned state).
+    private void discard(int nodes, int leaves)
+    {
+        for(int n = nodes; n < varList.size(); n++)
+        {
+            uniqueNodes.remove(Arrays.asList(varList.get(n), loList.get(n), hiList.get(n)));
+        }
+        varList.subList(nodes, varList.size()).clear();
+        loList.subList(nodes, loList.size()).clear();
+        hiList.subList(nodes, hiList.size()).clear();
+
+        for(int l = leaves; l < leafTransitionList.size(); l++)
+        {
+            uniqueLeaves.remove(leafKey(leafTransitionList.get(l), leafOutputList.get(l)));
+        }
+        leafTransitionList.subList(leaves, leafTransitionList.size()).clear();
+        leafOutputList.subList(leaves, leafOutputList.size()).clear();
+    }
+
+    private void tabulate()
+    {
+        long entries = 0;
+        for(int state = 0; state < roots.length; state++)
+        {
+            checkInterrupted();
+            if(fallback[state] || System.nanoTime() > deadline)
+            {
+                continue;
+            }
+
+            Set<Integer> tested = new TreeSet<>();
+            collectInputs(roots[state], tested, new HashSet<>());
+            if(tested.size() > TABLE_INPUT_LIMIT || entries + (1 << tested.size()) > TABLE_ENTRY_LIMIT)
+            {
+                continue;
+            }
+            entries += 1 << tested.size();
+
+            int[] inputs = toArray(new ArrayList<>(tested));
+            int[] table = new int[1 << inputs.length];
+            boolean[] values = new boolean[compiled.getSlotCount()];
+            for(int index = 0; index < table.length; index++)
+            {
+                for(int i = 0; i < inputs.length; i++)
+                {
+                    values[inputs[i]] = (index & (1 << i)) != 0;
+                }
+
+                int node = roots[state];
+                while(node >= 0)
+                {
+                    node = values[vars[node]] ? his[node] : los[node];
+                }
+                table[index] = ~node;
+            }
+
+            tableInputs[state] = inputs;
+            tables[state] = table;
+        }
+    }
+
+    private void collectInputs(int node, Set<Integer> inputs, Set<Integer> visited)
+    {
+        if(node >= 0 && visited.add(node))
+        {
+            inputs.add(vars[node]);
+            collectInputs(los[node], inputs, visited);
+            collectInputs(his[node], inputs, visited);
+        }
+    }
+
+    private static void checkInterrupted()
+    {
+        if(Thread.currentThread().isInterrupted())
+        {
+            throw new CancellationException("Decision diagram construction interrupted");
+        }
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int[] array = new int[list.size()];
+        for(int i = 0; i < array.length; i++)
+        {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
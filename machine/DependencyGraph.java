@@ -3,7 +3,7 @@ import java.util.*;
 
 /*
  * Builds the dependency graph of signals for a machine.
- * Virtual states are effectively inlined, per their semantics.
+ * Virtual states are effectively inlined, per their semantics (see InlinedStates).
  * Virtual states are also analyzed alone, out of caution.
  */
 public class DependencyGraph
@@ -67,74 +67,51 @@ public class DependencyGraph
             }
         }
 
-        for(State st: m.getStates())
+        // If a signal is being emitted with some expression as its value,
+        // it depends on the signals in that expression and also the
+        // conditionals that this emission depends upon.
+        InlinedStates inlined = m.getInlinedStates();
+        for(Map<Signal,Set<Signal>> deps: Parallel.map(m.getStates(), st -> inlined.getEmissionDependencies(st)))
         {
-            exploreStatement(st.getRootStatement(), new HashSet<Signal>());
+            for(Map.Entry<Signal,Set<Signal>> entry: deps.entrySet())
+            {
+                for(Signal s2: entry.getValue())
+                {
+                    addDep(entry.getKey(), s2);
+                }
+            }
         }
     }
 
-    // Recursively discover dependencies, keeping track of conditionals
-    // we're inside of (they are dependencies for emitted signals too).
-    private void exploreStatement(Statement stm, Set<Signal> context)
+    private void addDep(Signal post, Signal pre)
     {
-        StatementKind k = stm.getKind();
+        graph.get(post).add(pre);
+    }
 
-        if(k == StatementKind.GROUP)
-        {
-            for(Statement stm2: stm.getStatements())
-            {
-                exploreStatement(stm2, context);
-            }
-        }
-        else if(k == StatementKind.EMIT)
-        {
-            // If a signal is being emitted with some expression as its value,
-            // it depends on the signals in that expression and also the
-            // conditionals that this emission depends upon (the "context").
-            Signal s = stm.getSignal();
-            Expression e = stm.getEmittedExp();
-            for(Signal s2: e.getDependencies())
-            {
-                addDep(s, s2);
-            }
-            for(Signal s3: context)
-            {
-                addDep(s, s3);
-            }
-        }
-        else if(k == StatementKind.COND)
-        {
-            Set<Signal> newContext = new HashSet<Signal>(context);
-            for(Signal s: stm.getCondition().getDependencies())
-            {
-                newContext.add(s);
-            }
-            exploreStatement(stm.getTrueBranch(), newContext);
-            exploreStatement(stm.getFalseBranch(), newContext);
-        }
-        else if(k == StatementKind.GOTO)
+    // In signal order, neighbors too, so that the order found doesn't
+    // depend on hashing or on which thread found which dependency.
+    private Map<Signal,Set<Signal>> getOrderedGraph()
+    {
+        List<Signal> signals = m.getSignals();
+        Map<Signal,Integer> indices = new HashMap<>();
+        for(int i = 0; i < signals.size(); i++)
         {
-            State st = stm.getDestination();
-            if(st.isVirtual())
-            {
-                exploreStatement(st.getRootStatement(), context);
-            }
-            // Nothing to do for GOTO to normal states; no information flows.
+            indices.put(signals.get(i), i);
         }
-        else
+
+        Map<Signal,Set<Signal>> ordered = new LinkedHashMap<>();
+        for(Signal s: signals)
         {
-            throw Misc.impossible();
+            List<Signal> pres = new ArrayList<>(graph.get(s));
+            pres.sort(Comparator.comparing(indices::get));
+            ordered.put(s, new LinkedHashSet<>(pres));
         }
-    }
-
-    private void addDep(Signal post, Signal pre)
-    {
-        graph.get(post).add(pre);
+        return ordered;
     }
 
     private void computeProperties()
     {
-        GraphUtil<Signal> g = new GraphUtil<Signal>(graph);
+        GraphUtil<Signal> g = new GraphUtil<Signal>(getOrderedGraph());
 
         cycles = g.findCycles();
 
@@ -15,7 +15,7 @@ public class Environment
 
     public List<State> getPath()
     {
-        return new ArrayList<>(path);
+        return path == null ? null : new ArrayList<>(path);
     }
     
     public State getState()
@@ -1,9 +1,26 @@
 package machine;
+import java.lang.ref.*;
 import java.util.*;
 
-// Immutable!
+// Immutable, and hash-consed: expressions are only made through the
+// static methods below, which return the existing expression if there's
+// a structurally equal one. So equal expressions are the same object,
+// shared by all code and models, and identity-keyed memos see them as one.
 public class Expression
 {
+    // Interning from many threads at once (parallel analysis, Batch -j)
+    // would queue on one lock, so the table is split by hash into stripes,
+    // each locked on its own.
+    private static final int INTERN_STRIPE_BITS = 6;
+    private static final InternTable[] interned = new InternTable[1 << INTERN_STRIPE_BITS];
+    static
+    {
+        for(int i = 0; i < interned.length; i++)
+        {
+            interned[i] = new InternTable();
+        }
+    }
+
     private ExpressionKind kind;
     
     private Value constant;
@@ -12,29 +29,123 @@ public class Expression
     private List<Expression> operands;
     private Set<State> onStates;
 
-    public Expression(Value v)
+    private int hash; // structural, computed once
+
+    private Expression()
+    {
+        // Nothing to do
+    }
+
+    public static Expression constant(boolean b)
     {
-        kind = ExpressionKind.CONSTANT;
-        constant = v;
+        return constant(new Value(b));
+    }
+
+    public static Expression constant(Value v)
+    {
+        Expression e = new Expression();
+        e.kind = ExpressionKind.CONSTANT;
+        e.constant = v;
+        e.hash = Boolean.hashCode(v.getBoolean());
+        return intern(e);
     }
     
-    public Expression(Signal s)
+    // The signal keeps its expression, as it's by far the most common.
+    public static Expression signal(Signal s)
+    {
+        Expression e = s.getLeaf();
+        if(e == null)
+        {
+            e = new Expression();
+            e.kind = ExpressionKind.SIGNAL;
+            e.signal = s;
+            e.hash = 31 * ExpressionKind.SIGNAL.ordinal() + s.hashCode();
+            e = intern(e);
+            s.setLeaf(e);
+        }
+        return e;
+    }
+
+    public static Expression operation(Operator oper, List<Expression> ands)
     {
-        kind = ExpressionKind.SIGNAL;
-        signal = s;
+        Expression e = new Expression();
+        e.kind = ExpressionKind.OPERATION;
+        e.operator = oper;
+        e.operands = new ArrayList<>(ands);
+        int h = 31 * ExpressionKind.OPERATION.ordinal() + oper.ordinal();
+        for(Expression and: ands)
+        {
+            h = 31 * h + and.hash;
+        }
+        e.hash = h;
+        return intern(e);
     }
 
-    public Expression(Operator oper, List<Expression> ands)
+    public static Expression stateIs(Collection<State> states)
     {
-        kind = ExpressionKind.OPERATION;
-        operator = oper;
-        operands = new ArrayList<>(ands);
+        Expression e = new Expression();
+        e.kind = ExpressionKind.STATE_IS;
+        e.onStates = new HashSet<>(states);
+        e.hash = 31 * ExpressionKind.STATE_IS.ordinal() + e.onStates.hashCode();
+        return intern(e);
     }
 
-    public Expression(Collection<State> states)
+    private static Expression intern(Expression e)
     {
-        kind = ExpressionKind.STATE_IS;
-        onStates = new HashSet<>(states);
+        // The top bits of the (mixed) hash, as the table indexes by the bottom ones
+        return interned[(e.hash * 0x9e3779b9) >>> (32 - INTERN_STRIPE_BITS)].intern(e);
+    }
+
+    public int hashCode() { return hash; }
+
+    // The operands are interned already, so they're compared by identity.
+    public boolean equals(Object o)
+    {
+        if(this == o)
+        {
+            return true;
+        }
+        if(!(o instanceof Expression))
+        {
+            return false;
+        }
+
+        Expression e = (Expression)o;
+        if(hash != e.hash || kind != e.kind)
+        {
+            return false;
+        }
+        if(kind == ExpressionKind.CONSTANT)
+        {
+            return constant.getBoolean() == e.constant.getBoolean();
+        }
+        else if(kind == ExpressionKind.SIGNAL)
+        {
+            return signal == e.signal;
+        }
+        else if(kind == ExpressionKind.OPERATION)
+        {
+            if(operator != e.operator || operands.size() != e.operands.size())
+            {
+                return false;
+            }
+            for(int i = 0; i < operands.size(); i++)
+            {
+                if(operands.get(i) != e.operands.get(i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        else if(kind == ExpressionKind.STATE_IS)
+        {
+            return onStates.equals(e.onStates);
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
     }
 
     public ExpressionKind getKind() { return kind; }
@@ -42,8 +153,55 @@ public class Expression
     public Signal getSignal() { return signal; }
     public Operator getOperator() { return operator; }
     public List<Expression> getOperands() { return new ArrayList<>(operands); }
+    List<Expression> getOperandList() { return operands; } // without copying; don't mutate
     public Set<State> getStates() { return new HashSet<>(onStates); }
 
+    // The same expression with signals and states replaced according to the
+    // maps, keeping shared subexpressions shared (via memo).
+    Expression translate(Map<Signal,Signal> signalMap, Map<State,State> stateMap, Map<Expression,Expression> memo)
+    {
+        Expression done = memo.get(this);
+        if(done != null)
+        {
+            return done;
+        }
+
+        Expression result;
+        if(kind == ExpressionKind.CONSTANT)
+        {
+            result = this;
+        }
+        else if(kind == ExpressionKind.SIGNAL)
+        {
+            result = signal(signalMap.getOrDefault(signal, signal));
+        }
+        else if(kind == ExpressionKind.OPERATION)
+        {
+            List<Expression> translated = new ArrayList<>();
+            for(Expression exp: operands)
+            {
+                translated.add(exp.translate(signalMap, stateMap, memo));
+            }
+            result = operation(operator, translated);
+        }
+        else if(kind == ExpressionKind.STATE_IS)
+        {
+            List<State> translated = new ArrayList<>();
+            for(State st: onStates)
+            {
+                translated.add(stateMap.getOrDefault(st, st));
+            }
+            result = stateIs(translated);
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+
+        memo.put(this, result);
+        return result;
+    }
+
     public Value evaluate(Environment e)
     {
         if(kind == ExpressionKind.CONSTANT)
@@ -159,4 +317,101 @@ public class Expression
     {
         return toSExp().toString();
     }
+
+    // Every expression there is (in one stripe), each held weakly so that
+    // ones no longer used anywhere can still go. A chained hash table of the
+    // references themselves, so interning costs one lookup and one reference.
+    private static class InternTable
+    {
+        private ReferenceQueue<Expression> queue = new ReferenceQueue<>();
+        private Ref[] table = new Ref[64];
+        private int size = 0;
+
+        synchronized Expression intern(Expression e)
+        {
+            expunge();
+            int i = index(e.hash, table.length);
+            for(Ref r = table[i]; r != null; r = r.next)
+            {
+                if(r.hash == e.hash)
+                {
+                    Expression existing = r.get();
+                    if(e.equals(existing))
+                    {
+                        return existing;
+                    }
+                }
+            }
+
+            table[i] = new Ref(e, queue, table[i]);
+            if(++size > table.length * 3 / 4)
+            {
+                resize();
+            }
+            return e;
+        }
+
+        private void expunge()
+        {
+            Reference<? extends Expression> gone;
+            while((gone = queue.poll()) != null)
+            {
+                Ref dead = (Ref)gone;
+                int i = index(dead.hash, table.length);
+                Ref prev = null;
+                for(Ref r = table[i]; r != null; prev = r, r = r.next)
+                {
+                    if(r == dead)
+                    {
+                        if(prev == null)
+                        {
+                            table[i] = r.next;
+                        }
+                        else
+                        {
+                            prev.next = r.next;
+                        }
+                        size--;
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void resize()
+        {
+            Ref[] bigger = new Ref[table.length * 2];
+            for(Ref head: table)
+            {
+                Ref r = head;
+                while(r != null)
+                {
+                    Ref next = r.next;
+                    int i = index(r.hash, bigger.length);
+                    r.next = bigger[i];
+                    bigger[i] = r;
+                    r = next;
+                }
+            }
+            table = bigger;
+        }
+
+        private static int index(int hash, int length)
+        {
+            return (hash ^ (hash >>> 16)) & (length - 1);
+        }
+    }
+
+    private static class Ref extends WeakReference<Expression>
+    {
+        final int hash;
+        Ref next;
+
+        Ref(Expression e, ReferenceQueue<Expression> queue, Ref next)
+        {
+            super(e, queue);
+            hash = e.hash;
+            this.next = next;
+        }
+    }
 }
@@ -8,10 +8,25 @@ public class ExpressionCode extends Code<Expression>
         super(m);
     }
     
+    protected Set<Signal> findReferencedSignals(Expression compiled)
+    {
+        return compiled.getReferencedSignals();
+    }
+
+    protected Set<State> findReferencedStates(Expression compiled)
+    {
+        return compiled.getReferencedStates();
+    }
+
+    protected Expression translate(Expression compiled, Map<Signal,Signal> signalMap, Map<State,State> stateMap)
+    {
+        return compiled.translate(signalMap, stateMap, new IdentityHashMap<>());
+    }
+
     protected Expression compileSource()
     {
         Tokenizer tz = new Tokenizer(getSource());
-        List<Token> tokens = tz.tokenize();
+        TokenCursor tokens = new TokenCursor(tz.tokenize());
 
         SExpParser p = new SExpParser(tokens);
         SExp sexp = p.parse();
@@ -23,7 +38,7 @@ public class ExpressionCode extends Code<Expression>
 
         if(!tokens.isEmpty())
         {
-            throw new ParseError("Dangling tokens: ", tokens.get(0));
+            throw new ParseError("Dangling tokens: ", tokens.peek());
         }
 
         ExpressionConverter c = new ExpressionConverter(getMachine());
@@ -42,7 +42,7 @@ public class ExpressionConverter
                 {
                     states.add(getState(list.get(i)));
                 }
-                return new Expression(states);
+                return Expression.stateIs(states);
             }
             else
             {
@@ -64,12 +64,12 @@ public class ExpressionConverter
                     throw new ExpressionError("The negation operator is unary-only.");
                 }
 
-                return new Expression(op, operands);
+                return Expression.operation(op, operands);
             }
         }
         else if(k == SExpKind.ATOM || k == SExpKind.STRING)
         {
-            return new Expression(getSignal(sexp));
+            return Expression.signal(getSignal(sexp));
         }
         else if(k == SExpKind.INT)
         {
@@ -78,7 +78,7 @@ public class ExpressionConverter
             {
                 throw new ExpressionError("Only values 0 and 1 are allowed.");
             }
-            return new Expression(new Value(i != 0));
+            return Expression.constant(i != 0);
         }
 
         throw Misc.impossible();
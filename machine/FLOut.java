@@ -12,6 +12,7 @@ public class FLOut
     public static final String STATE = "state"; // state variable name;
     public static final String STATE_ENUM_TYPE_SUFFIX = "_state";
     public static final String MOORE_SUFFIX = "_moore";
+    public static final String WIRE_PREFIX = "cse_"; // shared subexpressions
 
     public static String generateFL(Machine m)
     {
@@ -62,14 +63,57 @@ public class FLOut
     private static List<String> generateModule(Machine m)
     {
         List<String> out = new ArrayList<>();
+        Wires wires = findWires(m);
         out.add("let " + machineFLName(m) + " =");
-        out.addAll(indentAll(1, generateSignals(m)));
-        out.addAll(indentAll(1, generateCell(m)));
+        out.addAll(indentAll(1, generateSignals(m, wires)));
+        out.addAll(indentAll(1, generateCell(m, wires)));
         //out.add(";");
         return out;
     }
 
-    private static List<String> generateSignals(Machine m)
+    // Subexpressions used more than once (see SharedExpressions) are
+    // computed once, into internal wires, each with an unused name.
+    private static Wires findWires(Machine m)
+    {
+        Model model = m.getModel();
+        Wires wires = new Wires();
+        List<Expression> roots = new ArrayList<>();
+        roots.add(wires.prep(model.getResetCondition()));
+        for(State st: m.getStates())
+        {
+            if(!st.isVirtual())
+            {
+                for(ModelTransition mt: model.getTransitionsFromState(st))
+                {
+                    roots.add(wires.prep(mt.getCondition()));
+                }
+            }
+        }
+        for(ModelSignalComputation msc: model.getSignalComputations())
+        {
+            roots.add(wires.prep(msc.getExpression()));
+        }
+
+        Set<String> taken = new HashSet<>(getReservedNames(m));
+        for(Signal s: m.getSignals())
+        {
+            taken.add(signalFLName(m, s));
+        }
+
+        int n = 0;
+        for(Expression e: new SharedExpressions(roots).getShared())
+        {
+            String name;
+            do
+            {
+                name = WIRE_PREFIX + n++;
+            } while(taken.contains(name));
+            wires.names.put(e, name);
+        }
+        return wires;
+    }
+
+    private static List<String> generateSignals(Machine m, Wires wires)
     {
         List<String> out = new ArrayList<>();
 
@@ -99,40 +143,54 @@ public class FLOut
                 out.add(generateInternal(BIT, signalFLName(m, s)));
             }
         }
+        if(!wires.names.isEmpty())
+        {
+            out.add("// shared subexpressions");
+            for(String wire: wires.names.values())
+            {
+                out.add(generateInternal(BIT, wire));
+            }
+        }
         out.add("// state");
         out.add(generateInternal(stateEnumType(m), STATE));
 
         return out;
     }
 
-    private static List<String> generateCell(Machine m)
+    private static List<String> generateCell(Machine m, Wires wires)
     {
         List<String> out = new ArrayList<>();
 
         out.add("CELL " + quote("draw_hier " + machineFLName(m)));
-        out.addAll(indentAll(1, listBlocks(generateCellInternals(m), true)));
+        out.addAll(indentAll(1, listBlocks(generateCellInternals(m, wires), true)));
 
         return out;
     }
 
-    private static List<List<String>> generateCellInternals(Machine m)
+    private static List<List<String>> generateCellInternals(Machine m, Wires wires)
     {
         List<List<String>> out = new ArrayList<>();
-        List<String> moore = generateMooreFSM(m);
+        List<String> moore = generateMooreFSM(m, wires);
         if(!moore.isEmpty())
         {
             out.add(moore);
         }
+        for(Map.Entry<Expression,String> wire: wires.names.entrySet())
+        {
+            List<String> foo = new ArrayList<>();
+            foo.add(wire.getValue() + " <- " + generateDefinition(m, wire.getKey(), wires));
+            out.add(foo);
+        }
         for(ModelSignalComputation msc: m.getModel().getSignalComputations())
         {
             List<String> foo = new ArrayList<>();
-            foo.add(generateSignalComputation(m, msc));
+            foo.add(generateSignalComputation(m, msc, wires));
             out.add(foo);
         }
         return out;
     }
 
-    private static List<String> generateMooreFSM(Machine m)
+    private static List<String> generateMooreFSM(Machine m, Wires wires)
     {
         List<String> out = new ArrayList<>();
         Model model = m.getModel();
@@ -140,15 +198,15 @@ public class FLOut
                 + " " + CLOCK
                 + " " + STATE
                 + " ("
-                + generateExpression(m, model.getResetCondition())
+                + generateExpression(m, model.getResetCondition(), wires)
                 + ", "
                 + stateFLName(m, model.getInitialState())
                 + ")");
-        out.addAll(indentAll(1, list(generateTransitions(m), false)));
+        out.addAll(indentAll(1, list(generateTransitions(m, wires), false)));
         return out;
     }
 
-    private static List<String> generateTransitions(Machine m)
+    private static List<String> generateTransitions(Machine m, Wires wires)
     {
         List<String> out = new ArrayList<>();
         for(State st: m.getStates())
@@ -166,7 +224,7 @@ public class FLOut
                 Expression condition = mt.getCondition();
                 out.add(stateFLName(m, from)
                         + " --- "
-                        + generateExpression(m, condition)
+                        + generateExpression(m, condition, wires)
                         + " --- "
                         + stateFLName(m, to));
             }
@@ -174,20 +232,26 @@ public class FLOut
         return out;
     }
 
-    private static String generateSignalComputation(Machine m, ModelSignalComputation msc)
+    private static String generateSignalComputation(Machine m, ModelSignalComputation msc, Wires wires)
     {
         String lhs = signalFLName(m, msc.getSignal());
-        String rhs = generateExpression(m, msc.getExpression());
+        String rhs = generateExpression(m, msc.getExpression(), wires);
         return lhs + " <- " + rhs;
     }
 
-    private static String generateExpression(Machine m, Expression e)
+    private static String generateExpression(Machine m, Expression e, Wires wires)
+    {
+        return generateExpressionRec(m, wires.prep(e), wires);
+    }
+
+    private static String generateExpressionRec(Machine m, Expression e, Wires wires)
     {
-        Expression e2 = flPrepExp(Simplifier.simplify(e));
-        return generateExpressionRec(m, e2);
+        String wire = wires.names.get(e);
+        return wire != null ? wire : generateDefinition(m, e, wires);
     }
 
-    private static String generateExpressionRec(Machine m, Expression e)
+    // Ignoring any wire for 'e' itself (but not its operands').
+    private static String generateDefinition(Machine m, Expression e, Wires wires)
     {
         ExpressionKind k = e.getKind();
         if(k == ExpressionKind.CONSTANT)
@@ -207,7 +271,7 @@ public class FLOut
             List<String> floperands = new ArrayList<>();
             for(Expression e2: operands)
             {
-                floperands.add(generateExpressionRec(m, e2));
+                floperands.add(generateExpressionRec(m, e2, wires));
             }
 
             if(operator == Operator.NOT)
@@ -415,6 +479,25 @@ public class FLOut
         return names;
     }
 
+    // Names for the shared subexpressions of the FL-ready expressions,
+    // which are only prepared once.
+    private static class Wires
+    {
+        Map<Expression,Expression> prepped = new IdentityHashMap<>();
+        Map<Expression,String> names = new LinkedHashMap<>();
+
+        Expression prep(Expression e)
+        {
+            Expression done = prepped.get(e);
+            if(done == null)
+            {
+                done = flPrepExp(Simplifier.simplify(e));
+                prepped.put(e, done);
+            }
+            return done;
+        }
+    }
+
     // Transform an expression into one ready to be output as FL.
     // - Turn NAND and NOR into NOT+AND and NOT+OR.
     // - Make every IS_STATE unary.
@@ -434,18 +517,18 @@ public class FLOut
             if(op == Operator.NAND)
             {
                 List<Expression> tmp = new ArrayList<>();
-                tmp.add(new Expression(Operator.AND, operands));
-                return new Expression(Operator.NOT, tmp);
+                tmp.add(Expression.operation(Operator.AND, operands));
+                return Expression.operation(Operator.NOT, tmp);
             }
             else if(op == Operator.NOR)
             {
                 List<Expression> tmp = new ArrayList<>();
-                tmp.add(new Expression(Operator.OR, operands));
-                return new Expression(Operator.NOT, tmp);
+                tmp.add(Expression.operation(Operator.OR, operands));
+                return Expression.operation(Operator.NOT, tmp);
             }
             else
             {
-                return new Expression(op, operands);
+                return Expression.operation(op, operands);
             }
         }
         else if(k == ExpressionKind.STATE_IS)
@@ -453,7 +536,7 @@ public class FLOut
             Collection<State> states = exp.getStates();
             if(states.isEmpty())
             {
-                return new Expression(new Value(false));
+                return Expression.constant(false);
             }
             else if(states.size() == 1)
             {
@@ -466,9 +549,9 @@ public class FLOut
                 {
                     List<State> tmp = new ArrayList<>();
                     tmp.add(st);
-                    operands.add(new Expression(tmp));
+                    operands.add(Expression.stateIs(tmp));
                 }
-                return new Expression(Operator.OR, operands);
+                return Expression.operation(Operator.OR, operands);
             }
         }
         else
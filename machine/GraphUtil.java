@@ -1,15 +1,17 @@
 package machine;
 import java.util.*;
 
+// Nodes and neighbors are visited in the order 'neighbors' iterates them
+// in, so results are deterministic if that is.
 public class GraphUtil<T>
 {
-    private Map<T,Set<T>> graph = new HashMap<T,Set<T>>(); // Neighbor set
+    private Map<T,Set<T>> graph = new LinkedHashMap<T,Set<T>>(); // Neighbor set
 
     public GraphUtil(Map<T,Set<T>> neighbors)
     {
         for(Map.Entry<T,Set<T>> entry: neighbors.entrySet())
         {
-            graph.put(entry.getKey(), new HashSet<T>(entry.getValue()));
+            graph.put(entry.getKey(), new LinkedHashSet<T>(entry.getValue()));
         }
     }
 
@@ -72,7 +74,7 @@ public class GraphUtil<T>
         Set<T> explored = new HashSet<T>();
         List<T> output = new ArrayList<T>();
 
-        Set<T> roots = new HashSet<>(graph.keySet());
+        Set<T> roots = new LinkedHashSet<>(graph.keySet());
         
         for(Map.Entry<T,Set<T>> entry: graph.entrySet())
         {
@@ -2,70 +2,185 @@ package machine;
 
 import java.util.*;
 
+/*
+ * Recorded simulation states, oldest first, in a ring buffer.
+ *
+ * Each entry is packed into bits: for every signal of the machine, whether
+ * the recorded environment had a value for it, and the value. When the
+ * machine's signals change, the entries are repacked for the new ones.
+ * Transition paths are kept as indices into a table of distinct paths.
+ * Recording, unrecording and dropping the oldest entries are O(1) (except
+ * for repacking), and entries are read back by index without copying the
+ * history.
+ *
+ * The history can be limited both in entries and in (estimated) bytes;
+ * the oldest entries go first. The full trace is kept by a TraceStore.
+ */
 public class Historian
 {
     public static final int NO_LIMIT = 0;
-    
+    public static final int INITIAL_CAPACITY = 64;
+    public static final int ENTRY_OVERHEAD_BYTES = 12; // the State reference and path index
+
+    // Path indices that aren't paths
+    private static final int NO_PATH = -1; // remained in the same state
+    private static final int NO_ENVIRONMENT = -2;
+
     private Machine machine;
-    private List<SimulationState> history = new ArrayList<>();
     private int limit = NO_LIMIT;
-    
+    private long byteLimit = NO_LIMIT;
+
+    private List<Signal> signals; // null until the first record
+    private Map<Signal,Integer> signalIndices;
+    private int words; // per entry, 2 bits per signal: known and value
+
+    private State[] states = new State[0];
+    private int[] paths = new int[0]; // into pathList, or NO_PATH or NO_ENVIRONMENT
+    private long[] bits = new long[0];
+    private int start = 0; // index of the oldest entry
+    private int size = 0;
+
+    private List<List<State>> pathList = new ArrayList<>();
+    private Map<List<State>,Integer> pathIndices = new HashMap<>();
+
+    private TraceStore trace;
+
     public Historian(Machine m)
     {
         machine = m;
+        trace = new TraceStore(m);
     }
 
+    // Everything recorded since the last clear(), including what the
+    // limits have dropped from this history (but not what was unrecorded).
+    public TraceStore getTrace() { return trace; }
+
     public void clear()
     {
-        history.clear();
+        trace.clear();
+        signals = null;
+        signalIndices = null;
+        states = new State[0];
+        paths = new int[0];
+        bits = new long[0];
+        pathList.clear();
+        pathIndices.clear();
+        start = 0;
+        size = 0;
     }
-    
+
+    // Copies everything, prefer get().
     public List<SimulationState> getHistory()
     {
-        return new ArrayList<>(history);
+        List<SimulationState> history = new ArrayList<>();
+        for(int i = 0; i < size; i++)
+        {
+            history.add(get(i));
+        }
+        return history;
     }
 
     public int getHistorySize()
     {
-        return history.size();
+        return size;
+    }
+
+    // The i:th entry, 0 being the oldest.
+    public SimulationState get(int i)
+    {
+        State st = getState(i);
+        int path = paths[slot(i)];
+        if(path == NO_ENVIRONMENT)
+        {
+            return new SimulationState(st, null);
+        }
+
+        Environment env = new Environment(st);
+        env.setPath(path == NO_PATH ? null : pathList.get(path));
+        for(Signal s: signals)
+        {
+            Value v = getValue(i, s);
+            if(v != null)
+            {
+                env.setValue(s, v);
+            }
+        }
+        return new SimulationState(st, env);
+    }
+
+    public State getState(int i)
+    {
+        checkIndex(i);
+        return states[slot(i)];
+    }
+
+    // null if the entry has no value for the signal.
+    public Value getValue(int i, Signal s)
+    {
+        checkIndex(i);
+        Integer index = signalIndices == null ? null : signalIndices.get(s);
+        if(index == null)
+        {
+            return null;
+        }
+
+        int base = slot(i) * words;
+        int known = 2 * index;
+        if(!testBit(base, known))
+        {
+            return null;
+        }
+        return new Value(testBit(base, known + 1));
     }
 
-    public String makeWaveform()
+    // Estimated bytes used per entry.
+    public long getEntryBytes()
     {
-        String out = "";
+        return 8L * words + ENTRY_OVERHEAD_BYTES;
+    }
+
+    // Of the latest 'cycles' entries at most.
+    public String makeWaveform(int cycles)
+    {
+        StringBuilder out = new StringBuilder();
+        int first = Math.max(0, size - cycles);
+        if(first > 0)
+        {
+            out.append("(last " + (size - first) + " of " + size + " cycles)\n");
+        }
         for(Signal s: machine.getSignals())
         {
-            out += makeWaveformForSignal(s);
+            makeWaveformForSignal(s, first, out);
         }
-        return out;
+        return out.toString();
     }
 
-    private String makeWaveformForSignal(Signal s)
+    private void makeWaveformForSignal(Signal s, int first, StringBuilder out)
     {
-        String line1 = "";
-        String line2 = "";
+        StringBuilder line1 = new StringBuilder();
+        StringBuilder line2 = new StringBuilder();
 
         String paddedName = s.getName() + " ";
         while(paddedName.length() < 24)
         {
             paddedName = " " + paddedName;
         }
-            
-        line2 = paddedName;
+
+        line2.append(paddedName);
         for(int i = 0; i < line2.length(); i++)
         {
-            line1 += " ";
+            line1.append(" ");
         }
-        
+
         boolean prev = false;
         boolean prevValid = false;
-        for(int i = 0; i < history.size(); i++)
+        for(int i = first; i < size; i++)
         {
-            Environment env = history.get(i).getEnvironment();
-            if(env != null && env.hasValueForSignal(s))
+            Value v = getValue(i, s);
+            if(v != null)
             {
-                boolean cur = env.getValue(s).getBoolean();
-                
+                boolean cur = v.getBoolean();
+
                 if(!prevValid)
                 {
                     prev = cur;
@@ -75,26 +190,26 @@ public class Historian
                 {
                     if(cur)
                     {
-                        line1 += "__";
-                        line2 += "  ";
+                        line1.append("__");
+                        line2.append("  ");
                     }
                     else
                     {
-                        line1 += "  ";
-                        line2 += "\\_";
+                        line1.append("  ");
+                        line2.append("\\_");
                     }
                 }
                 else
                 {
                     if(cur)
                     {
-                        line1 += " _";
-                        line2 += "/ ";
+                        line1.append(" _");
+                        line2.append("/ ");
                     }
                     else
                     {
-                        line1 += "  ";
-                        line2 += "__";
+                        line1.append("  ");
+                        line2.append("__");
                     }
                 }
 
@@ -103,59 +218,264 @@ public class Historian
             }
             else
             {
-                line1 += "  ";
-                line2 += "??";
+                line1.append("  ");
+                line2.append("??");
             }
         }
 
-        return line1 + "\n" + line2 + "\n";
+        out.append(line1).append("\n").append(line2).append("\n");
     }
 
     public SimulationState peek()
     {
-        if(history.isEmpty())
+        if(size == 0)
         {
             return null;
         }
 
-        return history.get(history.size() - 1);
+        return get(size - 1);
     }
-    
+
     public void record(SimulationState sims)
     {
-        history.add(sims);
-        cleanup();
+        if(signals == null || signalsChanged())
+        {
+            startRecording();
+        }
+
+        int max = getMaxEntries();
+        if(max == 0)
+        {
+            trace.record(sims);
+            return;
+        }
+        if(size == max)
+        {
+            dropOldest(1);
+        }
+        if(size == states.length)
+        {
+            grow(max);
+        }
+
+        int slot = slot(size);
+        size++;
+        states[slot] = sims.getState();
+        paths[slot] = pathIndex(sims.getEnvironment());
+
+        pack(sims.getEnvironment(), signals, bits, slot * words);
+        trace.record(sims);
     }
 
+    // Maximum number of entries, NO_LIMIT for none.
     public void setLimit(int limit)
     {
         this.limit = limit;
         cleanup();
     }
 
+    // Maximum (estimated) bytes for all entries, NO_LIMIT for none.
+    public void setByteLimit(long byteLimit)
+    {
+        this.byteLimit = byteLimit;
+        cleanup();
+    }
+
     public SimulationState unrecord()
     {
-        SimulationState toReturn = null;
-        if(!history.isEmpty())
+        if(size == 0)
         {
-            toReturn = history.remove(history.size()-1);
+            return null;
         }
-        
+
+        SimulationState toReturn = get(size - 1);
+        states[slot(size - 1)] = null;
+        size--;
+        trace.unrecord();
         return toReturn;
     }
-    
+
+    // Lay the entries out for the machine's current signals, keeping what
+    // they have for those that were there before.
+    private void startRecording()
+    {
+        List<Signal> oldSignals = signals;
+        Map<Signal,Integer> oldIndices = signalIndices;
+        int oldWords = words;
+
+        signals = machine.getSignals();
+        signalIndices = new HashMap<>();
+        for(int index = 0; index < signals.size(); index++)
+        {
+            signalIndices.put(signals.get(index), index);
+        }
+        words = getWordsPerRow(signals.size());
+
+        if(size == 0)
+        {
+            bits = new long[states.length * words];
+            return;
+        }
+
+        long[] newBits = new long[states.length * words];
+        for(int index = 0; index < signals.size(); index++)
+        {
+            Integer oldIndex = oldIndices.get(signals.get(index));
+            if(oldIndex == null)
+            {
+                continue;
+            }
+            for(int i = 0; i < size; i++)
+            {
+                int slot = slot(i);
+                long known = bits[slot * oldWords + (2 * oldIndex >> 6)] >>> (2 * oldIndex) & 3L;
+                newBits[slot * words + (2 * index >> 6)] |= known << (2 * index);
+            }
+        }
+        bits = newBits;
+        cleanup(); // entries may be bigger
+    }
+
+    private boolean signalsChanged()
+    {
+        List<Signal> current = machine.getSignals();
+        if(current.size() != signals.size())
+        {
+            return true;
+        }
+        for(Signal s: current)
+        {
+            if(!signalIndices.containsKey(s))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int pathIndex(Environment env)
+    {
+        if(env == null)
+        {
+            return NO_ENVIRONMENT;
+        }
+        List<State> path = env.getPath();
+        if(path == null)
+        {
+            return NO_PATH;
+        }
+
+        Integer index = pathIndices.get(path);
+        if(index == null)
+        {
+            index = pathList.size();
+            pathList.add(Collections.unmodifiableList(path));
+            pathIndices.put(pathList.get(index), index);
+        }
+        return index;
+    }
+
+    static int getWordsPerRow(int signalCount)
+    {
+        return Math.max(1, (2 * signalCount + 63) / 64);
+    }
+
+    // Write the known and value bits of the signals in 'env' (which may be
+    // null) to bits[base...].
+    static void pack(Environment env, List<Signal> signals, long[] bits, int base)
+    {
+        Arrays.fill(bits, base, base + getWordsPerRow(signals.size()), 0L);
+        if(env == null)
+        {
+            return;
+        }
+        for(int index = 0; index < signals.size(); index++)
+        {
+            Signal s = signals.get(index);
+            if(env.hasValueForSignal(s))
+            {
+                int bit = 2 * index;
+                bits[base + (bit >> 6)] |= 1L << bit;
+                if(env.getValue(s).getBoolean())
+                {
+                    bits[base + (bit >> 6)] |= 2L << bit;
+                }
+            }
+        }
+    }
+
+    private int getMaxEntries()
+    {
+        long max = limit <= NO_LIMIT ? Integer.MAX_VALUE : limit;
+        if(byteLimit > NO_LIMIT)
+        {
+            max = Math.min(max, byteLimit / getEntryBytes());
+        }
+        // the bits of all entries must fit in one array
+        return (int)Math.min(max, Integer.MAX_VALUE / Math.max(words, 1) - 1);
+    }
+
     private void cleanup()
     {
-        if(limit <= NO_LIMIT)
+        if(signals == null)
         {
             return;
         }
 
-        int tooMuch = history.size() - limit;
-        // inefficient for large cleanups, O(n^2), but I'm in a hurry :P
-        for(int i = 0; i < tooMuch; i++)
+        int max = getMaxEntries();
+        if(size > max)
+        {
+            dropOldest(size - max);
+        }
+    }
+
+    private void dropOldest(int n)
+    {
+        for(int i = 0; i < n; i++)
         {
-            history.remove(0);
+            states[slot(i)] = null;
         }
+        start = slot(n);
+        size -= n;
     }
+
+    // Double the capacity (up to 'max'), with the oldest entry first.
+    private void grow(int max)
+    {
+        int capacity = (int)Math.min(max, Math.max(INITIAL_CAPACITY, 2L * states.length));
+        State[] newStates = new State[capacity];
+        int[] newPaths = new int[capacity];
+        long[] newBits = new long[capacity * words];
+        for(int i = 0; i < size; i++)
+        {
+            newStates[i] = states[slot(i)];
+            newPaths[i] = paths[slot(i)];
+            System.arraycopy(bits, slot(i) * words, newBits, i * words, words);
+        }
+        states = newStates;
+        paths = newPaths;
+        bits = newBits;
+        start = 0;
+    }
+
+    private void checkIndex(int i)
+    {
+        if(i < 0 || i >= size)
+        {
+            throw new IndexOutOfBoundsException("No history entry " + i + " (of " + size + ")");
+        }
+    }
+
+    // Array index of the i:th entry (which may be one past the last one).
+    private int slot(int i)
+    {
+        int slot = start + i;
+        return slot >= states.length ? slot - states.length : slot;
+    }
+
+    private boolean testBit(int base, int bit)
+    {
+        return (bits[base + (bit >> 6)] & (1L << bit)) != 0;
+    }
+
 }
@@ -0,0 +1,464 @@
+package machine;
+import java.util.*;
+
+/*
+ * The code of each state with virtual states inlined, as used by the
+ * analyses and by Model.
+ *
+ * Inlining a virtual state by re-walking its code at every GOTO costs time
+ * exponential in the depth of "diamonds" of virtual states, so instead each
+ * state is summarized once (lazily) and the summary of a virtual state is
+ * reused at every GOTO to it. The expressions in summaries are shared
+ * between the states that reach them, making them DAGs rather than trees.
+ *
+ * Summaries are kept between analyses (see Machine.analyze) and only redone
+ * for states whose compiled code or virtualness changed, or that GOTO
+ * states whose summaries were redone or whose virtualness changed.
+ *
+ * Preconditions: all states compiled, no cycles of virtual states.
+ */
+public class InlinedStates
+{
+    private Map<State,Summary> summaries = new HashMap<>();
+    private Set<State> checked = new HashSet<>(); // summaries validated this analysis
+    private Map<Expression,Expression> simplified = newMemo(); // this analysis, see Simplifier
+
+    private static class Summary
+    {
+        public Statement root;
+        public boolean virtual;
+        public Map<State,Summary> reachedVirtuals = new HashMap<>(); // GOTO destinations
+        public Set<State> reachedStates = new HashSet<>(); // other GOTO destinations
+
+        // Filled in on demand
+        public Outputs outputs;
+        public Map<Signal,Set<Signal>> emissionDependencies;
+        public Map<Signal,Expression> emissions;
+        public Map<List<State>,Expression> transitions;
+        public List<ModelTransition> modelTransitions;
+        public Map<Signal,Expression> statewiseTerms;
+    }
+
+    // Call at the start of each analysis, once the preconditions hold.
+    // Afterwards, summaries of the given states can be used from several
+    // threads at once (see Parallel): each summary fills in its own aspects,
+    // under its own lock, and only locks the summaries it GOTOs meanwhile,
+    // which can't deadlock since there are no cycles of virtual states.
+    void update(List<State> states)
+    {
+        summaries.keySet().retainAll(new HashSet<>(states));
+        checked.clear();
+        simplified = newMemo();
+
+        for(State st: states)
+        {
+            getSummary(st);
+        }
+    }
+
+    // How many times each signal is emitted and how many GOTOs to
+    // non-virtual states there are, at most, in one cycle (see CheckOverlap).
+    Outputs getOutputs(State st)
+    {
+        Summary sum = getSummary(st);
+        synchronized(sum)
+        {
+            if(sum.outputs == null)
+            {
+                sum.outputs = tabulate(sum.root, new Outputs());
+            }
+            return sum.outputs;
+        }
+    }
+
+    // For each emitted signal, the signals that its emitted expression and
+    // the conditions around the emission depend on.
+    public Map<Signal,Set<Signal>> getEmissionDependencies(State st)
+    {
+        Summary sum = getSummary(st);
+        synchronized(sum)
+        {
+            if(sum.emissionDependencies == null)
+            {
+                sum.emissionDependencies = new HashMap<>();
+                exploreDependencies(sum.root, new HashSet<>(), sum.emissionDependencies);
+            }
+            return sum.emissionDependencies;
+        }
+    }
+
+    // For each emitted signal, its value when in this state: the emitted
+    // expression and'ed with the conditions leading to the emission.
+    // Don't mutate the result.
+    public Map<Signal,Expression> getEmissions(State st)
+    {
+        Summary sum = getSummary(st);
+        synchronized(sum)
+        {
+            if(sum.emissions == null)
+            {
+                sum.emissions = collectEmissions(sum.root, new ArrayList<>());
+            }
+            return sum.emissions;
+        }
+    }
+
+    // Paths (this state, intermediate virtuals, next) to the conditions
+    // under which they're taken, in order of first appearance. Distinct ways
+    // of taking the same path are or'ed together. Don't mutate the result.
+    public Map<List<State>,Expression> getTransitions(State st)
+    {
+        Summary sum = getSummary(st);
+        synchronized(sum)
+        {
+            if(sum.transitions == null)
+            {
+                sum.transitions = new LinkedHashMap<>();
+                collectTransitions(st, sum.root, new ArrayList<>(), sum.transitions);
+            }
+            return sum.transitions;
+        }
+    }
+
+    // getTransitions() as minimized ModelTransitions. Don't mutate the result.
+    public List<ModelTransition> getModelTransitions(State st)
+    {
+        Summary sum = getSummary(st);
+        synchronized(sum)
+        {
+            if(sum.modelTransitions == null)
+            {
+                sum.modelTransitions = new ArrayList<>();
+                for(Map.Entry<List<State>,Expression> entry: getTransitions(st).entrySet())
+                {
+                    sum.modelTransitions.add(new ModelTransition(entry.getKey(), Simplifier.minimize(entry.getValue(), simplified)));
+                }
+            }
+            return sum.modelTransitions;
+        }
+    }
+
+    // For each emitted signal, (and (state_is st) value) minimized, i.e.
+    // this state's part of the signal's value. Don't mutate the result.
+    public Map<Signal,Expression> getStatewiseTerms(State st)
+    {
+        Summary sum = getSummary(st);
+        synchronized(sum)
+        {
+            if(sum.statewiseTerms == null)
+            {
+                sum.statewiseTerms = new HashMap<>();
+                for(Map.Entry<Signal,Expression> entry: getEmissions(st).entrySet())
+                {
+                    List<Expression> conjuncts = new ArrayList<>();
+                    List<State> states = new ArrayList<>();
+                    states.add(st);
+                    conjuncts.add(Expression.stateIs(states)); // in state st...
+                    conjuncts.add(entry.getValue()); // and this is true...
+                    sum.statewiseTerms.put(entry.getKey(), Simplifier.minimize(Expression.operation(Operator.AND, conjuncts), simplified));
+                }
+            }
+            return sum.statewiseTerms;
+        }
+    }
+
+    private static Map<Expression,Expression> newMemo()
+    {
+        return Collections.synchronizedMap(new IdentityHashMap<>());
+    }
+
+    private Summary getSummary(State st)
+    {
+        Summary sum = summaries.get(st);
+        if(checked.contains(st))
+        {
+            return sum;
+        }
+
+        if(sum == null || !isValid(sum, st))
+        {
+            sum = new Summary();
+            sum.root = st.getRootStatement();
+            sum.virtual = st.isVirtual();
+            for(State dest: sum.root.getGOTOs())
+            {
+                if(dest.isVirtual())
+                {
+                    sum.reachedVirtuals.put(dest, getSummary(dest));
+                }
+                else
+                {
+                    sum.reachedStates.add(dest);
+                }
+            }
+            summaries.put(st, sum);
+        }
+
+        checked.add(st);
+        return sum;
+    }
+
+    private boolean isValid(Summary sum, State st)
+    {
+        if(sum.root != st.getRootStatement() || sum.virtual != st.isVirtual())
+        {
+            return false;
+        }
+
+        for(State dest: sum.reachedStates)
+        {
+            if(dest.isVirtual())
+            {
+                return false;
+            }
+        }
+
+        for(Map.Entry<State,Summary> entry: sum.reachedVirtuals.entrySet())
+        {
+            State dest = entry.getKey();
+            if(!dest.isVirtual() || getSummary(dest) != entry.getValue())
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Outputs tabulate(Statement stm, Outputs out)
+    {
+        StatementKind k = stm.getKind();
+
+        if(k == StatementKind.GROUP)
+        {
+            for(Statement stm2: stm.getStatements())
+            {
+                tabulate(stm2, out);
+            }
+        }
+        else if(k == StatementKind.EMIT)
+        {
+            out.addEmit(stm.getSignal(), 1);
+        }
+        else if(k == StatementKind.COND)
+        {
+            Outputs outTrue = tabulate(stm.getTrueBranch(), new Outputs());
+            Outputs outFalse = tabulate(stm.getFalseBranch(), new Outputs());
+            Outputs union = outTrue.union(outFalse);
+            out.add(union);
+        }
+        else if(k == StatementKind.GOTO)
+        {
+            State dest = stm.getDestination();
+            if(dest.isVirtual())
+            {
+                out.add(getOutputs(dest));
+            }
+            else
+            {
+                out.addGoto(1);
+            }
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+
+        return out;
+    }
+
+    // Keeping track of conditionals we're inside of (the "context"),
+    // since they are dependencies for emitted signals too.
+    private void exploreDependencies(Statement stm, Set<Signal> context, Map<Signal,Set<Signal>> out)
+    {
+        StatementKind k = stm.getKind();
+
+        if(k == StatementKind.GROUP)
+        {
+            for(Statement stm2: stm.getStatements())
+            {
+                exploreDependencies(stm2, context, out);
+            }
+        }
+        else if(k == StatementKind.EMIT)
+        {
+            Set<Signal> deps = getDependencySet(stm.getSignal(), out);
+            deps.addAll(stm.getEmittedExp().getDependencies());
+            deps.addAll(context);
+        }
+        else if(k == StatementKind.COND)
+        {
+            Set<Signal> newContext = new HashSet<Signal>(context);
+            newContext.addAll(stm.getCondition().getDependencies());
+            exploreDependencies(stm.getTrueBranch(), newContext, out);
+            exploreDependencies(stm.getFalseBranch(), newContext, out);
+        }
+        else if(k == StatementKind.GOTO)
+        {
+            State dest = stm.getDestination();
+            if(dest.isVirtual())
+            {
+                for(Map.Entry<Signal,Set<Signal>> entry: getEmissionDependencies(dest).entrySet())
+                {
+                    Set<Signal> deps = getDependencySet(entry.getKey(), out);
+                    deps.addAll(entry.getValue());
+                    deps.addAll(context);
+                }
+            }
+            // Nothing to do for GOTO to normal states; no information flows.
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+    }
+
+    private static Set<Signal> getDependencySet(Signal s, Map<Signal,Set<Signal>> deps)
+    {
+        Set<Signal> set = deps.get(s);
+        if(set == null)
+        {
+            set = new HashSet<>();
+            deps.put(s, set);
+        }
+        return set;
+    }
+
+    private Map<Signal,Expression> collectEmissions(Statement stm, List<Expression> conditions)
+    {
+        StatementKind k = stm.getKind();
+        Map<Signal,Expression> out = new HashMap<>();
+
+        if(k == StatementKind.GROUP)
+        {
+            for(Statement stm2: stm.getStatements())
+            {
+                for(Map.Entry<Signal,Expression> entry: collectEmissions(stm2, conditions).entrySet())
+                {
+                    if(out.containsKey(entry.getKey()))
+                    {
+                        throw new Error("Internal error: uncaught ambiguous signal value for signal " + entry.getKey().getName() + ".");
+                    }
+                    out.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        else if(k == StatementKind.EMIT)
+        {
+            List<Expression> operands = new ArrayList<>(conditions);
+            operands.add(stm.getEmittedExp());
+            out.put(stm.getSignal(), Expression.operation(Operator.AND, operands));
+        }
+        else if(k == StatementKind.GOTO)
+        {
+            State dest = stm.getDestination();
+            if(dest.isVirtual())
+            {
+                for(Map.Entry<Signal,Expression> entry: getEmissions(dest).entrySet())
+                {
+                    out.put(entry.getKey(), and(conditions, entry.getValue()));
+                }
+            }
+        }
+        else if(k == StatementKind.COND)
+        {
+            Map<Signal,Expression> caseTrue = collectEmissions(stm.getTrueBranch(), withCondition(conditions, stm.getCondition(), true));
+            Map<Signal,Expression> caseFalse = collectEmissions(stm.getFalseBranch(), withCondition(conditions, stm.getCondition(), false));
+
+            out.putAll(caseTrue);
+            for(Map.Entry<Signal,Expression> entry: caseFalse.entrySet())
+            {
+                out.merge(entry.getKey(), entry.getValue(), InlinedStates::or);
+            }
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+
+        return out;
+    }
+
+    private void collectTransitions(State owner, Statement stm, List<Expression> conditions, Map<List<State>,Expression> out)
+    {
+        StatementKind k = stm.getKind();
+
+        if(k == StatementKind.GROUP)
+        {
+            for(Statement stm2: stm.getStatements())
+            {
+                collectTransitions(owner, stm2, conditions, out);
+            }
+        }
+        else if(k == StatementKind.EMIT)
+        {
+            // no transitions
+        }
+        else if(k == StatementKind.GOTO)
+        {
+            State dest = stm.getDestination();
+
+            if(dest.isVirtual())
+            {
+                for(Map.Entry<List<State>,Expression> entry: getTransitions(dest).entrySet())
+                {
+                    List<State> path = new ArrayList<>();
+                    path.add(owner);
+                    path.addAll(entry.getKey());
+                    out.merge(path, and(conditions, entry.getValue()), InlinedStates::or);
+                }
+            }
+            else
+            {
+                List<State> path = new ArrayList<>();
+                path.add(owner);
+                path.add(dest);
+                out.merge(path, Expression.operation(Operator.AND, conditions), InlinedStates::or);
+            }
+        }
+        else if(k == StatementKind.COND)
+        {
+            collectTransitions(owner, stm.getTrueBranch(), withCondition(conditions, stm.getCondition(), true), out);
+            collectTransitions(owner, stm.getFalseBranch(), withCondition(conditions, stm.getCondition(), false), out);
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+    }
+
+    private static List<Expression> withCondition(List<Expression> conditions, Expression cond, boolean holds)
+    {
+        List<Expression> result = new ArrayList<>(conditions);
+        if(holds)
+        {
+            result.add(cond);
+        }
+        else
+        {
+            List<Expression> tmp = new ArrayList<>();
+            tmp.add(cond);
+            result.add(Expression.operation(Operator.NOT, tmp));
+        }
+        return result;
+    }
+
+    private static Expression and(List<Expression> conditions, Expression e)
+    {
+        if(conditions.isEmpty())
+        {
+            return e;
+        }
+        List<Expression> operands = new ArrayList<>(conditions);
+        operands.add(e);
+        return Expression.operation(Operator.AND, operands);
+    }
+
+    private static Expression or(Expression a, Expression b)
+    {
+        List<Expression> operands = new ArrayList<>();
+        operands.add(a);
+        operands.add(b);
+        return Expression.operation(Operator.OR, operands);
+    }
+}
@@ -36,6 +36,39 @@ public class Issue
     public boolean isError() { return !warning; }
     public boolean isWarning() { return warning; }
 
+    // The same issue with signals and states replaced according to the maps.
+    Issue translate(Map<Signal,Signal> signalMap, Map<State,State> stateMap)
+    {
+        List<Signal> ss = new ArrayList<>();
+        for(Signal s: signals)
+        {
+            ss.add(signalMap.getOrDefault(s, s));
+        }
+
+        List<State> sts = new ArrayList<>();
+        for(State st: states)
+        {
+            sts.add(stateMap.getOrDefault(st, st));
+        }
+
+        Issue i = new Issue(kind, message, ss, sts);
+        i.signalsCyclic = signalsCyclic;
+        i.statesCyclic = statesCyclic;
+        i.warning = warning;
+        return i;
+    }
+
+    // An issue as saved by ModelCache.
+    static Issue restore(IssueKind kind, String message, List<Signal> signals, List<State> states,
+                         boolean signalsCyclic, boolean statesCyclic, boolean warning)
+    {
+        Issue i = new Issue(kind, message, signals, states);
+        i.signalsCyclic = signalsCyclic;
+        i.statesCyclic = statesCyclic;
+        i.warning = warning;
+        return i;
+    }
+
     public String toString()
     {
         String prefix = isError() ? "ERROR" : "WARNING";
@@ -1,5 +1,6 @@
 package machine;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 
 /*
  * - Compile all signals and states. (Analysis easiest when everything is compiled.)
@@ -27,6 +28,10 @@ public class Machine implements Named
     
     // Only valid when status > UNCOMPILED
     private DependencyGraph dgraph;
+    private InlinedStates inlined; // also null if there are virtual state cycles
+    private InlinedStates inlinedCache = new InlinedStates(); // kept between analyses
+    private SymbolTable symbols = new SymbolTable();
+    private CompileMemo compileMemo = new CompileMemo(this); // kept between compilations
 
     // Sorting for the lists
     private Comparator<Signal> signalComp = new CascadingComparator<>(
@@ -43,7 +48,9 @@ public class Machine implements Named
     // Warning: the resulting set should not be mutated!
     public Set<State> accessCoarseGraph(State st) { return coarseGraph.get(st); }
     
+    public CompileMemo getCompileMemo() { return compileMemo; }
     public DependencyGraph getDependencyGraph() { return dgraph; }
+    public InlinedStates getInlinedStates() { return inlined; }
     public State getInitialState() { return initialState; }
     public List<Issue> getIssues() { return new ArrayList<>(issues); }
     public Model getModel() { return model; }
@@ -54,54 +61,67 @@ public class Machine implements Named
     public MachineStatus getStatus() { return status; }
     public void setInitialState(State st) { initialState = st; }
     public void setName(String n) { name = n; }
+    public boolean hasState(State st) { return states.contains(st); }
     
     public void addSignal(Signal s)
     {
-        signals.add(s);
-        Collections.sort(signals, signalComp);
+        addSignals(Collections.singletonList(s));
     }
 
     public void addState(State s)
     {
-        if(initialState == null)
+        addStates(Collections.singletonList(s));
+    }
+
+    // Several at once, sorting the list only once (for loading).
+    public void addSignals(Collection<Signal> ss)
+    {
+        signals.addAll(ss);
+        Collections.sort(signals, signalComp);
+        for(Signal s: ss)
         {
-            initialState = s;
+            symbols.addSignal(s);
+            updateReferences(s.getCode());
         }
-        states.add(s);
-        Collections.sort(states, stateComp);
     }
 
-    public Signal findSignal(String name)
+    // The first state added to an empty machine is the initial one.
+    public void addStates(Collection<State> sts)
     {
-        // TODO make more efficient
-        for(Signal s: signals)
+        if(initialState == null && !sts.isEmpty())
         {
-            if(s.getName().equals(name))
-            {
-                return s;
-            }
+            initialState = sts.iterator().next();
+        }
+        states.addAll(sts);
+        Collections.sort(states, stateComp);
+        for(State st: sts)
+        {
+            symbols.addState(st);
+            updateReferences(st.getCode());
         }
-        return null;
+    }
+
+    public Signal findSignal(String name)
+    {
+        return symbols.findSignal(name);
     }
 
     public State findState(String name)
     {
-        // TODO make more efficient
-        for(State st: states)
-        {
-            if(st.getName().equals(name))
-            {
-                return st;
-            }
-        }
-        return null;
+        return symbols.findState(name);
     }
+
+    // Code whose last compilation referred to the signal/state.
+    public Set<Code<?>> getReferrers(Signal s) { return symbols.getReferrers(s); }
+    public Set<Code<?>> getReferrers(State st) { return symbols.getReferrers(st); }
     
     public void removeSignal(Signal s)
     { 
         breakSignal(s);
 
         signals.remove(s);
+        symbols.removeSignal(s);
+        symbols.clearReferences(s.getCode());
     }
 
     public void removeState(State st)
@@ -109,49 +129,61 @@ public class Machine implements Named
         breakState(st);
         
         states.remove(st);
+        symbols.removeState(st);
+        symbols.clearReferences(st.getCode());
     }
 
+    // Code referring to the signal is rewritten to use the new name.
     public void renameSignal(Signal s, String newName)
     {
-        // TODO: fix links to it
-        breakSignal(s);
+        String oldName = s.getName();
+        Set<Code<?>> referrers = symbols.getReferrers(s);
+        symbols.renameSignal(s, oldName, newName);
         s.setName(newName);
+        relink(referrers, oldName, newName);
     }
 
+    // Code referring to the state is rewritten to use the new name.
     public void renameState(State st, String newName)
     {
-        // TODO: fix links to it
-        breakState(st);
+        String oldName = st.getName();
+        Set<Code<?>> referrers = symbols.getReferrers(st);
+        symbols.renameState(st, oldName, newName);
         st.setName(newName);
+        relink(referrers, oldName, newName);
+    }
+
+    // Called by Code when it compiles or resets, possibly from several
+    // threads at once (see compileAll).
+    synchronized void updateReferences(Code<?> code)
+    {
+        if(code.isCompiled())
+        {
+            symbols.setReferences(code, code.getReferencedSignals(), code.getReferencedStates());
+        }
+        else
+        {
+            symbols.clearReferences(code);
+        }
     }
 
     // Important to call after any changes to the signals/states.
     // Try to compile everything, and then...
     // Check compilation status of signals/states,
     // build dependency graph, and update status.
+    // Gives up with a CancellationException if the thread is interrupted.
     public void analyze()
     {
         status = MachineStatus.UNCOMPILED;
         issues.clear();
         coarseGraph.clear();
         dgraph = null;
+        inlined = null;
         model = null;
 
-        // Bandaid fix to solve renaming-sorting issue.
-        Collections.sort(signals, signalComp);
-        Collections.sort(states, stateComp);
-        
-        compileAll();
-        
-        // Phase 0: generate coarse graph for display purposes
-        coarseGraph.clear();
-        for(State st: states)
-        {
-            if(st.getCode().isCompiled())
-            {
-                coarseGraph.put(st, st.getRootStatement().getGOTOs());
-            }
-        }
+        // Phase 0: compile, and generate coarse graph for display purposes
+        compile();
+        checkInterrupted();
 
         // Phase 0.5: check for name conflicts
         if(registerIssues(CheckNameConflicts.checkNameConflicts(this),
@@ -172,6 +204,7 @@ public class Machine implements Named
         {
             return;
         }
+        checkInterrupted();
 
         // Phase 2: check for cycles in virtual states
         if(registerIssues(CheckVCycles.checkVCycles(this),
@@ -179,8 +212,11 @@ public class Machine implements Named
         {
             return;
         }
+        checkInterrupted();
         
         // Phase 3: determine signal dependencies, check for cycles there
+        inlinedCache.update(states);
+        inlined = inlinedCache;
         dgraph = new DependencyGraph(this);
         List<List<Signal>> cycles = dgraph.getCycles();
         if(!cycles.isEmpty())
@@ -192,6 +228,7 @@ public class Machine implements Named
             status = MachineStatus.TROUBLESOME;
             return;
         }
+        checkInterrupted();
 
         // Phase 4: check for overlap issues
         if(registerIssues(CheckOverlap.checkOverlap(this),
@@ -199,6 +236,7 @@ public class Machine implements Named
         {
             return;
         }
+        checkInterrupted();
 
         // Phase 5: warnings for suspicious choices, don't abort
         registerIssues(CheckWarnings.checkWarnings(this), status);
@@ -218,6 +256,38 @@ public class Machine implements Named
         return;
     }
 
+    // Only the cheap part of analyze(): compile what isn't compiled and
+    // regenerate the coarse graph. Status, issues and model are left alone,
+    // e.g. until adoptAnalysis() with results from a ShadowMachine.
+    public void compile()
+    {
+        // Bandaid fix to solve renaming-sorting issue.
+        Collections.sort(signals, signalComp);
+        Collections.sort(states, stateComp);
+        
+        compileAll();
+        
+        coarseGraph.clear();
+        for(State st: states)
+        {
+            if(st.getCode().isCompiled())
+            {
+                coarseGraph.put(st, st.getRootStatement().getGOTOs());
+            }
+        }
+    }
+
+    // Take the results of analyzing a snapshot of this machine, instead of
+    // calling analyze(). Only valid if nothing has changed since the snapshot.
+    public void adoptAnalysis(MachineAnalysis a)
+    {
+        status = a.getStatus();
+        issues = a.getIssues();
+        model = a.getModel();
+        dgraph = null;
+        inlined = null;
+    }
+
     private boolean registerIssues(List<Issue> maybeIssues, MachineStatus ifSo)
     {
         issues.addAll(maybeIssues);
@@ -229,17 +299,28 @@ public class Machine implements Named
         return false;
     }
 
+    // Lets analysis on a worker thread be abandoned between phases.
+    private void checkInterrupted()
+    {
+        if(Thread.currentThread().isInterrupted())
+        {
+            throw new CancellationException("Analysis of " + name + " interrupted");
+        }
+    }
+
     // Try to compile any uncompiled signals/states.
+    // Compilation only reads the machine (besides updateReferences), so the
+    // code is compiled in parallel.
     private boolean compileAll()
     {
-        boolean success = true;
+        List<Code<?>> uncompiled = new ArrayList<>();
 
         for(Signal s: signals)
         {
             if(s.getKind() == SignalKind.EXPRESSION
                && !s.getCode().isCompiled())
             {
-                success = s.getCode().compile() && success;
+                uncompiled.add(s.getCode());
             }
         }
         
@@ -247,30 +328,26 @@ public class Machine implements Named
         {
             if(!st.getCode().isCompiled())
             {
-                success = st.getCode().compile() && success;
+                uncompiled.add(st.getCode());
             }
         }
 
+        compileMemo.trim(signals.size() + states.size());
+        boolean success = true;
+        for(boolean compiled: Parallel.map(uncompiled, code -> code.compile()))
+        {
+            success = compiled && success;
+        }
         return success;
     }
 
     private void breakSignal(Signal s)
     {
-        for(Signal s2: signals)
-        {
-            if(s2 != s && s2.getCode().isCompiled()
-               && s2.getExpression().getReferencedSignals().contains(s))
-            {
-                s2.getCode().reset();
-            }
-        }
-
-        for(State st: states)
+        for(Code<?> code: symbols.getReferrers(s))
         {
-            if(st.getCode().isCompiled()
-               && st.getRootStatement().getReferencedSignals().contains(s))
+            if(code != s.getCode())
             {
-                st.getCode().reset();
+                code.reset();
             }
         }
     }
@@ -282,22 +359,40 @@ public class Machine implements Named
             initialState = null;
         }
         
-        for(Signal s2: signals)
+        for(Code<?> code: symbols.getReferrers(st))
         {
-            if(s2.getCode().isCompiled()
-               && s2.getExpression().getReferencedStates().contains(st))
+            if(code != st.getCode())
             {
-                s2.getCode().reset();
+                code.reset();
             }
         }
-        
-        for(State st2: states)
+    }
+
+    // After a rename: rewrite 'oldName' to 'newName' in the referring code,
+    // and recompile it. Code that then doesn't refer to the same signals and
+    // states as before (e.g. because the new name is taken) gets its old
+    // source back, and fails to compile until fixed by hand.
+    private void relink(Set<Code<?>> referrers, String oldName, String newName)
+    {
+        for(Code<?> code: referrers)
         {
-            if(st2 != st && st2.getCode().isCompiled()
-               && st2.getRootStatement().getReferencedStates().contains(st))
+            Set<Signal> signalsBefore = code.getReferencedSignals();
+            Set<State> statesBefore = code.getReferencedStates();
+            String before = code.getSource();
+            String after = SymbolTable.rewriteName(before, oldName, newName);
+
+            if(after != null)
             {
-                st2.getCode().reset();
+                code.setSource(after);
+                if(code.compile()
+                   && code.getReferencedSignals().equals(signalsBefore)
+                   && code.getReferencedStates().equals(statesBefore))
+                {
+                    continue;
+                }
             }
+
+            code.setSource(before);
         }
     }
 
@@ -340,16 +435,20 @@ public class Machine implements Named
         Machine m = new Machine(name);
 
         List<SExp> signalExps = Unpack.getListItem(content, "signals", false, null);
+        List<Signal> signals = new ArrayList<>();
         for(SExp signalExp: signalExps)
         {
-            m.addSignal(Signal.fromSExp(signalExp, m));
+            signals.add(Signal.fromSExp(signalExp, m));
         }
+        m.addSignals(signals);
 
         List<SExp> stateExps = Unpack.getListItem(content, "states", false, null);
+        List<State> states = new ArrayList<>();
         for(SExp stateExp: stateExps)
         {
-            m.addState(State.fromSExp(stateExp, m));
+            states.add(State.fromSExp(stateExp, m));
         }
+        m.addStates(states);
 
         String initialStateName = Unpack.getStringItem(content, "initial", true, null);
         if(initialStateName != null)
@@ -0,0 +1,22 @@
+package machine;
+import java.util.*;
+
+// The outcome of Machine.analyze(), in a form that can be handed to
+// another Machine with the same signals and states (see ShadowMachine).
+public class MachineAnalysis
+{
+    private MachineStatus status;
+    private List<Issue> issues;
+    private Model model; // null unless HAPPY
+
+    public MachineAnalysis(MachineStatus status, List<Issue> issues, Model model)
+    {
+        this.status = status;
+        this.issues = new ArrayList<>(issues);
+        this.model = model;
+    }
+
+    public List<Issue> getIssues() { return new ArrayList<>(issues); }
+    public Model getModel() { return model; }
+    public MachineStatus getStatus() { return status; }
+}
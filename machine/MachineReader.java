@@ -0,0 +1,332 @@
+package machine;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Loads .fsm files, and binary ones (see BinaryFSM). A text file in the
+ * form Machine.toSExp writes is decoded straight from its tokens into
+ * Signals and States, without building the SExp tree and string maps
+ * first. Anything else is handed to SExpParser and Machine.fromSExp, so
+ * broken files fail with the same errors as ever.
+ *
+ * Keeps the time spent in each stage of the last load, for reporting.
+ */
+public class MachineReader
+{
+    private Charset charset;
+    private long ioNanos, tokenizeNanos, decodeNanos;
+    private boolean direct; // last load didn't need the SExp path
+    private boolean binary; // last load was a BinaryFSM
+    private boolean strayTokens; // after the machine, in the last load
+
+    public MachineReader()
+    {
+        this(StandardCharsets.UTF_8);
+    }
+
+    public MachineReader(Charset charset)
+    {
+        this.charset = charset;
+    }
+
+    public long getIONanos() { return ioNanos; }
+    public long getTokenizeNanos() { return tokenizeNanos; }
+    public long getDecodeNanos() { return decodeNanos; }
+    public boolean wasBinary() { return binary; }
+    public boolean wasDirect() { return direct; }
+    public boolean hasStrayTokens() { return strayTokens; }
+
+    public String getTimings()
+    {
+        if(binary)
+        {
+            return "io " + millis(ioNanos) + " ms, decode " + millis(decodeNanos) + " ms (binary)";
+        }
+        return "io " + millis(ioNanos) + " ms, tokenize " + millis(tokenizeNanos) + " ms, decode " + millis(decodeNanos) + " ms" +
+            (direct ? "" : " (via SExp)");
+    }
+
+    public Machine read(File f) throws IOException
+    {
+        return read(f.toPath());
+    }
+
+    public Machine read(Path p) throws IOException
+    {
+        long t = System.nanoTime();
+        byte[] bytes = Files.readAllBytes(p);
+        if(BinaryFSM.isBinary(bytes))
+        {
+            long t1 = System.nanoTime();
+            Machine m = BinaryFSM.read(ByteBuffer.wrap(bytes));
+            ioNanos = t1 - t;
+            tokenizeNanos = 0;
+            decodeNanos = System.nanoTime() - t1;
+            binary = direct = true;
+            strayTokens = false;
+            return m;
+        }
+
+        Machine m = decode(new String(bytes, charset));
+        ioNanos = System.nanoTime() - t - tokenizeNanos - decodeNanos;
+        return m;
+    }
+
+    public Machine decode(CharSequence text)
+    {
+        ioNanos = 0;
+        binary = false;
+        long t0 = System.nanoTime();
+        List<Token> tokens = new Tokenizer(text).tokenize();
+        long t1 = System.nanoTime();
+        tokenizeNanos = t1 - t0;
+
+        TokenCursor in = new TokenCursor(tokens);
+        Machine m;
+        try
+        {
+            m = decodeMachine(in);
+            direct = true;
+        }
+        catch(Fallback e)
+        {
+            direct = false;
+            in = new TokenCursor(tokens);
+            m = Machine.fromSExp(new SExpParser(in).parse());
+        }
+        strayTokens = !in.isEmpty();
+        decodeNanos = System.nanoTime() - t1;
+        return m;
+    }
+
+    private static Machine decodeMachine(TokenCursor in)
+    {
+        Machine m = new Machine(null);
+        String name = null;
+        String initial = null;
+        List<Signal> signals = null;
+        List<State> states = null;
+
+        expect(in, TokenKind.OPEN);
+        while(!atClose(in))
+        {
+            String key = openPair(in);
+            switch(key)
+            {
+            case "name":
+                name = expect(in, TokenKind.STRING).getText();
+                break;
+            case "initial":
+                initial = expect(in, TokenKind.STRING).getText();
+                break;
+            case "signals":
+                signals = new ArrayList<>();
+                expect(in, TokenKind.OPEN);
+                while(!atClose(in))
+                {
+                    signals.add(decodeSignal(in, m));
+                }
+                expect(in, TokenKind.CLOSE);
+                break;
+            case "states":
+                states = new ArrayList<>();
+                expect(in, TokenKind.OPEN);
+                while(!atClose(in))
+                {
+                    states.add(decodeState(in, m));
+                }
+                expect(in, TokenKind.CLOSE);
+                break;
+            default:
+                skip(in);
+            }
+            expect(in, TokenKind.CLOSE);
+        }
+        expect(in, TokenKind.CLOSE);
+
+        if(name == null || signals == null || states == null)
+        {
+            throw Fallback.INSTANCE;
+        }
+
+        m.setName(name);
+        m.addSignals(signals);
+        m.addStates(states);
+        if(initial != null)
+        {
+            State st = m.findState(initial);
+            if(st != null)
+            {
+                m.setInitialState(st);
+            }
+        }
+        return m;
+    }
+
+    private static Signal decodeSignal(TokenCursor in, Machine m)
+    {
+        String name = null;
+        SignalKind kind = null;
+        String description = null;
+        String code = null;
+        boolean internal = false;
+        int priority = 0;
+
+        expect(in, TokenKind.OPEN);
+        while(!atClose(in))
+        {
+            String key = openPair(in);
+            switch(key)
+            {
+            case "name":
+                name = expect(in, TokenKind.STRING).getText();
+                break;
+            case "kind":
+                kind = SignalKind.fromAtom(expect(in, TokenKind.ATOM).getText());
+                if(kind == null)
+                {
+                    throw Fallback.INSTANCE;
+                }
+                break;
+            case "description":
+                description = expect(in, TokenKind.STRING).getText();
+                break;
+            case "code":
+                code = expect(in, TokenKind.STRING).getText();
+                break;
+            case "internal":
+                internal = expect(in, TokenKind.INT).i != 0;
+                break;
+            case "priority":
+                priority = expect(in, TokenKind.INT).i;
+                break;
+            default:
+                skip(in);
+            }
+            expect(in, TokenKind.CLOSE);
+        }
+        expect(in, TokenKind.CLOSE);
+
+        if(name == null || kind == null || description == null || code == null)
+        {
+            throw Fallback.INSTANCE;
+        }
+
+        Signal s = new Signal(name, kind, m);
+        s.setDescription(description);
+        s.getCode().setSource(code);
+        s.setInternal(internal);
+        s.setPriority(priority);
+        return s;
+    }
+
+    private static State decodeState(TokenCursor in, Machine m)
+    {
+        String name = null;
+        String description = null;
+        Boolean virtual = null;
+        Integer x = null, y = null;
+        String code = null;
+
+        expect(in, TokenKind.OPEN);
+        while(!atClose(in))
+        {
+            String key = openPair(in);
+            switch(key)
+            {
+            case "name":
+                name = expect(in, TokenKind.STRING).getText();
+                break;
+            case "description":
+                description = expect(in, TokenKind.STRING).getText();
+                break;
+            case "virtual":
+                virtual = expect(in, TokenKind.INT).i != 0;
+                break;
+            case "x":
+                x = expect(in, TokenKind.INT).i;
+                break;
+            case "y":
+                y = expect(in, TokenKind.INT).i;
+                break;
+            case "code":
+                code = expect(in, TokenKind.STRING).getText();
+                break;
+            default:
+                skip(in);
+            }
+            expect(in, TokenKind.CLOSE);
+        }
+        expect(in, TokenKind.CLOSE);
+
+        if(name == null || description == null || virtual == null || x == null || y == null || code == null)
+        {
+            throw Fallback.INSTANCE;
+        }
+
+        State st = new State(name, m);
+        st.setDescription(description);
+        st.setVirtual(virtual);
+        st.getCode().setSource(code);
+        st.setPosition(x, y);
+        return st;
+    }
+
+    // The opening of a ("key" value) pair, up to the value.
+    private static String openPair(TokenCursor in)
+    {
+        expect(in, TokenKind.OPEN);
+        return expect(in, TokenKind.STRING).getText();
+    }
+
+    // Past a value we don't use.
+    private static void skip(TokenCursor in)
+    {
+        if(in.isEmpty() || in.peek().kind == TokenKind.CLOSE)
+        {
+            throw Fallback.INSTANCE;
+        }
+        try
+        {
+            new SExpParser(in).parse();
+        }
+        catch(ParseError e)
+        {
+            throw Fallback.INSTANCE;
+        }
+    }
+
+    private static boolean atClose(TokenCursor in)
+    {
+        return !in.isEmpty() && in.peek().kind == TokenKind.CLOSE;
+    }
+
+    private static Token expect(TokenCursor in, TokenKind kind)
+    {
+        if(in.isEmpty() || in.peek().kind != kind)
+        {
+            throw Fallback.INSTANCE;
+        }
+        return in.next();
+    }
+
+    private static long millis(long nanos)
+    {
+        return nanos / 1000000;
+    }
+
+    // Not in the usual form: start again through SExpParser.
+    private static class Fallback extends RuntimeException
+    {
+        static final Fallback INSTANCE = new Fallback();
+
+        private Fallback()
+        {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package machine;
+import java.util.*;
+
+/*
+ * The contents of a Machine at one moment, as saved by toSExp(), so that
+ * they can be read on another thread while the Machine keeps changing (see
+ * ShadowMachine). Take it on the thread that owns the Machine.
+ *
+ * The Signals and States themselves are only kept to tell them apart, and
+ * must not be read through the snapshot.
+ */
+public class MachineSnapshot
+{
+    private String name;
+    private List<Signal> signals = new ArrayList<>();
+    private List<SExp> signalExps = new ArrayList<>();
+    private List<State> states = new ArrayList<>();
+    private List<SExp> stateExps = new ArrayList<>();
+    private State initialState;
+
+    public MachineSnapshot(Machine m)
+    {
+        name = m.getName();
+
+        for(Signal s: m.getSignals())
+        {
+            signals.add(s);
+            signalExps.add(s.toSExp());
+        }
+
+        for(State st: m.getStates())
+        {
+            states.add(st);
+            stateExps.add(st.toSExp());
+        }
+
+        initialState = m.getInitialState();
+    }
+
+    public State getInitialState() { return initialState; }
+    public String getName() { return name; }
+    public List<Signal> getSignals() { return new ArrayList<>(signals); }
+    public List<SExp> getSignalExps() { return new ArrayList<>(signalExps); }
+    public List<State> getStates() { return new ArrayList<>(states); }
+    public List<SExp> getStateExps() { return new ArrayList<>(stateExps); }
+}
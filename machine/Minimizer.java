@@ -0,0 +1,328 @@
+package machine;
+import java.util.*;
+
+/*
+ * Two-level (sum-of-products) minimization of small expressions: those
+ * over at most MAX_VARIABLES signals and (state_is ...) tests, and with at
+ * most MAX_NODES distinct operations. Anything bigger is left alone, found
+ * out without looking at more than that much of it. Six variables keep a
+ * truth table in one long, so the work per expression is small and fixed,
+ * and what gets minimized depends only on the expression.
+ *
+ * The expression's truth table is computed bitwise, and an irredundant
+ * sum of products of it (and of its complement, then negated) is found
+ * with Minato-Morreale's ISOP: like Quine-McCluskey, each product is a
+ * prime implicant and none can be dropped, but without listing every
+ * prime implicant first. The smallest of the two and the original (as a
+ * tree) is kept, so this never makes an expression bigger.
+ *
+ * (state_is ...) tests are treated as independent variables, so facts
+ * like being in only one state at a time aren't used.
+ */
+public class Minimizer
+{
+    public static final int MAX_VARIABLES = 6;
+    public static final int MAX_NODES = 128;
+    public static final int MAX_STEPS = 1 << 10; // of ISOP, per expression
+
+    // Truth tables over six variables: bit m of a table is its value when
+    // each variable i is (m >> i) & 1. These are the variables'.
+    private static final long[] VARIABLE_TABLES = new long[]{
+        0xaaaaaaaaaaaaaaaaL,
+        0xccccccccccccccccL,
+        0xf0f0f0f0f0f0f0f0L,
+        0xff00ff00ff00ff00L,
+        0xffff0000ffff0000L,
+        0xffffffff00000000L
+    };
+
+    private List<Expression> variables = new ArrayList<>();
+    private Map<Expression,Integer> variableIndices = new IdentityHashMap<>();
+    private int nodes = 0;
+    private long ones; // the table of 1, i.e. its valid bits
+    private int steps = 0;
+
+    private Minimizer()
+    {
+        // Nothing to do
+    }
+
+    // Precondition: 'exp' is simplified (see Simplifier.minimize).
+    public static Expression minimize(Expression exp)
+    {
+        if(exp.getKind() != ExpressionKind.OPERATION)
+        {
+            return exp;
+        }
+
+        Minimizer m = new Minimizer();
+        long leaves = m.findVariables(exp, new IdentityHashMap<>());
+        int n = m.variables.size();
+        if(n > MAX_VARIABLES || m.nodes > MAX_NODES || leaves <= n)
+        {
+            return exp; // when each variable appears once, it's already minimal
+        }
+        m.ones = n == 6 ? -1L : (1L << (1 << n)) - 1;
+        return m.smallest(exp);
+    }
+
+    // The smallest of 'exp' and the two covers.
+    private Expression smallest(Expression exp)
+    {
+        long f = table(exp, new IdentityHashMap<>());
+
+        Expression best = exp;
+        long bestSize = size(exp, new IdentityHashMap<>());
+
+        int n = variables.size();
+        List<Integer> cover = new ArrayList<>();
+        isop(f, f, n - 1, cover);
+        if(steps <= MAX_STEPS && size(cover) < bestSize)
+        {
+            Expression sop = toExpression(cover);
+            long size = size(sop, new IdentityHashMap<>());
+            if(size < bestSize)
+            {
+                best = sop;
+                bestSize = size;
+            }
+        }
+
+        // Or the complement's, negated
+        cover.clear();
+        steps = 0;
+        isop(~f & ones, ~f & ones, n - 1, cover);
+        if(steps <= MAX_STEPS && size(cover) < bestSize)
+        {
+            Expression pos = Simplifier.simplify(Expression.operation(Operator.NOT, Arrays.asList(toExpression(cover))));
+            if(size(pos, new IdentityHashMap<>()) < bestSize)
+            {
+                best = pos;
+            }
+        }
+
+        return best;
+    }
+
+    // Returns the number of leaves (as a tree, saturating), and counts
+    // the distinct operations, giving up once there are too many of them or
+    // of variables.
+    private long findVariables(Expression e, Map<Expression,Long> leaves)
+    {
+        Long done = leaves.get(e);
+        if(done != null)
+        {
+            return done;
+        }
+
+        long n = 0;
+        ExpressionKind k = e.getKind();
+        if(k == ExpressionKind.OPERATION)
+        {
+            if(++nodes > MAX_NODES)
+            {
+                return n;
+            }
+            for(Expression operand: e.getOperandList())
+            {
+                n = Math.min(n + findVariables(operand, leaves), Integer.MAX_VALUE);
+                if(variables.size() > MAX_VARIABLES || nodes > MAX_NODES)
+                {
+                    return n;
+                }
+            }
+        }
+        else if(k == ExpressionKind.SIGNAL || k == ExpressionKind.STATE_IS)
+        {
+            variableIndices.put(e, variables.size());
+            variables.add(e);
+            n = 1;
+        }
+        leaves.put(e, n);
+        return n;
+    }
+
+    private long table(Expression e, Map<Expression,Long> memo)
+    {
+        Long done = memo.get(e);
+        if(done != null)
+        {
+            return done;
+        }
+
+        long t;
+        ExpressionKind k = e.getKind();
+        if(k == ExpressionKind.CONSTANT)
+        {
+            t = e.getConstant().getBoolean() ? ones : 0;
+        }
+        else if(k == ExpressionKind.SIGNAL || k == ExpressionKind.STATE_IS)
+        {
+            t = VARIABLE_TABLES[variableIndices.get(e)] & ones;
+        }
+        else if(k == ExpressionKind.OPERATION)
+        {
+            Operator op = e.getOperator();
+            boolean and = op == Operator.AND || op == Operator.NAND;
+            t = and ? ones : 0;
+            for(Expression operand: e.getOperandList())
+            {
+                long o = table(operand, memo);
+                if(op == Operator.NOT)
+                {
+                    t = ~o;
+                }
+                else if(and)
+                {
+                    t &= o;
+                }
+                else if(op == Operator.XOR)
+                {
+                    t ^= o;
+                }
+                else
+                {
+                    t |= o;
+                }
+            }
+            if(op == Operator.NAND || op == Operator.NOR)
+            {
+                t = ~t;
+            }
+            t &= ones;
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+
+        memo.put(e, t);
+        return t;
+    }
+
+    // The function with variable i fixed to 'value', as a function of all
+    // variables (that doesn't depend on i).
+    private static long cofactor(long f, int i, boolean value)
+    {
+        int shift = 1 << i;
+        long mask = VARIABLE_TABLES[i];
+        long half = value ? (f & mask) >>> shift : f & ~mask;
+        return half | (half << shift);
+    }
+
+    // Products are ints: bit i for variable i, bit MAX_VARIABLES + i for its
+    // negation. Adds to 'cover' products for some function between 'lower'
+    // and 'upper' over variables 0..top, and returns that function.
+    // Gives up (with 'steps' over MAX_STEPS) if it takes too long.
+    private long isop(long lower, long upper, int top, List<Integer> cover)
+    {
+        if(++steps > MAX_STEPS)
+        {
+            return lower;
+        }
+        if(lower == 0)
+        {
+            return 0;
+        }
+        if(upper == ones)
+        {
+            cover.add(0);
+            return ones;
+        }
+
+        // Neither is constant, so they depend on some variable <= top
+        long l0, l1, u0, u1;
+        while(true)
+        {
+            if(top < 0)
+            {
+                throw Misc.impossible();
+            }
+            l0 = cofactor(lower, top, false);
+            l1 = cofactor(lower, top, true);
+            u0 = cofactor(upper, top, false);
+            u1 = cofactor(upper, top, true);
+            if(l0 != l1 || u0 != u1)
+            {
+                break;
+            }
+            top--;
+        }
+
+        List<Integer> cover0 = new ArrayList<>();
+        long f0 = isop(l0 & ~u1, u0, top - 1, cover0);
+        List<Integer> cover1 = new ArrayList<>();
+        long f1 = isop(l1 & ~u0, u1, top - 1, cover1);
+        long fs = isop((l0 & ~f0) | (l1 & ~f1), u0 & u1, top - 1, cover);
+
+        for(int product: cover0)
+        {
+            cover.add(product | 1 << (MAX_VARIABLES + top));
+        }
+        for(int product: cover1)
+        {
+            cover.add(product | 1 << top);
+        }
+
+        long x = VARIABLE_TABLES[top];
+        return ((~x & f0) | (x & f1) | fs) & ones;
+    }
+
+    private Expression toExpression(List<Integer> cover)
+    {
+        List<Expression> products = new ArrayList<>();
+        for(int product: cover)
+        {
+            List<Expression> literals = new ArrayList<>();
+            for(int i = 0; i < variables.size(); i++)
+            {
+                if((product & 1 << i) != 0)
+                {
+                    literals.add(variables.get(i));
+                }
+                else if((product & 1 << (MAX_VARIABLES + i)) != 0)
+                {
+                    literals.add(Expression.operation(Operator.NOT, Arrays.asList(variables.get(i))));
+                }
+            }
+            products.add(literals.size() == 1 ? literals.get(0) : Expression.operation(Operator.AND, literals));
+        }
+        return Simplifier.simplify(Expression.operation(Operator.OR, products));
+    }
+
+    // Of toExpression(cover) before it's simplified, which rarely helps, so
+    // that covers no smaller than what we have needn't be made.
+    private static long size(List<Integer> cover)
+    {
+        long size = cover.size() == 1 ? 0 : 1;
+        for(int product: cover)
+        {
+            int literals = Integer.bitCount(product & ((1 << MAX_VARIABLES) - 1));
+            int negated = Integer.bitCount(product >>> MAX_VARIABLES);
+            size += (literals + negated == 1 ? 0 : 1) + literals + 2 * negated;
+        }
+        return size;
+    }
+
+    // As a tree, i.e. counting shared subexpressions every time (which can
+    // be exponential in the size of the DAG, so sizes saturate).
+    private static long size(Expression e, Map<Expression,Long> memo)
+    {
+        Long done = memo.get(e);
+        if(done != null)
+        {
+            return done;
+        }
+
+        long size = 1;
+        if(e.getKind() == ExpressionKind.OPERATION)
+        {
+            for(Expression operand: e.getOperandList())
+            {
+                size = Math.min(size + size(operand, memo), Integer.MAX_VALUE);
+            }
+        }
+        memo.put(e, size);
+        return size;
+    }
+}
@@ -8,6 +8,8 @@ public class Model
     private Map<State,List<ModelTransition>> transitions;
     private State initialState;
     private Expression resetCondition;
+    private List<State> states; // non-virtual, in machine order
+    private CompiledModel compiled; // lazily
 
     private Machine m;
     
@@ -17,6 +19,72 @@ public class Model
         extract();
     }
 
+    // A copy of 'other' with its signals and states replaced according to
+    // the maps (see ShadowMachine). Anything not in a map is kept as is.
+    Model(Model other, Map<Signal,Signal> signalMap, Map<State,State> stateMap)
+    {
+        Map<Expression,Expression> memo = new IdentityHashMap<>();
+
+        inputs = new ArrayList<>();
+        for(Signal s: other.inputs)
+        {
+            inputs.add(signalMap.getOrDefault(s, s));
+        }
+
+        signalComputations = new ArrayList<>();
+        for(ModelSignalComputation msc: other.signalComputations)
+        {
+            signalComputations.add(new ModelSignalComputation(signalMap.getOrDefault(msc.getSignal(), msc.getSignal()),
+                                                              msc.getExpression().translate(signalMap, stateMap, memo)));
+        }
+
+        states = new ArrayList<>();
+        for(State st: other.states)
+        {
+            states.add(stateMap.getOrDefault(st, st));
+        }
+
+        transitions = new HashMap<>();
+        for(Map.Entry<State,List<ModelTransition>> entry: other.transitions.entrySet())
+        {
+            List<ModelTransition> ts = new ArrayList<>();
+            for(ModelTransition t: entry.getValue())
+            {
+                List<State> path = new ArrayList<>();
+                for(State st: t.getPath())
+                {
+                    path.add(stateMap.getOrDefault(st, st));
+                }
+                ts.add(new ModelTransition(path, t.getCondition().translate(signalMap, stateMap, memo)));
+            }
+            transitions.put(stateMap.getOrDefault(entry.getKey(), entry.getKey()), ts);
+        }
+
+        initialState = stateMap.getOrDefault(other.initialState, other.initialState);
+        resetCondition = other.resetCondition.translate(signalMap, stateMap, memo);
+    }
+
+    // A model as saved by ModelCache.
+    Model(List<Signal> inputs, List<ModelSignalComputation> signalComputations, Map<State,List<ModelTransition>> transitions,
+          State initialState, Expression resetCondition, List<State> states)
+    {
+        this.inputs = new ArrayList<>(inputs);
+        this.signalComputations = new ArrayList<>(signalComputations);
+        this.transitions = new HashMap<>(transitions);
+        this.initialState = initialState;
+        this.resetCondition = resetCondition;
+        this.states = new ArrayList<>(states);
+    }
+
+    public CompiledModel getCompiled()
+    {
+        if(compiled == null)
+        {
+            compiled = new CompiledModel(this);
+        }
+        return compiled;
+    }
+
     public State getInitialState()
     {
         return initialState;
@@ -37,6 +105,11 @@ public class Model
         return new ArrayList<>(signalComputations);
     }
 
+    public List<State> getStates()
+    {
+        return new ArrayList<>(states);
+    }
+
     public List<ModelTransition> getTransitionsFromState(State st)
     {
         List<ModelTransition> ts = transitions.get(st);
@@ -83,7 +156,7 @@ public class Model
 
     public boolean hasState(State st)
     {
-        return getTransitionsFromState(st) != null;
+        return transitions.containsKey(st);
     }
     
     // Inefficient, mostly for debugging
@@ -116,9 +189,18 @@ public class Model
 
         inputs = new ArrayList<>();
         initialState = m.getInitialState();
-        resetCondition = new Expression(m.getResetSignal());
+        resetCondition = Expression.signal(m.getResetSignal());
         signalComputations = new ArrayList<>();
         transitions = new HashMap<>();
+        states = new ArrayList<>();
+
+        for(State st: m.getStates())
+        {
+            if(!st.isVirtual())
+            {
+                states.add(st);
+            }
+        }
 
         for(Signal s: m.getSignals())
         {
@@ -128,6 +210,7 @@ public class Model
             }
         }
         
+        Map<Signal,List<Expression>> statewiseTerms = getStatewiseTerms();
         for(Signal s: m.getDependencyGraph().getOrder())
         {
             SignalKind k = s.getKind();
@@ -137,7 +220,8 @@ public class Model
             }
             else if(k == SignalKind.STATEWISE)
             {
-                signalComputations.add(new ModelSignalComputation(s, getStatewise(s)));
+                List<Expression> disjuncts = statewiseTerms.getOrDefault(s, new ArrayList<>());
+                signalComputations.add(new ModelSignalComputation(s, getStatewise(disjuncts)));
             }
             else if(k == SignalKind.EXPRESSION)
             {
@@ -149,195 +233,45 @@ public class Model
             }
         }
         
-        for(State st: m.getStates())
+        InlinedStates inlined = m.getInlinedStates();
+        List<List<ModelTransition>> stateTransitions = Parallel.map(states, st -> inlined.getModelTransitions(st));
+        for(int i = 0; i < states.size(); i++)
         {
-            if(!st.isVirtual())
-            {
-                transitions.put(st, getTransitions(st));
-            }
+            transitions.put(states.get(i), stateTransitions.get(i));
         }
     }
 
-    private Expression getStatewise(Signal s)
+    // Each state's part of each statewise signal, in state order.
+    private Map<Signal,List<Expression>> getStatewiseTerms()
     {
-        List<Expression> disjuncts = new ArrayList<>();
-        
-        for(State st: m.getStates())
+        Map<Signal,List<Expression>> terms = new HashMap<>();
+        InlinedStates inlined = m.getInlinedStates();
+        for(Map<Signal,Expression> stateTerms: Parallel.map(states, st -> inlined.getStatewiseTerms(st)))
         {
-            if(!st.isVirtual())
+            for(Map.Entry<Signal,Expression> entry: stateTerms.entrySet())
             {
-                Expression e = getSignalInState(s, st);
-                if(e != null)
+                List<Expression> disjuncts = terms.get(entry.getKey());
+                if(disjuncts == null)
                 {
-                    List<Expression> conjuncts = new ArrayList<>();
-                    List<State> states = new ArrayList<>();
-                    states.add(st);
-                    conjuncts.add(new Expression(states)); // in state st...
-                    conjuncts.add(e); // and this is true...
-                    disjuncts.add(new Expression(Operator.AND, conjuncts));
+                    disjuncts = new ArrayList<>();
+                    terms.put(entry.getKey(), disjuncts);
                 }
+                disjuncts.add(entry.getValue());
             }
         }
-
-        // disjuncts might be empty but that's alright
-        return Simplifier.simplify(new Expression(Operator.OR, disjuncts));
+        return terms;
     }
 
-    private Expression getSignalInState(Signal s, State st)
+    private Expression getStatewise(List<Expression> disjuncts)
     {
-        return getSignalInStatement(s, st.getRootStatement(), new ArrayList<>());
-    }
-
-    private Expression getSignalInStatement(Signal s, Statement stm, List<Expression> conditions)
-    {
-        StatementKind k = stm.getKind();
-
-        if(k == StatementKind.GROUP)
+        // The terms are simplified already
+        Map<Expression,Expression> simplified = new IdentityHashMap<>();
+        for(Expression e: disjuncts)
         {
-            Expression result = null;
-            for(Statement stm2: stm.getStatements())
-            {
-                Expression e = getSignalInStatement(s, stm2, conditions);
-                if(e != null)
-                {
-                    if(result == null)
-                    {
-                        result = e;
-                    }
-                    else
-                    {
-                        throw new Error("Internal error: uncaught ambiguous signal value for signal " + s.getName() + ".");
-                    }
-                }
-            }
-
-            return result;
+            simplified.put(e, e);
         }
-        else if(k == StatementKind.EMIT)
-        {
-            if(stm.getSignal() == s)
-            {
-                List<Expression> operands = new ArrayList<>(conditions);
-                operands.add(stm.getEmittedExp());
-                return new Expression(Operator.AND, operands);
-            }
-            else
-            {
-                return null;
-            }
-        }
-        else if(k == StatementKind.GOTO)
-        {
-            State dest = stm.getDestination();
-
-            if(dest.isVirtual())
-            {
-                return getSignalInStatement(s, dest.getRootStatement(), conditions);
-            }
-            else
-            {
-                return null;
-            }
-        }
-        else if(k == StatementKind.COND)
-        {
-            Expression cond = stm.getCondition();
-
-            List<Expression> conditionsTrue = new ArrayList<>(conditions);
-            conditionsTrue.add(cond);
-            
-            List<Expression> conditionsFalse = new ArrayList<>(conditions);
-            List<Expression> tmp = new ArrayList<>();
-            tmp.add(cond);
-            conditionsFalse.add(new Expression(Operator.NOT, tmp));
 
-            Expression caseTrue = getSignalInStatement(s, stm.getTrueBranch(), conditionsTrue);
-            Expression caseFalse = getSignalInStatement(s, stm.getFalseBranch(), conditionsFalse);
-
-            if(caseTrue == null && caseFalse == null)
-            {
-                return null;
-            }
-            else if(caseFalse == null)
-            {
-                return caseTrue;
-            }
-            else if(caseTrue == null)
-            {
-                return caseFalse;
-            }
-            else
-            {
-                List<Expression> operands = new ArrayList<>();
-                operands.add(caseTrue);
-                operands.add(caseFalse);
-                return new Expression(Operator.OR, operands);
-            }
-        }
-        else
-        {
-            throw Misc.impossible();
-        }
-    }
-    
-    private List<ModelTransition> getTransitions(State st)
-    {
-        List<ModelTransition> ts = new ArrayList<>();
-        List<State> path = new ArrayList<>();
-        path.add(st);
-        createTransitions(st.getRootStatement(), new ArrayList<>(), path, ts);
-        return ts;
-    }
-
-    private void createTransitions(Statement stm, List<Expression> conditions, List<State> path, List<ModelTransition> out)
-    {
-        StatementKind k = stm.getKind();
-
-        if(k == StatementKind.GROUP)
-        {
-            for(Statement stm2: stm.getStatements())
-            {
-                createTransitions(stm2, conditions, path, out);
-            }
-        }
-        else if(k == StatementKind.EMIT)
-        {
-            // no transitions
-        }
-        else if(k == StatementKind.GOTO)
-        {
-            State dest = stm.getDestination();
-            path.add(dest);
-            
-            if(dest.isVirtual())
-            {
-                createTransitions(dest.getRootStatement(), conditions, path, out);
-            }
-            else
-            {
-                Expression cond = new Expression(Operator.AND, conditions);
-                out.add(new ModelTransition(path, Simplifier.simplify(cond)));
-            }
-            path.remove(path.size()-1);
-        }
-        else if(k == StatementKind.COND)
-        {
-            Expression cond = stm.getCondition();
-
-            List<Expression> conditionsTrue = new ArrayList<>(conditions);
-            conditionsTrue.add(cond);
-            
-            List<Expression> conditionsFalse = new ArrayList<>(conditions);
-            List<Expression> tmp = new ArrayList<>();
-            tmp.add(cond);
-            conditionsFalse.add(new Expression(Operator.NOT, tmp));
-
-            createTransitions(stm.getTrueBranch(), conditionsTrue, path, out);
-            createTransitions(stm.getFalseBranch(), conditionsFalse, path, out);
-        }
-        else
-        {
-            throw Misc.impossible();
-        }
+        // disjuncts might be empty but that's alright
+        return Simplifier.minimize(Expression.operation(Operator.OR, disjuncts), simplified);
     }
 }
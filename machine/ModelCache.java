@@ -0,0 +1,1080 @@
+package machine;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+
+/*
+ * Analysis results kept on disk between runs (by default under
+ * ~/.cache/stately), so that reopening a machine doesn't compile and
+ * analyze it all over again.
+ *
+ * An entry holds every compiled statement tree and expression, the issues,
+ * and the Model, with signals and states referred to by name. It's keyed
+ * by a hash of the machine's toSExp(); each compiled code is also keyed by
+ * a hash of its own source. Opening an unchanged machine restores
+ * everything (analyze() returns true). Otherwise, code whose source is
+ * unchanged since the last entry for a machine of the same name is
+ * restored, and the rest is compiled and analyzed as usual.
+ *
+ * Entries are checked (magic, version, key, checksum) as they're read, and
+ * anything wrong just means a full compile. Entries are also specific to
+ * the build of Stately that wrote them, and the oldest are deleted beyond
+ * MAX_ENTRIES. Bump VERSION whenever the entry format changes.
+ *
+ * Machines with duplicate names are never cached.
+ */
+public class ModelCache
+{
+    public static final int MAGIC = 0x53434d44; // "SCMD"
+    public static final int VERSION = 1;
+    public static final int MAX_ENTRIES = 64;
+    public static final String ENTRY_EXTENSION = "model";
+    public static final String LATEST_EXTENSION = "latest";
+
+    private static final int HASH_BYTES = 32;
+    private static final String BUILD = getBuild();
+
+    private static ModelCache defaultCache;
+
+    private File dir;
+    private int hits = 0, partials = 0, misses = 0, corrupt = 0;
+    private long restoredCodes = 0;
+
+    public ModelCache(File dir)
+    {
+        this.dir = dir;
+    }
+
+    // $XDG_CACHE_HOME/stately, or ~/.cache/stately.
+    public static synchronized ModelCache getDefault()
+    {
+        if(defaultCache == null)
+        {
+            String base = System.getenv("XDG_CACHE_HOME");
+            File root = base != null && !base.isEmpty() ? new File(base) : new File(System.getProperty("user.home"), ".cache");
+            defaultCache = new ModelCache(new File(root, "stately"));
+        }
+        return defaultCache;
+    }
+
+    public File getDirectory() { return dir; }
+    public synchronized int getHits() { return hits; }
+    public synchronized int getPartialHits() { return partials; }
+    public synchronized int getMisses() { return misses; }
+    public synchronized int getCorruptEntries() { return corrupt; }
+    public synchronized long getRestoredCodes() { return restoredCodes; }
+
+    public synchronized String getStats()
+    {
+        return hits + " hit(s), " + partials + " partial, " + misses + " miss(es), " + restoredCodes + " code(s) restored" +
+            (corrupt > 0 ? ", " + corrupt + " corrupt entry(s) dropped" : "");
+    }
+
+    // Instead of m.analyze(): restores the analysis if the machine is
+    // unchanged (returning true), otherwise restores what compiled code
+    // it can, analyzes, and saves the results.
+    public boolean analyze(Machine m)
+    {
+        byte[] key = null;
+        if(hasUniqueNames(m))
+        {
+            key = getKey(m);
+            Payload exact = read(entryFile(key), key);
+            EntryReader r = open(exact != null ? exact : readLatest(m.getName()), m);
+            int restored = restoreCode(r);
+            if(exact != null && restored >= 0 && restoreAnalysis(m, r))
+            {
+                count(true, false, restored);
+                return true;
+            }
+            count(false, restored > 0, Math.max(restored, 0));
+        }
+        else
+        {
+            count(false, false, 0);
+        }
+
+        m.analyze();
+        if(key != null)
+        {
+            write(m, key);
+        }
+        return false;
+    }
+
+    // Only restore compiled code (from the entry for this machine or, failing
+    // that, the last one with its name), returning how many were restored.
+    public int restoreCode(Machine m)
+    {
+        if(!hasUniqueNames(m))
+        {
+            return 0;
+        }
+        byte[] key = getKey(m);
+        Payload p = read(entryFile(key), key);
+        return Math.max(restoreCode(open(p != null ? p : readLatest(m.getName()), m)), 0);
+    }
+
+    private synchronized void count(boolean hit, boolean partial, int restored)
+    {
+        if(hit)
+        {
+            hits++;
+        }
+        else if(partial)
+        {
+            partials++;
+        }
+        else
+        {
+            misses++;
+        }
+        restoredCodes += restored;
+    }
+
+    private synchronized void countCorrupt()
+    {
+        corrupt++;
+    }
+
+    // Keys
+
+    private static byte[] getKey(Machine m)
+    {
+        return hash("machine", Integer.toString(VERSION), BUILD, m.toSExp().toString());
+    }
+
+    private static byte[] getCodeKey(String kind, String source)
+    {
+        return hash(kind, source);
+    }
+
+    private static byte[] hash(String... parts)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for(String part: parts)
+            {
+                md.update(part.getBytes(StandardCharsets.UTF_8));
+                md.update((byte)0);
+            }
+            return md.digest();
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new Error("Internal error: no SHA-256", e);
+        }
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(byte b: bytes)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // The size and time of the jar (or class files) this is running from.
+    private static String getBuild()
+    {
+        try
+        {
+            File f = new File(ModelCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if(f.isDirectory())
+            {
+                f = new File(f, ModelCache.class.getName().replace('.', File.separatorChar) + ".class");
+            }
+            return f.length() + "@" + f.lastModified();
+        }
+        catch(Exception e)
+        {
+            return "unknown";
+        }
+    }
+
+    private static boolean hasUniqueNames(Machine m)
+    {
+        Set<String> names = new HashSet<>();
+        for(Signal s: m.getSignals())
+        {
+            if(!names.add(s.getName()))
+            {
+                return false;
+            }
+        }
+        names.clear();
+        for(State st: m.getStates())
+        {
+            if(!names.add(st.getName()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Files
+
+    private File entryFile(byte[] key)
+    {
+        return new File(dir, hex(key) + "." + ENTRY_EXTENSION);
+    }
+
+    private File latestFile(String machineName)
+    {
+        return new File(dir, hex(hash("latest", machineName == null ? "" : machineName)) + "." + LATEST_EXTENSION);
+    }
+
+    private Payload readLatest(String machineName)
+    {
+        File latest = latestFile(machineName);
+        try
+        {
+            if(!latest.exists())
+            {
+                return null;
+            }
+            String hexKey = new String(Files.readAllBytes(latest.toPath()), StandardCharsets.US_ASCII).trim();
+            File f = new File(dir, hexKey + "." + ENTRY_EXTENSION);
+            return f.exists() ? read(f, null) : null;
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+
+    // The entry's payload, or null if there's none or it's broken (then
+    // it's deleted). With a key, the entry must be for that key.
+    private Payload read(File f, byte[] key)
+    {
+        if(!f.exists())
+        {
+            return null;
+        }
+
+        try
+        {
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                throw new IOException("Not a cache entry");
+            }
+            byte[] entryKey = new byte[HASH_BYTES];
+            in.readFully(entryKey);
+            if(key != null && !Arrays.equals(key, entryKey))
+            {
+                throw new IOException("Cache entry for another key");
+            }
+            int length = in.readInt();
+            if(length < 0 || length > in.available() - 8)
+            {
+                throw new IOException("Truncated cache entry");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if(in.readLong() != crc.getValue())
+            {
+                throw new IOException("Bad cache entry checksum");
+            }
+
+            f.setLastModified(System.currentTimeMillis()); // for eviction
+            return new Payload(payload);
+        }
+        catch(IOException e)
+        {
+            countCorrupt();
+            f.delete();
+            return null;
+        }
+    }
+
+    // Failing to write is no reason to stop; the next run just can't use it.
+    private void write(Machine m, byte[] key)
+    {
+        try
+        {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            new EntryWriter(new DataOutputStream(payload)).write(m);
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            dir.mkdirs();
+            File tmp = File.createTempFile("entry", ".tmp", dir);
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(key);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeLong(crc.getValue());
+            }
+            moveInto(tmp, entryFile(key));
+
+            File latestTmp = File.createTempFile("latest", ".tmp", dir);
+            Files.write(latestTmp.toPath(), hex(key).getBytes(StandardCharsets.US_ASCII));
+            moveInto(latestTmp, latestFile(m.getName()));
+
+            evict();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Cannot write to model cache " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private static void moveInto(File tmp, File f) throws IOException
+    {
+        try
+        {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e)
+        {
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    // Oldest (least recently used) entries beyond MAX_ENTRIES.
+    private void evict()
+    {
+        File[] entries = dir.listFiles((d, name) -> name.endsWith("." + ENTRY_EXTENSION));
+        if(entries == null || entries.length <= MAX_ENTRIES)
+        {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for(int i = 0; i < entries.length - MAX_ENTRIES; i++)
+        {
+            entries[i].delete();
+        }
+    }
+
+    // Restoring
+
+    // Null if there's no payload or it's malformed.
+    private static EntryReader open(Payload p, Machine m)
+    {
+        if(p == null)
+        {
+            return null;
+        }
+        try
+        {
+            return new EntryReader(p, m);
+        }
+        catch(RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    // -1 if the payload turns out to be malformed.
+    private static int restoreCode(EntryReader r)
+    {
+        if(r == null)
+        {
+            return 0;
+        }
+        try
+        {
+            return r.restoreCode();
+        }
+        catch(RuntimeException e)
+        {
+            return -1;
+        }
+    }
+
+    // After restoreCode.
+    private static boolean restoreAnalysis(Machine m, EntryReader r)
+    {
+        MachineAnalysis a;
+        try
+        {
+            a = r.readAnalysis();
+        }
+        catch(RuntimeException e)
+        {
+            return false;
+        }
+        if(a == null)
+        {
+            return false;
+        }
+
+        m.compile(); // everything that compiles is, but the coarse graph isn't there yet
+        m.adoptAnalysis(a);
+        return true;
+    }
+
+    private static class Payload
+    {
+        final byte[] bytes;
+
+        Payload(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+    }
+
+    /*
+     * Payload format (DataOutput), with strings as an int length (-1 for
+     * null) and UTF-8, and lists as an int count and their elements:
+     * - The names of the signals and states referred to below, by index.
+     * - Expressions, each after its operands: a kind byte, then a constant
+     *   (boolean), a signal, an operator (ordinal byte) and its operands'
+     *   indices, or a list of states.
+     * - Statements, each after its parts: a kind byte, a comment, then the
+     *   GROUP's statement indices, the EMIT's signal and expression index,
+     *   the GOTO's state, or the COND's condition, true and false branch
+     *   indices.
+     * - Compiled code: for each its source's hash, whether it's a state's,
+     *   and the index of its statement or expression.
+     * - Status (name), then the issues: kind (name), message, signals,
+     *   states, and the three flags.
+     * - Whether there's a model, and if so its inputs, signal computations
+     *   (signal and expression), states, each state's transitions (path and
+     *   condition), initial state (-1 for none) and reset condition.
+     */
+
+    private static final byte CONSTANT = 0, SIGNAL = 1, OPERATION = 2, STATE_IS = 3;
+    private static final byte GROUP = 0, EMIT = 1, GOTO = 2, COND = 3;
+
+    private static class EntryWriter
+    {
+        private DataOutputStream out;
+        private Map<String,Integer> signals = new LinkedHashMap<>();
+        private Map<String,Integer> states = new LinkedHashMap<>();
+        private Map<Expression,Integer> exps = new IdentityHashMap<>();
+        private Map<Statement,Integer> stms = new IdentityHashMap<>();
+        private ByteArrayOutputStream expBytes = new ByteArrayOutputStream();
+        private DataOutputStream expOut = new DataOutputStream(expBytes);
+        private ByteArrayOutputStream stmBytes = new ByteArrayOutputStream();
+        private DataOutputStream stmOut = new DataOutputStream(stmBytes);
+
+        EntryWriter(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        void write(Machine m) throws IOException
+        {
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            DataOutputStream r = new DataOutputStream(rest);
+
+            // Code
+            List<byte[]> codeKeys = new ArrayList<>();
+            List<Boolean> codeIsState = new ArrayList<>();
+            List<Integer> codeRoots = new ArrayList<>();
+            for(Signal s: m.getSignals())
+            {
+                if(s.getKind() == SignalKind.EXPRESSION && s.getCode().isCompiled())
+                {
+                    codeKeys.add(getCodeKey("signal", s.getCode().getSource()));
+                    codeIsState.add(false);
+                    codeRoots.add(exp(s.getCode().getCompiled()));
+                }
+            }
+            for(State st: m.getStates())
+            {
+                if(st.getCode().isCompiled())
+                {
+                    codeKeys.add(getCodeKey("state", st.getCode().getSource()));
+                    codeIsState.add(true);
+                    codeRoots.add(stm(st.getCode().getCompiled()));
+                }
+            }
+            r.writeInt(codeKeys.size());
+            for(int i = 0; i < codeKeys.size(); i++)
+            {
+                r.write(codeKeys.get(i));
+                r.writeBoolean(codeIsState.get(i));
+                r.writeInt(codeRoots.get(i));
+            }
+
+            // Analysis
+            writeString(r, m.getStatus().name());
+            List<Issue> issues = m.getIssues();
+            r.writeInt(issues.size());
+            for(Issue i: issues)
+            {
+                writeString(r, i.getKind().name());
+                writeString(r, i.getMessage());
+                writeSignals(r, i.getSignals());
+                writeStates(r, i.getStates());
+                r.writeBoolean(i.isCyclicWithSignals());
+                r.writeBoolean(i.isCyclicWithStates());
+                r.writeBoolean(i.isWarning());
+            }
+
+            Model model = m.getModel();
+            r.writeBoolean(model != null);
+            if(model != null)
+            {
+                writeSignals(r, model.getInputs());
+                List<ModelSignalComputation> mscs = model.getSignalComputations();
+                r.writeInt(mscs.size());
+                for(ModelSignalComputation msc: mscs)
+                {
+                    r.writeInt(signal(msc.getSignal()));
+                    r.writeInt(exp(msc.getExpression()));
+                }
+                List<State> modelStates = model.getStates();
+                writeStates(r, modelStates);
+                for(State st: modelStates)
+                {
+                    List<ModelTransition> ts = model.getTransitionsFromState(st);
+                    r.writeInt(ts.size());
+                    for(ModelTransition t: ts)
+                    {
+                        writeStates(r, t.getPath());
+                        r.writeInt(exp(t.getCondition()));
+                    }
+                }
+                r.writeInt(model.getInitialState() == null ? -1 : state(model.getInitialState()));
+                r.writeInt(exp(model.getResetCondition()));
+            }
+            r.flush();
+            expOut.flush();
+            stmOut.flush();
+
+            writeNames(out, signals.keySet());
+            writeNames(out, states.keySet());
+            out.writeInt(exps.size());
+            expBytes.writeTo(out);
+            out.writeInt(stms.size());
+            stmBytes.writeTo(out);
+            rest.writeTo(out);
+            out.flush();
+        }
+
+        private int signal(Signal s)
+        {
+            return signals.computeIfAbsent(s.getName(), k -> signals.size());
+        }
+
+        private int state(State st)
+        {
+            return states.computeIfAbsent(st.getName(), k -> states.size());
+        }
+
+        // Index of the expression, writing it (after its operands) if new.
+        private int exp(Expression e) throws IOException
+        {
+            Integer done = exps.get(e);
+            if(done != null)
+            {
+                return done;
+            }
+
+            ExpressionKind k = e.getKind();
+            if(k == ExpressionKind.CONSTANT)
+            {
+                expOut.writeByte(CONSTANT);
+                expOut.writeBoolean(e.getConstant().getBoolean());
+            }
+            else if(k == ExpressionKind.SIGNAL)
+            {
+                expOut.writeByte(SIGNAL);
+                expOut.writeInt(signal(e.getSignal()));
+            }
+            else if(k == ExpressionKind.OPERATION)
+            {
+                List<Expression> operands = e.getOperands();
+                int[] indices = new int[operands.size()];
+                for(int i = 0; i < indices.length; i++)
+                {
+                    indices[i] = exp(operands.get(i));
+                }
+                expOut.writeByte(OPERATION);
+                expOut.writeByte(e.getOperator().ordinal());
+                writeInts(expOut, indices);
+            }
+            else if(k == ExpressionKind.STATE_IS)
+            {
+                expOut.writeByte(STATE_IS);
+                writeStates(expOut, new ArrayList<>(e.getStates()));
+            }
+            else
+            {
+                throw Misc.impossible();
+            }
+
+            int index = exps.size();
+            exps.put(e, index);
+            return index;
+        }
+
+        // Index of the statement, writing it (after its parts) if new.
+        private int stm(Statement s) throws IOException
+        {
+            Integer done = stms.get(s);
+            if(done != null)
+            {
+                return done;
+            }
+
+            StatementKind k = s.getKind();
+            if(k == StatementKind.GROUP)
+            {
+                List<Statement> subs = s.getStatements();
+                int[] indices = new int[subs.size()];
+                for(int i = 0; i < indices.length; i++)
+                {
+                    indices[i] = stm(subs.get(i));
+                }
+                stmOut.writeByte(GROUP);
+                writeString(stmOut, s.getComment());
+                writeInts(stmOut, indices);
+            }
+            else if(k == StatementKind.EMIT)
+            {
+                int e = exp(s.getEmittedExp());
+                stmOut.writeByte(EMIT);
+                writeString(stmOut, s.getComment());
+                stmOut.writeInt(signal(s.getSignal()));
+                stmOut.writeInt(e);
+            }
+            else if(k == StatementKind.GOTO)
+            {
+                stmOut.writeByte(GOTO);
+                writeString(stmOut, s.getComment());
+                stmOut.writeInt(state(s.getDestination()));
+            }
+            else if(k == StatementKind.COND)
+            {
+                int c = exp(s.getCondition());
+                int t = stm(s.getTrueBranch());
+                int f = stm(s.getFalseBranch());
+                stmOut.writeByte(COND);
+                writeString(stmOut, s.getComment());
+                stmOut.writeInt(c);
+                stmOut.writeInt(t);
+                stmOut.writeInt(f);
+            }
+            else
+            {
+                throw Misc.impossible();
+            }
+
+            int index = stms.size();
+            stms.put(s, index);
+            return index;
+        }
+
+        private void writeSignals(DataOutputStream out, List<Signal> ss) throws IOException
+        {
+            out.writeInt(ss.size());
+            for(Signal s: ss)
+            {
+                out.writeInt(signal(s));
+            }
+        }
+
+        private void writeStates(DataOutputStream out, List<State> sts) throws IOException
+        {
+            out.writeInt(sts.size());
+            for(State st: sts)
+            {
+                out.writeInt(state(st));
+            }
+        }
+
+        private static void writeNames(DataOutputStream out, Collection<String> names) throws IOException
+        {
+            out.writeInt(names.size());
+            for(String name: names)
+            {
+                writeString(out, name);
+            }
+        }
+
+        private static void writeInts(DataOutputStream out, int[] ints) throws IOException
+        {
+            out.writeInt(ints.length);
+            for(int i: ints)
+            {
+                out.writeInt(i);
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException
+        {
+            if(s == null)
+            {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // Reads a payload against a machine: the code, then the analysis.
+    // Anything referring to a signal or state the machine doesn't have comes
+    // out as null, as does anything built from it. Malformed payloads throw
+    // some RuntimeException.
+    private static class EntryReader
+    {
+        private ByteBuffer in;
+        private Machine m;
+        private Signal[] signals;
+        private State[] states;
+        private Expression[] exps;
+        private Statement[] stms;
+
+        EntryReader(Payload p, Machine m)
+        {
+            in = ByteBuffer.wrap(p.bytes);
+            this.m = m;
+
+            Map<String,Signal> signalsByName = new HashMap<>();
+            for(Signal s: m.getSignals())
+            {
+                signalsByName.put(s.getName(), s);
+            }
+            signals = new Signal[readCount()];
+            for(int i = 0; i < signals.length; i++)
+            {
+                signals[i] = signalsByName.get(readString());
+            }
+
+            Map<String,State> statesByName = new HashMap<>();
+            for(State st: m.getStates())
+            {
+                statesByName.put(st.getName(), st);
+            }
+            states = new State[readCount()];
+            for(int i = 0; i < states.length; i++)
+            {
+                states[i] = statesByName.get(readString());
+            }
+
+            readExpressions();
+            readStatements();
+        }
+
+        // Compiled code whose source matches, where not compiled already.
+        int restoreCode()
+        {
+            Map<String,List<Code<?>>> byKey = new HashMap<>();
+            for(Signal s: m.getSignals())
+            {
+                if(s.getKind() == SignalKind.EXPRESSION && !s.getCode().isCompiled())
+                {
+                    byKey.computeIfAbsent(hex(getCodeKey("signal", s.getCode().getSource())), k -> new ArrayList<>()).add(s.getCode());
+                }
+            }
+            for(State st: m.getStates())
+            {
+                if(!st.getCode().isCompiled())
+                {
+                    byKey.computeIfAbsent(hex(getCodeKey("state", st.getCode().getSource())), k -> new ArrayList<>()).add(st.getCode());
+                }
+            }
+
+            int restored = 0;
+            int count = readCount();
+            byte[] key = new byte[HASH_BYTES];
+            for(int i = 0; i < count; i++)
+            {
+                in.get(key);
+                boolean isState = in.get() != 0;
+                int root = in.getInt();
+
+                // one each, for codes with the same source
+                List<Code<?>> codes = byKey.get(hex(key));
+                if(codes == null || codes.isEmpty())
+                {
+                    continue;
+                }
+
+                Code<?> code = codes.get(codes.size() - 1);
+                if(isState && code instanceof StatementCode && stm(root) != null)
+                {
+                    ((StatementCode)code).adoptCompiled(stm(root));
+                }
+                else if(!isState && code instanceof ExpressionCode && exp(root) != null)
+                {
+                    ((ExpressionCode)code).adoptCompiled(exp(root));
+                }
+                else
+                {
+                    continue;
+                }
+                codes.remove(codes.size() - 1);
+                restored++;
+            }
+            return restored;
+        }
+
+        // Null if anything in it doesn't match the machine.
+        MachineAnalysis readAnalysis()
+        {
+            MachineStatus status = MachineStatus.valueOf(readString());
+            List<Issue> issues = new ArrayList<>();
+            int issueCount = readCount();
+            for(int i = 0; i < issueCount; i++)
+            {
+                IssueKind kind = IssueKind.valueOf(readString());
+                String message = readString();
+                List<Signal> ss = readSignals();
+                List<State> sts = readStates();
+                boolean signalsCyclic = in.get() != 0;
+                boolean statesCyclic = in.get() != 0;
+                boolean warning = in.get() != 0;
+                if(ss == null || sts == null)
+                {
+                    return null;
+                }
+                issues.add(Issue.restore(kind, message, ss, sts, signalsCyclic, statesCyclic, warning));
+            }
+
+            Model model = null;
+            if(in.get() != 0)
+            {
+                List<Signal> inputs = readSignals();
+                List<ModelSignalComputation> mscs = new ArrayList<>();
+                int mscCount = readCount();
+                for(int i = 0; i < mscCount; i++)
+                {
+                    Signal s = signal(in.getInt());
+                    Expression e = exp(in.getInt());
+                    if(s == null || e == null)
+                    {
+                        return null;
+                    }
+                    mscs.add(new ModelSignalComputation(s, e));
+                }
+                List<State> modelStates = readStates();
+                if(inputs == null || modelStates == null)
+                {
+                    return null;
+                }
+                Map<State,List<ModelTransition>> transitions = new HashMap<>();
+                for(State st: modelStates)
+                {
+                    List<ModelTransition> ts = new ArrayList<>();
+                    int tCount = readCount();
+                    for(int i = 0; i < tCount; i++)
+                    {
+                        List<State> path = readStates();
+                        Expression condition = exp(in.getInt());
+                        if(path == null || condition == null)
+                        {
+                            return null;
+                        }
+                        ts.add(new ModelTransition(path, condition));
+                    }
+                    transitions.put(st, ts);
+                }
+                int initialIndex = in.getInt();
+                State initial = initialIndex < 0 ? null : state(initialIndex);
+                Expression reset = exp(in.getInt());
+                if((initialIndex >= 0 && initial == null) || reset == null)
+                {
+                    return null;
+                }
+                model = new Model(inputs, mscs, transitions, initial, reset, modelStates);
+            }
+
+            if((status == MachineStatus.HAPPY) != (model != null))
+            {
+                throw new IllegalArgumentException("Model doesn't match status");
+            }
+            return new MachineAnalysis(status, issues, model);
+        }
+
+        private void readExpressions()
+        {
+            Operator[] operators = Operator.values();
+            exps = new Expression[readCount()];
+            for(int i = 0; i < exps.length; i++)
+            {
+                byte kind = in.get();
+                if(kind == CONSTANT)
+                {
+                    exps[i] = Expression.constant(in.get() != 0);
+                }
+                else if(kind == SIGNAL)
+                {
+                    Signal s = signal(in.getInt());
+                    exps[i] = s == null ? null : Expression.signal(s);
+                }
+                else if(kind == OPERATION)
+                {
+                    Operator op = operators[in.get()];
+                    int count = readCount();
+                    List<Expression> operands = new ArrayList<>(count);
+                    boolean missing = false;
+                    for(int j = 0; j < count; j++)
+                    {
+                        Expression e = exp(in.getInt(), i);
+                        missing |= e == null;
+                        operands.add(e);
+                    }
+                    exps[i] = missing ? null : Expression.operation(op, operands);
+                }
+                else if(kind == STATE_IS)
+                {
+                    List<State> sts = readStates();
+                    exps[i] = sts == null ? null : Expression.stateIs(sts);
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Bad expression kind " + kind);
+                }
+            }
+        }
+
+        private void readStatements()
+        {
+            stms = new Statement[readCount()];
+            for(int i = 0; i < stms.length; i++)
+            {
+                byte kind = in.get();
+                String comment = readString();
+                Statement s;
+                if(kind == GROUP)
+                {
+                    int count = readCount();
+                    List<Statement> subs = new ArrayList<>(count);
+                    boolean missing = false;
+                    for(int j = 0; j < count; j++)
+                    {
+                        Statement sub = stm(in.getInt(), i);
+                        missing |= sub == null;
+                        subs.add(sub);
+                    }
+                    s = missing ? null : Statement.group(subs);
+                }
+                else if(kind == EMIT)
+                {
+                    Signal signal = signal(in.getInt());
+                    Expression e = exp(in.getInt());
+                    s = signal == null || e == null ? null : Statement.emit(signal, e);
+                }
+                else if(kind == GOTO)
+                {
+                    State dest = state(in.getInt());
+                    s = dest == null ? null : Statement.gotoState(dest);
+                }
+                else if(kind == COND)
+                {
+                    Expression c = exp(in.getInt());
+                    Statement t = stm(in.getInt(), i);
+                    Statement f = stm(in.getInt(), i);
+                    s = c == null || t == null || f == null ? null : Statement.conditional(c, t, f);
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Bad statement kind " + kind);
+                }
+
+                if(s != null && comment != null)
+                {
+                    s.setComment(comment);
+                }
+                stms[i] = s;
+            }
+        }
+
+        // Array indexing checks the indices.
+        private Signal signal(int index) { return signals[index]; }
+        private State state(int index) { return states[index]; }
+        private Expression exp(int index) { return exps[index]; }
+        private Statement stm(int index) { return stms[index]; }
+
+        // Only ones before 'before' exist yet.
+        private Expression exp(int index, int before)
+        {
+            if(index >= before)
+            {
+                throw new IllegalArgumentException("Bad expression index " + index);
+            }
+            return exps[index];
+        }
+
+        private Statement stm(int index, int before)
+        {
+            if(index >= before)
+            {
+                throw new IllegalArgumentException("Bad statement index " + index);
+            }
+            return stms[index];
+        }
+
+        // Null if any is missing.
+        private List<Signal> readSignals()
+        {
+            int count = readCount();
+            List<Signal> ss = new ArrayList<>(count);
+            boolean missing = false;
+            for(int i = 0; i < count; i++)
+            {
+                Signal s = signal(in.getInt());
+                missing |= s == null;
+                ss.add(s);
+            }
+            return missing ? null : ss;
+        }
+
+        private List<State> readStates()
+        {
+            int count = readCount();
+            List<State> sts = new ArrayList<>(count);
+            boolean missing = false;
+            for(int i = 0; i < count; i++)
+            {
+                State st = state(in.getInt());
+                missing |= st == null;
+                sts.add(st);
+            }
+            return missing ? null : sts;
+        }
+
+        private String readString()
+        {
+            int length = in.getInt();
+            if(length == -1)
+            {
+                return null;
+            }
+            if(length < 0 || length > in.remaining())
+            {
+                throw new IllegalArgumentException("Bad string length " + length);
+            }
+            String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return s;
+        }
+
+        // Checked against what's left, so a bad count can't allocate much.
+        private int readCount()
+        {
+            int count = in.getInt();
+            if(count < 0 || count > in.remaining())
+            {
+                throw new IllegalArgumentException("Bad count " + count);
+            }
+            return count;
+        }
+    }
+}
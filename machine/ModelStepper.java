@@ -0,0 +1,10 @@
+package machine;
+
+// One simulation cycle over the slots and state indices of a CompiledModel.
+public interface ModelStepper
+{
+    // Precondition: the input slots of 'values' are filled in.
+    // Fills in the generated signals, and returns the index of the
+    // transition taken from 'state', or -1 if it remains.
+    public int step(boolean[] values, int state);
+}
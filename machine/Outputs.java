@@ -0,0 +1,78 @@
+package machine;
+import java.util.*;
+
+class Outputs
+{
+    public Map<Signal, Integer> emitCount = new HashMap<Signal,Integer>();
+    public int gotoCount = 0;
+
+    
+    public void addEmit(Signal s, int howMany)
+    {
+        emitCount.put(s, getEmitCount(s) + howMany);
+    }
+
+    public void addGoto(int howMany)
+    {
+        gotoCount += howMany;
+    }
+
+    public int getEmitCount(Signal s)
+    {
+        Integer count = emitCount.get(s);
+        if(count == null)
+        {
+            return 0;
+        }
+        else
+        {
+            return count.intValue();
+        }
+    }
+
+    public void add(Outputs other)
+    {
+        for(Map.Entry<Signal, Integer> entry: other.emitCount.entrySet())
+        {
+            Signal os = entry.getKey();
+            int oc = entry.getValue();
+            addEmit(os, oc);
+        }
+        addGoto(other.gotoCount);
+    }
+
+    
+    /*
+    public Outputs duplicate()
+    {
+        Outputs out = new Outputs();
+        for(Map.Entry<Signal, Integer> entry: emitCount)
+        {
+            out.emitCount.put(entry.getKey(), entry.getValue());
+        }
+        out.gotoCount = gotoCount;
+        return out;
+    }
+    */
+    
+    
+
+    public Outputs union(Outputs other)
+    {
+        Outputs out = new Outputs();
+
+        Set<Signal> signals = new HashSet<Signal>();
+        signals.addAll(emitCount.keySet());
+        signals.addAll(other.emitCount.keySet());
+        
+        for(Signal s: signals)
+        {
+            int count = Integer.max(getEmitCount(s), other.getEmitCount(s));
+            out.emitCount.put(s, count);
+        }
+
+        out.gotoCount = Integer.max(gotoCount, other.gotoCount);
+        return out;
+    }
+    
+}
@@ -0,0 +1,48 @@
+package machine;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/*
+ * Runs independent per-signal/per-state analysis work on the common
+ * ForkJoinPool. Results come back in the order of the items, so anything
+ * merged from them (e.g. issues) is the same as when run sequentially.
+ *
+ * Batches smaller than THRESHOLD aren't worth splitting up and run on the
+ * calling thread, as does everything if disabled.
+ */
+public class Parallel
+{
+    public static final int THRESHOLD = 32;
+
+    private static volatile boolean enabled = true;
+
+    public static boolean isEnabled() { return enabled; }
+    public static void setEnabled(boolean b) { enabled = b; }
+
+    public static <T,R> List<R> map(List<T> items, Function<T,R> f)
+    {
+        if(!enabled || items.size() < THRESHOLD)
+        {
+            List<R> results = new ArrayList<>();
+            for(T item: items)
+            {
+                results.add(f.apply(item));
+            }
+            return results;
+        }
+
+        return items.parallelStream().map(f).collect(Collectors.toList());
+    }
+
+    // map(), with the resulting lists concatenated.
+    public static <T,R> List<R> flatMap(List<T> items, Function<T,List<R>> f)
+    {
+        List<R> results = new ArrayList<>();
+        for(List<R> part: map(items, f))
+        {
+            results.addAll(part);
+        }
+        return results;
+    }
+}
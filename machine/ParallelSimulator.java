@@ -0,0 +1,196 @@
+package machine;
+
+import java.util.*;
+
+/*
+ * Bit-parallel simulation of many independent runs ("lanes") of one Model.
+ *
+ * Every signal is packed into one long per 64 lanes, so the logic operators
+ * become single bitwise instructions. Each lane has its own current state.
+ * Use recompute() to compute outputs and next states from the inputs given
+ * by the BulkInputSource, then advance() to move every lane along.
+ */
+public class ParallelSimulator
+{
+    public static final int LANES_PER_WORD = 64;
+
+    private Model model;
+    private CompiledModel compiled;
+    private BulkInputSource source;
+    private int wordCount;
+
+    private List<Signal> inputs;
+    private int[] inputSlots;
+    private long[][] words; // [word][slot]
+    private long[][] stateLanes; // [word][state index]
+    private long[][] nextStateLanes; // [word][state index]
+    private boolean computed = false;
+
+    // 'wordCount' groups of 64 lanes, all starting in the initial state.
+    public ParallelSimulator(Model m, int wordCount)
+    {
+        if(wordCount < 1)
+        {
+            throw new IllegalArgumentException("Need at least one word of lanes.");
+        }
+
+        model = m;
+        compiled = m.getCompiled();
+        this.wordCount = wordCount;
+        inputs = m.getInputs();
+        inputSlots = compiled.getInputSlots();
+        words = new long[wordCount][compiled.getSlotCount()];
+        stateLanes = new long[wordCount][compiled.getStateCount()];
+        nextStateLanes = new long[wordCount][compiled.getStateCount()];
+        reset();
+    }
+
+    public int getLaneCount() { return wordCount * LANES_PER_WORD; }
+    public Model getModel() { return model; }
+    public int getWordCount() { return wordCount; }
+
+    public State getState(int lane)
+    {
+        return findState(stateLanes, lane);
+    }
+
+    // Only valid after recompute().
+    public State getNextState(int lane)
+    {
+        checkComputed();
+        return findState(nextStateLanes, lane);
+    }
+
+    // Only valid after recompute().
+    public boolean getValue(Signal s, int lane)
+    {
+        return ((getWord(s, lane / LANES_PER_WORD) >>> (lane % LANES_PER_WORD)) & 1L) != 0;
+    }
+
+    // Only valid after recompute(). Bit i is the signal's value in lane i of the word.
+    public long getWord(Signal s, int word)
+    {
+        checkComputed();
+        int slot = compiled.getSlot(s);
+        if(slot < 0)
+        {
+            throw new IllegalArgumentException("Signal " + s.getName() + " isn't part of the model.");
+        }
+        return words[word][slot];
+    }
+
+    // Lanes (of the given word) that are in the given state.
+    public long getStateWord(State st, int word)
+    {
+        int index = compiled.getStateIndex(st);
+        return index < 0 ? 0L : stateLanes[word][index];
+    }
+
+    public void setInputSource(BulkInputSource s)
+    {
+        source = s;
+        computed = false;
+    }
+
+    public void setState(int lane, State st)
+    {
+        int index = compiled.getStateIndex(st);
+        if(index < 0)
+        {
+            throw new IllegalArgumentException("State " + st.getName() + " isn't part of the model.");
+        }
+
+        long bit = 1L << (lane % LANES_PER_WORD);
+        long[] lanes = stateLanes[lane / LANES_PER_WORD];
+        for(int i = 0; i < lanes.length; i++)
+        {
+            lanes[i] &= ~bit;
+        }
+        lanes[index] |= bit;
+        computed = false;
+    }
+
+    // Put every lane in the initial state.
+    public void reset()
+    {
+        for(long[] lanes: stateLanes)
+        {
+            Arrays.fill(lanes, 0);
+            lanes[compiled.getInitialStateIndex()] = -1L;
+        }
+        computed = false;
+    }
+
+    public void recompute()
+    {
+        if(source == null)
+        {
+            throw new IllegalStateException("No input source.");
+        }
+
+        int initial = compiled.getInitialStateIndex();
+
+        for(int w = 0; w < wordCount; w++)
+        {
+            long[] ws = words[w];
+            for(int i = 0; i < inputSlots.length; i++)
+            {
+                ws[inputSlots[i]] = source.getInputWord(inputs.get(i), w);
+            }
+
+            long[] next = nextStateLanes[w];
+            compiled.stepLanes(ws, stateLanes[w], next);
+
+            long reset = compiled.getResetLanes(ws, stateLanes[w]);
+            if(reset != 0)
+            {
+                for(int i = 0; i < next.length; i++)
+                {
+                    next[i] &= ~reset;
+                }
+                next[initial] |= reset;
+            }
+        }
+
+        computed = true;
+    }
+
+    // Move every lane to its next state. Only valid after recompute().
+    public void advance()
+    {
+        checkComputed();
+        long[][] tmp = stateLanes;
+        stateLanes = nextStateLanes;
+        nextStateLanes = tmp;
+        computed = false;
+    }
+
+    // recompute() and advance()
+    public void step()
+    {
+        recompute();
+        advance();
+    }
+
+    private void checkComputed()
+    {
+        if(!computed)
+        {
+            throw new IllegalStateException("Values not computed; call recompute() first.");
+        }
+    }
+
+    private State findState(long[][] lanesByWord, int lane)
+    {
+        long bit = 1L << (lane % LANES_PER_WORD);
+        long[] lanes = lanesByWord[lane / LANES_PER_WORD];
+        for(int i = 0; i < lanes.length; i++)
+        {
+            if((lanes[i] & bit) != 0)
+            {
+                return compiled.getState(i);
+            }
+        }
+        throw Misc.impossible();
+    }
+}
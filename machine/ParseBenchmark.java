@@ -0,0 +1,117 @@
+package machine;
+
+import java.util.*;
+
+/*
+ * Times reading a large generated machine: tokenizing, parsing the file
+ * into SExps, unpacking it, and compiling all code (the statement and
+ * expression parsers). Also times MachineReader decoding it directly.
+ *
+ *     java -cp Stately.jar machine.ParseBenchmark [states] [budget ms]
+ *
+ * With a budget, exits with status 1 if the whole thing takes longer,
+ * to catch parsing going superlinear again.
+ */
+public class ParseBenchmark
+{
+    public static final int DEFAULT_STATES = 4000;
+    public static final int SIGNALS_PER_STATE = 4;
+    public static final int BRANCHES = 8; // per state
+    public static final int RUNS = 3;
+
+    public static void main(String[] args)
+    {
+        int states = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_STATES;
+        long budget = args.length > 1 ? Long.parseLong(args[1]) : -1;
+
+        String text = generate(states, new Random(states));
+        System.out.println("Generated " + states + " states, " + text.length() / 1024 + " KiB");
+
+        long best = Long.MAX_VALUE;
+        for(int run = 0; run < RUNS; run++)
+        {
+            long t0 = System.nanoTime();
+            List<Token> tokens = new Tokenizer(text).tokenize();
+            int count = tokens.size(); // the parser consumes the list
+            long t1 = System.nanoTime();
+            SExp exp = new SExpParser(tokens).parse();
+            long t2 = System.nanoTime();
+            Machine m = Machine.fromSExp(exp);
+            long t3 = System.nanoTime();
+            m.compile();
+            long t4 = System.nanoTime();
+
+            for(State st: m.getStates())
+            {
+                if(st.getCode().getError() != null)
+                {
+                    throw new Error("Internal error: generated state doesn't compile: " + st.getCode().getError());
+                }
+            }
+
+            System.out.println("tokenize " + ms(t1 - t0) + " ms, parse " + ms(t2 - t1) + " ms, unpack " + ms(t3 - t2) +
+                               " ms, compile " + ms(t4 - t3) + " ms (" + count + " tokens)");
+            best = Math.min(best, t4 - t0);
+
+            MachineReader reader = new MachineReader();
+            reader.decode(text);
+            System.out.println("  direct: " + reader.getTimings());
+        }
+
+        System.out.println("best " + ms(best) + " ms");
+        if(budget >= 0 && ms(best) > budget)
+        {
+            System.out.println("over budget (" + budget + " ms)");
+            System.exit(1);
+        }
+    }
+
+    // A machine file with 'states' states, each with a chain of
+    // if/elif/else branches emitting signals and going elsewhere.
+    public static String generate(int states, Random r)
+    {
+        int signals = states * SIGNALS_PER_STATE;
+        StringBuilder sb = new StringBuilder();
+        sb.append("((\"initial\" \"s0\") (\"name\" \"benchmark\") (\"signals\" (");
+        for(int i = 0; i < signals; i++)
+        {
+            String kind = i % 2 == 0 ? "input" : "statewise";
+            sb.append("((\"code\" \"\") (\"description\" \"\") (\"internal\" 0) (\"kind\" " + kind + ") (\"name\" \"x" + i + "\") (\"priority\" 0)) ");
+        }
+        sb.append(")) (\"states\" (");
+        for(int i = 0; i < states; i++)
+        {
+            StringBuilder code = new StringBuilder();
+            for(int b = 0; b < BRANCHES; b++)
+            {
+                String keyword = b == 0 ? "if" : "elif";
+                code.append(keyword + " (and x" + input(r, signals) + " (or (not x" + input(r, signals) + ") x" + input(r, signals) + "))\n");
+                code.append("    -- branch " + b + "\n");
+                code.append("    emit x" + output(r, signals) + "\n");
+                code.append("    let x" + output(r, signals) + " (xor x" + input(r, signals) + " x" + input(r, signals) + ")\n");
+                code.append("    goto s" + r.nextInt(states) + "\n");
+            }
+            code.append("else\n    goto s" + i);
+
+            sb.append("((\"code\" " + SExpPrinter.quote(code.toString()) + ") (\"description\" \"\") (\"name\" \"s" + i +
+                      "\") (\"virtual\" 0) (\"x\" " + (i % 64) * 80 + ") (\"y\" " + (i / 64) * 80 + ")) ");
+        }
+        sb.append(")))");
+        return sb.toString();
+    }
+
+    private static int input(Random r, int signals)
+    {
+        return 2 * r.nextInt(signals / 2);
+    }
+
+    private static int output(Random r, int signals)
+    {
+        return 2 * r.nextInt(signals / 2) + 1;
+    }
+
+    private static long ms(long nanos)
+    {
+        return nanos / 1000000;
+    }
+}
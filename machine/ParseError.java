@@ -14,12 +14,12 @@ public class ParseError extends CodeError
         super("Parse error: " + msg + " around here: " + context(tok.source, tok.loc));
     }
 
-    public ParseError(String msg, String source, int loc)
+    public ParseError(String msg, CharSequence source, int loc)
     {
         super("Parse error: " + msg + " around here: " + context(source, loc));
     }
 
-    private static final String context(String stuff, int loc)
+    private static final String context(CharSequence stuff, int loc)
     {
         int start = loc - BEFORE;
         start = start < 0 ? 0 : start;
@@ -27,6 +27,6 @@ public class ParseError extends CodeError
         int end = loc + 1 + AFTER;
         end = end > stuff.length() ? stuff.length() : end;
         
-        return stuff.substring(start, end);
+        return stuff.subSequence(start, end).toString();
     }
 }
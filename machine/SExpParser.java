@@ -3,18 +3,36 @@ import java.util.*;
 
 public class SExpParser
 {
-    private List<Token> tokens;
-    private int i;
+    private TokenCursor tokens;
+    private List<Token> list; // to remove parsed tokens from, if given
 
     // REMOVES ELEMENTS FROM "tokens" AS IT PARSES
     public SExpParser(List<Token> tokens)
+    {
+        this.tokens = new TokenCursor(tokens);
+        list = tokens;
+    }
+
+    // Parses from (and advances) the cursor.
+    public SExpParser(TokenCursor tokens)
     {
         this.tokens = tokens;
     }
 
     public SExp parse()
     {
-        return parseSExp(true);
+        try
+        {
+            return parseSExp(true);
+        }
+        finally
+        {
+            if(list != null)
+            {
+                list.subList(0, tokens.getPosition()).clear();
+                tokens = new TokenCursor(list);
+            }
+        }
     }
 
     private SExp parseSExp(boolean top)
@@ -31,7 +49,7 @@ public class SExpParser
             }
         }
         
-        Token t = tokens.get(0);
+        Token t = tokens.peek();
 
         if(t.kind == TokenKind.CLOSE)
         {
@@ -45,7 +63,7 @@ public class SExpParser
             }
         }
 
-        tokens.remove(0);
+        tokens.next();
         
         if(t.kind == TokenKind.OPEN)
         {
@@ -58,7 +76,7 @@ public class SExpParser
                 foo = parseSExp(false);
             }
 
-            t = tokens.remove(0);
+            t = tokens.next();
             if(t.kind != TokenKind.CLOSE)
             {
                 throw new Error("Internal error: this should be a CLOSE token");
@@ -68,7 +86,7 @@ public class SExpParser
         }
         else if(t.kind == TokenKind.ATOM)
         {
-            return SExp.mkAtom(t.s);
+            return SExp.mkAtom(t.getText());
         }
         else if(t.kind == TokenKind.INT)
         {
@@ -76,7 +94,7 @@ public class SExpParser
         }
         else if(t.kind == TokenKind.STRING)
         {
-            return SExp.mkString(t.s);
+            return SExp.mkString(t.getText());
         }
         else
         {
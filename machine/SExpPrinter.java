@@ -2,40 +2,50 @@ package machine;
 public class SExpPrinter
 {
     public static String print(SExp e)
+    {
+        StringBuilder sb = new StringBuilder();
+        print(e, sb);
+        return sb.toString();
+    }
+
+    private static void print(SExp e, StringBuilder sb)
     {
         SExpKind k = e.getKind();
         
         if(k == SExpKind.LIST)
         {
-            String s = "" + Tokenizer.OPEN;
+            sb.append(Tokenizer.OPEN);
             boolean space = false;
             for(SExp e2: e.getList())
             {
                 if(space)
                 {
-                    s += " ";
+                    sb.append(' ');
                 }
                 space = true;
 
-                s += print(e2);
+                print(e2, sb);
             }
-            s += Tokenizer.CLOSE;
-            return s;
+            sb.append(Tokenizer.CLOSE);
         }
         else if(k == SExpKind.ATOM)
         {
-            return e.getAtom();
+            sb.append(e.getAtom());
         }
         else if(k == SExpKind.INT)
         {
-            return "" + e.getInt();
+            sb.append(e.getInt());
         }
         else if(k == SExpKind.STRING)
         {
-            return quote(e.getString());
+            sb.append('"');
+            escape(e.getString(), sb);
+            sb.append('"');
+        }
+        else
+        {
+            throw Misc.impossible();
         }
-
-        throw Misc.impossible();
     }
 
     public static String quote(String s)
@@ -45,29 +55,32 @@ public class SExpPrinter
 
     public static String escape(String s)
     {
-        String t = "";
+        StringBuilder sb = new StringBuilder(s.length());
+        escape(s, sb);
+        return sb.toString();
+    }
 
+    private static void escape(String s, StringBuilder sb)
+    {
         for(int i = 0; i < s.length(); i++)
         {
             char c = s.charAt(i);
             if(c == '\\')
             {
-                t += "\\\\";
+                sb.append("\\\\");
             }
             else if(c == '"')
             {
-                t += "\\\"";
+                sb.append("\\\"");
             }
             else if(c == '\n')
             {
-                t += "\\n";
+                sb.append("\\n");
             }
             else
             {
-                t += c;
+                sb.append(c);
             }
         }
-
-        return t;
     }
 }
@@ -0,0 +1,157 @@
+package machine;
+import java.util.*;
+
+/*
+ * A private Machine kept in step with snapshots of another one, so that the
+ * other can be analyzed on a different thread.
+ *
+ * Each signal and state of the original gets a counterpart here that lives
+ * as long as it does. Snapshots are applied as edits (adding, removing,
+ * renaming, and changing code only where the source differs), so code that
+ * didn't change stays compiled and the shadow keeps its analysis caches
+ * between runs, just like a Machine edited in place.
+ *
+ * The results are translated back to the original's signals and states.
+ * Use one ShadowMachine per original, from one thread at a time.
+ */
+public class ShadowMachine
+{
+    private Machine shadow = new Machine("");
+    private Map<Signal,Signal> signals = new IdentityHashMap<>(); // original -> shadow
+    private Map<State,State> states = new IdentityHashMap<>(); // original -> shadow
+
+    // Throws CancellationException if the thread is interrupted meanwhile.
+    public MachineAnalysis analyze(MachineSnapshot snap)
+    {
+        return analyze(snap, null);
+    }
+
+    // With a cache, restores what it can from it and saves the results.
+    public MachineAnalysis analyze(MachineSnapshot snap, ModelCache cache)
+    {
+        sync(snap);
+        if(cache != null)
+        {
+            cache.analyze(shadow);
+        }
+        else
+        {
+            shadow.analyze();
+        }
+
+        Map<Signal,Signal> signalMap = new IdentityHashMap<>(); // shadow -> original
+        for(Map.Entry<Signal,Signal> entry: signals.entrySet())
+        {
+            signalMap.put(entry.getValue(), entry.getKey());
+        }
+
+        Map<State,State> stateMap = new IdentityHashMap<>(); // shadow -> original
+        for(Map.Entry<State,State> entry: states.entrySet())
+        {
+            stateMap.put(entry.getValue(), entry.getKey());
+        }
+
+        List<Issue> issues = new ArrayList<>();
+        for(Issue i: shadow.getIssues())
+        {
+            issues.add(i.translate(signalMap, stateMap));
+        }
+
+        Model model = shadow.getModel() == null ? null : new Model(shadow.getModel(), signalMap, stateMap);
+        return new MachineAnalysis(shadow.getStatus(), issues, model);
+    }
+
+    private void sync(MachineSnapshot snap)
+    {
+        shadow.setName(snap.getName());
+
+        Set<Signal> liveSignals = Collections.newSetFromMap(new IdentityHashMap<>());
+        liveSignals.addAll(snap.getSignals());
+        Iterator<Map.Entry<Signal,Signal>> signalIt = signals.entrySet().iterator();
+        while(signalIt.hasNext())
+        {
+            Map.Entry<Signal,Signal> entry = signalIt.next();
+            if(!liveSignals.contains(entry.getKey()))
+            {
+                shadow.removeSignal(entry.getValue());
+                signalIt.remove();
+            }
+        }
+
+        Set<State> liveStates = Collections.newSetFromMap(new IdentityHashMap<>());
+        liveStates.addAll(snap.getStates());
+        Iterator<Map.Entry<State,State>> stateIt = states.entrySet().iterator();
+        while(stateIt.hasNext())
+        {
+            Map.Entry<State,State> entry = stateIt.next();
+            if(!liveStates.contains(entry.getKey()))
+            {
+                shadow.removeState(entry.getValue());
+                stateIt.remove();
+            }
+        }
+
+        List<Signal> snapSignals = snap.getSignals();
+        List<SExp> signalExps = snap.getSignalExps();
+        for(int i = 0; i < snapSignals.size(); i++)
+        {
+            syncSignal(snapSignals.get(i), Signal.fromSExp(signalExps.get(i), shadow));
+        }
+
+        List<State> snapStates = snap.getStates();
+        List<SExp> stateExps = snap.getStateExps();
+        for(int i = 0; i < snapStates.size(); i++)
+        {
+            syncState(snapStates.get(i), State.fromSExp(stateExps.get(i), shadow));
+        }
+
+        shadow.setInitialState(states.get(snap.getInitialState()));
+    }
+
+    private void syncSignal(Signal original, Signal fresh)
+    {
+        Signal s = signals.get(original);
+        if(s == null)
+        {
+            shadow.addSignal(fresh);
+            signals.put(original, fresh);
+            return;
+        }
+
+        if(!s.getName().equals(fresh.getName()))
+        {
+            shadow.renameSignal(s, fresh.getName());
+        }
+        s.setKind(fresh.getKind());
+        s.setDescription(fresh.getDescription());
+        s.setInternal(fresh.getInternal());
+        s.setPriority(fresh.getPriority());
+        if(!s.getCode().getSource().equals(fresh.getCode().getSource()))
+        {
+            s.getCode().setSource(fresh.getCode().getSource());
+        }
+    }
+
+    private void syncState(State original, State fresh)
+    {
+        State st = states.get(original);
+        if(st == null)
+        {
+            shadow.addState(fresh);
+            states.put(original, fresh);
+            return;
+        }
+
+        if(!st.getName().equals(fresh.getName()))
+        {
+            shadow.renameState(st, fresh.getName());
+        }
+        st.setDescription(fresh.getDescription());
+        st.setVirtual(fresh.isVirtual());
+        st.setPosition(fresh.getX(), fresh.getY());
+        if(!st.getCode().getSource().equals(fresh.getCode().getSource()))
+        {
+            st.getCode().setSource(fresh.getCode().getSource());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package machine;
+import java.util.*;
+
+/*
+ * Common subexpressions of a set of expressions (e.g. everything in a
+ * Model), which can be computed once and used as wires.
+ *
+ * Expressions are hash-consed, so a repeated subexpression is the same
+ * object wherever it appears. Each distinct node is visited once, counting
+ * how many distinct parents (and roots) use it. Operations with at least
+ * two uses and at least MIN_SIZE nodes (as a tree) are shared; smaller
+ * ones are cheaper to repeat than to name.
+ */
+public class SharedExpressions
+{
+    public static final int MIN_SIZE = 4;
+
+    private static final int SIZE_LIMIT = 1 << 24; // sizes saturate here
+
+    private List<Expression> shared = new ArrayList<>(); // operands first
+    private Set<Expression> sharedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public SharedExpressions(Collection<Expression> roots)
+    {
+        Map<Expression,Integer> uses = new IdentityHashMap<>();
+        Map<Expression,Integer> sizes = new IdentityHashMap<>();
+        for(Expression root: roots)
+        {
+            visit(root, uses, sizes);
+        }
+        Set<Expression> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(Expression root: roots)
+        {
+            collect(root, uses, sizes, seen);
+        }
+    }
+
+    // Operands before the expressions using them.
+    public List<Expression> getShared() { return new ArrayList<>(shared); }
+    public boolean isShared(Expression e) { return sharedSet.contains(e); }
+    public int size() { return shared.size(); }
+
+    // Counts a use of 'e', and the first time, its operands' uses and its size.
+    private static void visit(Expression e, Map<Expression,Integer> uses, Map<Expression,Integer> sizes)
+    {
+        Integer n = uses.get(e);
+        uses.put(e, n == null ? 1 : n + 1);
+        if(n != null)
+        {
+            return;
+        }
+
+        long size = 1;
+        if(e.getKind() == ExpressionKind.OPERATION)
+        {
+            for(Expression operand: e.getOperands())
+            {
+                visit(operand, uses, sizes);
+                size += sizes.get(operand);
+            }
+        }
+        sizes.put(e, (int)Math.min(size, SIZE_LIMIT));
+    }
+
+    private void collect(Expression e, Map<Expression,Integer> uses, Map<Expression,Integer> sizes, Set<Expression> seen)
+    {
+        if(!seen.add(e) || e.getKind() != ExpressionKind.OPERATION)
+        {
+            return;
+        }
+
+        for(Expression operand: e.getOperands())
+        {
+            collect(operand, uses, sizes, seen);
+        }
+        if(uses.get(e) >= 2 && sizes.get(e) >= MIN_SIZE)
+        {
+            shared.add(e);
+            sharedSet.add(e);
+        }
+    }
+}
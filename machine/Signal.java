@@ -9,6 +9,7 @@ public class Signal implements Named
     private ExpressionCode code; // exists for all, only used for EXPRESSION signals
     private boolean internal = false; // only relevant to STATEWISE and EXPRESSION signals (since INPUT signals are never internal, obviously)
     private int priority = 0;
+    private volatile Expression leaf; // the expression that's just this signal, see Expression.signal
 
     public Signal(String name, SignalKind kind, Machine m)
     {
@@ -37,6 +38,9 @@ public class Signal implements Named
         return e;
     }
 
+    Expression getLeaf() { return leaf; }
+    void setLeaf(Expression e) { leaf = e; }
+
     public boolean getInternal() { return internal; } // only for sw/expr
     public SignalKind getKind() { return kind; }
     public String getName() { return name; }
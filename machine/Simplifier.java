@@ -3,7 +3,34 @@ import java.util.*;
 
 public class Simplifier
 {
+    public static final int ABSORPTION_LIMIT = 32; // dual operands, see junction()
+
     public static Expression simplify(Expression exp)
+    {
+        return simplify(exp, new IdentityHashMap<>());
+    }
+
+    // Simplified, then as a two-level expression if that's smaller (see
+    // Minimizer). Slower, so meant for what ends up in the Model.
+    public static Expression minimize(Expression exp, Map<Expression,Expression> memo)
+    {
+        return Minimizer.minimize(simplify(exp, memo));
+    }
+
+    // 'memo' maps expressions to their simplified versions. Sharing it
+    // between calls, and within DAG-shaped expressions, avoids redoing work.
+    public static Expression simplify(Expression exp, Map<Expression,Expression> memo)
+    {
+        Expression done = memo.get(exp);
+        if(done == null)
+        {
+            done = simplifyOnce(exp, memo);
+            memo.put(exp, done);
+        }
+        return done;
+    }
+
+    private static Expression simplifyOnce(Expression exp, Map<Expression,Expression> memo)
     {
         ExpressionKind k = exp.getKind();
 
@@ -16,7 +43,7 @@ public class Simplifier
             boolean hasOne = false;
             for(Expression exp2: exp.getOperands())
             {
-                Expression simple = simplify(exp2);
+                Expression simple = simplify(exp2, memo);
                 simplifiedOperands.add(simple);
                 if(simple.getKind() == ExpressionKind.CONSTANT)
                 {
@@ -37,119 +64,294 @@ public class Simplifier
                 
             }
 
-            Expression zero = new Expression(new Value(false));
-            Expression one = new Expression(new Value(true));
-
             if(op == Operator.NOT)
             {
                 // original arity is sensible
                 if(simplifiedOperands.size() == 1)
                 {
-                    if(hasZero)
-                    {
-                        return one;
-                    }
-                    else if(hasOne)
-                    {
-                        return zero;
-                    }
-                    else
-                    {
-                        return new Expression(op, simplifiedOperands);
-                    }
+                    return not(simplifiedOperands.get(0));
                 }
                 
                 // arity error to be caught later
-                return new Expression(op, simplifiedOperands);
+                return Expression.operation(op, simplifiedOperands);
             }
             else if(op == Operator.AND)
             {
                 if(hasZero)
                 {
-                    return zero;
+                    return Expression.constant(false);
                 }
-
-                // had no operands or just ones
-                if(withoutTrivial.isEmpty())
+                return junction(Operator.AND, withoutTrivial, false);
+            }
+            else if(op == Operator.OR)
+            {
+                if(hasOne)
                 {
-                    return one;
+                    return Expression.constant(true);
                 }
-
-                if(withoutTrivial.size() == 1)
+                return junction(Operator.OR, withoutTrivial, false);
+            }
+            else if(op == Operator.NAND)
+            {
+                if(hasZero)
                 {
-                    return withoutTrivial.get(0);
+                    return Expression.constant(true);
                 }
-
-                return new Expression(op, withoutTrivial);
+                return junction(Operator.AND, withoutTrivial, true);
             }
-            else if(op == Operator.OR)
+            else if(op == Operator.NOR)
             {
                 if(hasOne)
                 {
-                    return one;
+                    return Expression.constant(false);
                 }
-
-                // had no operands or just zeroes
-                if(withoutTrivial.isEmpty())
+                return junction(Operator.OR, withoutTrivial, true);
+            }
+            else if(op == Operator.XOR)
+            {
+                // ones flip the result, zeroes don't matter
+                boolean flip = false;
+                for(Expression simple: simplifiedOperands)
                 {
-                    return zero;
+                    if(simple.getKind() == ExpressionKind.CONSTANT)
+                    {
+                        flip ^= simple.getConstant().getBoolean();
+                    }
                 }
 
-                if(withoutTrivial.size() == 1)
+                // x ^ x = 0
+                Map<Expression,Integer> counts = new LinkedHashMap<>();
+                for(Expression simple: withoutTrivial)
                 {
-                    return withoutTrivial.get(0);
+                    counts.merge(simple, 1, Integer::sum);
                 }
-
-                return new Expression(op, withoutTrivial);
-            }
-            else if(op == Operator.NAND)
-            {
-                if(hasZero)
+                withoutTrivial.clear();
+                for(Map.Entry<Expression,Integer> entry: counts.entrySet())
                 {
-                    return one;
+                    if(entry.getValue() % 2 != 0)
+                    {
+                        withoutTrivial.add(entry.getKey());
+                    }
                 }
 
-                // had no operands or just ones
                 if(withoutTrivial.isEmpty())
                 {
-                    return zero;
+                    return Expression.constant(flip);
                 }
 
-                if(withoutTrivial.size() == 1)
+                Expression rest = withoutTrivial.size() == 1 ? withoutTrivial.get(0) : Expression.operation(op, withoutTrivial);
+                return flip ? not(rest) : rest;
+            }
+            else
+            {
+                return Expression.operation(op, simplifiedOperands);
+            }
+        }
+        else
+        {
+            return exp;
+        }
+    }
+
+    // Simplified NOT of a simplified expression: constants are folded, double
+    // negations removed, and (not (and ...)) and (not (or ...)) made NAND and NOR.
+    private static Expression not(Expression e)
+    {
+        if(e.getKind() == ExpressionKind.CONSTANT)
+        {
+            return Expression.constant(!e.getConstant().getBoolean());
+        }
+        if(e.getKind() == ExpressionKind.OPERATION)
+        {
+            Operator op = e.getOperator();
+            if(op == Operator.NOT)
+            {
+                return e.getOperands().get(0);
+            }
+            if(op == Operator.AND || op == Operator.OR || op == Operator.NAND || op == Operator.NOR)
+            {
+                return Expression.operation(negate(op), e.getOperands());
+            }
+        }
+        return Expression.operation(Operator.NOT, Arrays.asList(e));
+    }
+
+    private static Operator negate(Operator op)
+    {
+        switch(op)
+        {
+        case AND:
+            return Operator.NAND;
+        case OR:
+            return Operator.NOR;
+        case NAND:
+            return Operator.AND;
+        case NOR:
+            return Operator.OR;
+        default:
+            throw Misc.impossible();
+        }
+    }
+
+    // AND or OR of simplified, non-constant operands:
+    // - nested ANDs in an AND (ORs in an OR) are flattened,
+    // - repeated operands are dropped,
+    // - x and (not x) together give a constant, as do x, y and (nand x y) in an AND,
+    // - operands absorbed by others are dropped, e.g. (or x y) in (and x (or x y)),
+    //   and with at most ABSORPTION_LIMIT dual operands (ORs in an AND, ANDs in
+    //   an OR), (or x y z) in (and (or x y) (or x y z)), as that compares pairs.
+    // If 'negated', its NOT (e.g. a NAND rather than an AND).
+    private static Expression junction(Operator op, List<Expression> operands, boolean negated)
+    {
+        Operator dual = op == Operator.AND ? Operator.OR : Operator.AND;
+        Operands flat = new Operands();
+        List<Expression> duals = new ArrayList<>();
+        for(Expression e: operands)
+        {
+            for(Expression e2: e.getKind() == ExpressionKind.OPERATION && e.getOperator() == op ? e.getOperandList() : Arrays.asList(e))
+            {
+                if(flat.add(e2) && e2.getKind() == ExpressionKind.OPERATION && e2.getOperator() == dual)
                 {
-                    return new Expression(Operator.NOT, withoutTrivial);
+                    duals.add(e2);
                 }
-                
-                return new Expression(op, withoutTrivial);
             }
-            else if(op == Operator.NOR)
+        }
+        boolean pairs = duals.size() >= 2 && duals.size() <= ABSORPTION_LIMIT;
+
+        List<Expression> kept = new ArrayList<>();
+        Set<Expression> droppedDuals = identitySet();
+        for(Expression e: flat.list)
+        {
+            boolean absorbed = false;
+            if(e.getKind() != ExpressionKind.OPERATION)
             {
-                if(hasOne)
+                // a leaf
+            }
+            else if(e.getOperator() == Operator.NOT && flat.contains(e.getOperandList().get(0)))
+            {
+                return Expression.constant((op == Operator.OR) != negated);
+            }
+            else if(e.getOperator() == negate(op) && flat.containsAll(e.getOperandList()))
+            {
+                return Expression.constant((op == Operator.OR) != negated);
+            }
+            else if(e.getOperator() == dual)
+            {
+                List<Expression> eoperands = e.getOperandList();
+                for(Expression e2: eoperands)
                 {
-                    return zero;
+                    absorbed |= flat.contains(e2);
                 }
 
-                // had no operands or just zeroes
-                if(withoutTrivial.isEmpty())
+                // by a dual with a subset of its operands (of those with the
+                // same operands, the first is kept)
+                Operands eset = null;
+                for(int i = 0; pairs && !absorbed && i < duals.size(); i++)
                 {
-                    return one;
+                    Expression other = duals.get(i);
+                    List<Expression> ooperands = other.getOperandList();
+                    if(other == e || ooperands.size() > eoperands.size() || droppedDuals.contains(other))
+                    {
+                        continue;
+                    }
+                    if(eset == null)
+                    {
+                        eset = new Operands();
+                        eset.addAll(eoperands);
+                    }
+                    absorbed = eset.containsAll(ooperands) && (ooperands.size() < eset.list.size() || duals.indexOf(other) < duals.indexOf(e));
                 }
-
-                if(withoutTrivial.size() == 1)
+                if(absorbed)
                 {
-                    return new Expression(Operator.NOT, withoutTrivial);
+                    droppedDuals.add(e);
                 }
+            }
 
-                return new Expression(op, withoutTrivial);
+            if(!absorbed)
+            {
+                kept.add(e);
             }
-            else
+        }
+
+        if(kept.isEmpty())
+        {
+            return Expression.constant((op == Operator.AND) != negated);
+        }
+        if(kept.size() == 1)
+        {
+            return negated ? not(kept.get(0)) : kept.get(0);
+        }
+        return Expression.operation(negated ? negate(op) : op, kept);
+    }
+
+    private static Set<Expression> identitySet()
+    {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    // Distinct expressions in order. Expressions are hash-consed, so
+    // identity is equality. Most junctions are small, so they're searched
+    // directly until there are more than SMALL of them.
+    private static class Operands
+    {
+        static final int SMALL = 8;
+
+        final List<Expression> list = new ArrayList<>();
+        private Set<Expression> set; // null while small
+
+        boolean add(Expression e)
+        {
+            if(contains(e))
             {
-                return new Expression(op, simplifiedOperands);
+                return false;
             }
+            list.add(e);
+            if(set != null)
+            {
+                set.add(e);
+            }
+            else if(list.size() > SMALL)
+            {
+                set = identitySet();
+                set.addAll(list);
+            }
+            return true;
         }
-        else
+
+        void addAll(List<Expression> es)
         {
-            return exp;
+            for(Expression e: es)
+            {
+                add(e);
+            }
+        }
+
+        boolean contains(Expression e)
+        {
+            if(set != null)
+            {
+                return set.contains(e);
+            }
+            for(Expression e2: list)
+            {
+                if(e2 == e)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean containsAll(List<Expression> es)
+        {
+            for(Expression e: es)
+            {
+                if(!contains(e))
+                {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 }
@@ -0,0 +1,10 @@
+package machine;
+public enum SimulationEngine
+{
+    INTERPRETED, // Expression.evaluate over an Environment
+    COMPILED, // CompiledModel
+    SPECIALIZED, // CompiledModel of a SpecializedModel
+    GENERATED, // StepperGenerator, from a SpecializedModel
+    DECISION_DIAGRAM, // DecisionDiagrams
+    LOOKUP_TABLE; // DecisionDiagrams, tabulated where small enough
+}
@@ -1,18 +1,39 @@
 package machine;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Simulator
 {
     private Machine machine;
     private Model model;
     private InputSource source;
+    private SimulationEngine engine = SimulationEngine.COMPILED;
+    private Map<Signal,Value> pinned = new HashMap<>(); // for SPECIALIZED
 
     private State current;
     private State next;
     private ModelTransition transition;
     private Environment environment;
 
+    // Engines other than INTERPRETED
+    private CompiledModel compiled;
+    private ModelStepper stepper;
+    private boolean[] values;
+    private List<Signal> inputs;
+    private int[] inputSlots;
+    private int currentIndex;
+    private int transitionIndex;
+
+    // Engines other than INTERPRETED and COMPILED take a while to set up.
+    // Given a builder (see setBuilder), they're set up there, simulating
+    // with COMPILED until they're ready.
+    private ExecutorService builder; // null: set up right away
+    private Executor owner; // runs the builder's results on our thread
+    private Future<?> build; // null unless building
+    private int generation = 0; // bumped whenever a build is superseded
+    private String buildProblem; // why the engine isn't in use, or null
+
     private List<SimulationListener> listeners = new ArrayList<>();
 
     public Simulator(Machine m)
@@ -25,8 +46,31 @@ public class Simulator
         listeners.add(l);
     }
 
+    public SimulationEngine getEngine()
+    {
+        return engine;
+    }
+
+    // True while the engine is being set up on the builder.
+    public boolean isBuilding()
+    {
+        return build != null;
+    }
+
+    // Why the engine couldn't be set up for the current model, so COMPILED
+    // is used instead, or null.
+    public String getBuildProblem()
+    {
+        return buildProblem;
+    }
+
+    // Built on demand for the compiled engine, since it keeps values in slots.
     public Environment getEnvironment()
     {
+        if(environment == null && compiled != null && next != null)
+        {
+            environment = compiled.toEnvironment(values, currentIndex, transitionIndex);
+        }
         return environment;
     }
     
@@ -55,7 +99,7 @@ public class Simulator
     
     public void recompute()
     {
-        if(machine == null || !machine.getStates().contains(current))
+        if(machine == null || !machine.hasState(current))
         {
             current = null;
         }
@@ -68,7 +112,50 @@ public class Simulator
             notifyListeners();
             return;
         }
-        
+
+        if(engine != SimulationEngine.INTERPRETED)
+        {
+            recomputeCompiled();
+        }
+        else
+        {
+            recomputeInterpreted();
+        }
+
+        notifyListeners();
+    }
+
+    private void recomputeCompiled()
+    {
+        environment = null;
+
+        for(int i = 0; i < inputSlots.length; i++)
+        {
+            values[inputSlots[i]] = source.getInputValue(inputs.get(i)).getBoolean();
+        }
+
+        currentIndex = compiled.getStateIndex(current);
+        transitionIndex = stepper.step(values, currentIndex);
+
+        if(compiled.isReset(values, currentIndex))
+        {
+            transition = null;
+            next = model.getInitialState();
+        }
+        else if(transitionIndex < 0)
+        {
+            transition = null;
+            next = current;
+        }
+        else
+        {
+            transition = compiled.getTransition(currentIndex, transitionIndex);
+            next = compiled.getState(compiled.getDestination(currentIndex, transitionIndex));
+        }
+    }
+
+    private void recomputeInterpreted()
+    {
         environment = new Environment(current);
         
         for(Signal s: model.getInputs())
@@ -116,8 +203,6 @@ public class Simulator
                 throw new Error("Very bad internal error: multiple transitions matched:\n" + details);
             }
         }
-
-        notifyListeners();
     }
 
     public void removeSimulationListener(SimulationListener l)
@@ -137,6 +222,53 @@ public class Simulator
         }
     }
 
+    // If the engine can't be set up (see StepperGenerator), the previous
+    // one is kept and the IllegalStateException passed on. With a builder,
+    // only a missing compiler is found out here; see getBuildProblem().
+    public void setEngine(SimulationEngine e)
+    {
+        if(e == SimulationEngine.GENERATED && !StepperGenerator.isAvailable())
+        {
+            throw new IllegalStateException(StepperGenerator.NO_COMPILER); // rather than fail on the builder
+        }
+
+        SimulationEngine previous = engine;
+        engine = e;
+        try
+        {
+            setModel(model);
+        }
+        catch(IllegalStateException ex)
+        {
+            engine = previous;
+            setModel(model);
+            throw ex;
+        }
+    }
+
+    public Map<Signal,Value> getPinnedInputs()
+    {
+        return new HashMap<>(pinned);
+    }
+
+    // Inputs the SPECIALIZED and GENERATED engines may assume constant;
+    // the input source is not consulted for them.
+    public void setPinnedInputs(Map<Signal,Value> p)
+    {
+        pinned = new HashMap<>(p);
+        setModel(model);
+    }
+
+    // Set up slow engines on 'builder' from now on, passing the results to
+    // 'owner', which should run them on the thread using this Simulator
+    // (e.g. SwingUtilities::invokeLater). Listeners are told once the
+    // engine is ready.
+    public void setBuilder(ExecutorService builder, Executor owner)
+    {
+        this.builder = builder;
+        this.owner = owner;
+    }
+
     public void setInputSource(InputSource s)
     {
         source = s;
@@ -152,14 +284,149 @@ public class Simulator
     public void setModel(Model m)
     {
         model = m;
+        cancelBuild();
+        buildProblem = null;
+        use(null, null);
+
+        if(model != null && engine != SimulationEngine.INTERPRETED)
+        {
+            if(builder != null && isSlow(engine))
+            {
+                use(model.getCompiled(), model.getCompiled()); // until it's built
+                startBuild();
+            }
+            else
+            {
+                Built b = build(model, engine, pinned);
+                use(b.compiled, b.stepper);
+            }
+        }
+
         recompute();
     }
-    
+
+    private static boolean isSlow(SimulationEngine e)
+    {
+        return e != SimulationEngine.INTERPRETED && e != SimulationEngine.COMPILED;
+    }
+
+    private void use(CompiledModel cm, ModelStepper s)
+    {
+        compiled = cm;
+        stepper = s;
+        values = cm == null ? null : new boolean[cm.getSlotCount()];
+        inputs = cm == null ? null : model.getInputs();
+        inputSlots = cm == null ? null : cm.getInputSlots();
+    }
+
+    private void cancelBuild()
+    {
+        generation++;
+        if(build != null)
+        {
+            build.cancel(true);
+            build = null;
+        }
+    }
+
+    private void startBuild()
+    {
+        Model m = model;
+        SimulationEngine e = engine;
+        Map<Signal,Value> p = new HashMap<>(pinned);
+        int gen = generation;
+
+        build = builder.submit(() -> {
+                try
+                {
+                    Built b = build(m, e, p);
+                    owner.execute(() -> adopt(gen, b, null));
+                }
+                catch(CancellationException ex)
+                {
+                    // superseded
+                }
+                catch(Throwable t)
+                {
+                    String problem = t.getMessage() == null ? t.toString() : t.getMessage();
+                    owner.execute(() -> adopt(gen, null, problem));
+                }
+            });
+    }
+
+    private void adopt(int gen, Built b, String problem)
+    {
+        if(gen != generation)
+        {
+            return;
+        }
+
+        build = null;
+        if(b != null)
+        {
+            use(b.compiled, b.stepper);
+        }
+        buildProblem = problem;
+        recompute();
+    }
+
+    // Static, as it may run on the builder.
+    private static Built build(Model m, SimulationEngine e, Map<Signal,Value> pinned)
+    {
+        switch(e)
+        {
+        case COMPILED:
+            return new Built(m.getCompiled(), m.getCompiled());
+        case SPECIALIZED:
+        {
+            CompiledModel cm = specialize(m, pinned);
+            return new Built(cm, cm);
+        }
+        case DECISION_DIAGRAM:
+            return new Built(m.getCompiled(), new DecisionDiagrams(m.getCompiled(), false));
+        case LOOKUP_TABLE:
+            return new Built(m.getCompiled(), new DecisionDiagrams(m.getCompiled(), true));
+        case GENERATED:
+        {
+            CompiledModel cm = specialize(m, pinned);
+            return new Built(cm, StepperGenerator.generate(cm));
+        }
+        default:
+            throw Misc.impossible();
+        }
+    }
+
+    private static CompiledModel specialize(Model m, Map<Signal,Value> pinned)
+    {
+        // pins on signals that are no longer inputs don't apply
+        Map<Signal,Value> applicable = new HashMap<>();
+        for(Signal s: m.getInputs())
+        {
+            if(pinned.containsKey(s))
+            {
+                applicable.put(s, pinned.get(s));
+            }
+        }
+        return new CompiledModel(new SpecializedModel(m, applicable));
+    }
+
     public void setState(State st)
     {
         current = st;
         recompute();
     }
-    
+
+    // A ModelStepper and the CompiledModel whose slots it works on.
+    private static class Built
+    {
+        final CompiledModel compiled;
+        final ModelStepper stepper;
+
+        Built(CompiledModel compiled, ModelStepper stepper)
+        {
+            this.compiled = compiled;
+            this.stepper = stepper;
+        }
+    }
 }
 
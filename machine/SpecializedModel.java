@@ -0,0 +1,155 @@
+package machine;
+import java.util.*;
+
+/*
+ * A Model partially evaluated for each (non-virtual) state.
+ *
+ * Within one state every (state_is ...) is a constant, and so are any
+ * pinned inputs (e.g. reset held at 0). Substituting those and simplifying
+ * leaves, per state, residual signal computations (constants propagate to
+ * later signals, in computation order) and the transitions that can still
+ * be taken, with residual conditions.
+ */
+public class SpecializedModel
+{
+    private Model model;
+    private Map<Signal,Value> pinned;
+    private Expression resetCondition;
+    private Map<State,List<ModelSignalComputation>> signalComputations = new HashMap<>();
+    private Map<State,List<ModelTransition>> transitions = new HashMap<>();
+    private Map<Expression,Expression> simplified = new IdentityHashMap<>(); // see Simplifier
+
+    // 'pinned' maps inputs to the values they are assumed to always have.
+    public SpecializedModel(Model m, Map<Signal,Value> pinned)
+    {
+        model = m;
+        this.pinned = new HashMap<>(pinned);
+
+        for(Signal s: this.pinned.keySet())
+        {
+            if(!model.getInputs().contains(s))
+            {
+                throw new IllegalArgumentException("Only inputs can be pinned, not " + s.getName());
+            }
+        }
+
+        specialize();
+    }
+
+    public Model getModel() { return model; }
+    public Map<Signal,Value> getPinnedInputs() { return new HashMap<>(pinned); }
+    public Expression getResetCondition() { return resetCondition; }
+
+    // Same signals and order as Model.getSignalComputations().
+    public List<ModelSignalComputation> getSignalComputations(State st)
+    {
+        return new ArrayList<>(signalComputations.get(st));
+    }
+
+    // Transitions whose condition can't be true in this state are left out.
+    public List<ModelTransition> getTransitionsFromState(State st)
+    {
+        List<ModelTransition> ts = transitions.get(st);
+        if(ts == null)
+        {
+            return null;
+        }
+        return new ArrayList<>(ts);
+    }
+
+    // Inefficient, mostly for debugging
+    public String toString()
+    {
+        String s = "== pinned ==\n";
+        for(Map.Entry<Signal,Value> entry: pinned.entrySet())
+        {
+            s += entry.getKey().getName() + " = " + (entry.getValue().getBoolean() ? 1 : 0) + "\n";
+        }
+        s += "== reset ==\n";
+        s += "* -> " + model.getInitialState().getName() + " {" + resetCondition.toString() + "}\n";
+        for(State st: model.getStates())
+        {
+            s += "== state " + st.getName() + " ==\n";
+            for(ModelSignalComputation msc: signalComputations.get(st))
+            {
+                s += msc.toString() + "\n";
+            }
+            for(ModelTransition t: transitions.get(st))
+            {
+                s += t.toString() + "\n";
+            }
+        }
+        return s;
+    }
+
+    private void specialize()
+    {
+        resetCondition = specialize(model.getResetCondition(), null, pinned, new IdentityHashMap<>());
+
+        for(State st: model.getStates())
+        {
+            Map<Signal,Value> constants = new HashMap<>(pinned);
+            Map<Expression,Expression> memo = new IdentityHashMap<>();
+
+            List<ModelSignalComputation> mscs = new ArrayList<>();
+            for(ModelSignalComputation msc: model.getSignalComputations())
+            {
+                Expression e = specialize(msc.getExpression(), st, constants, memo);
+                if(e.getKind() == ExpressionKind.CONSTANT)
+                {
+                    constants.put(msc.getSignal(), e.getConstant());
+                }
+                mscs.add(new ModelSignalComputation(msc.getSignal(), e));
+            }
+            signalComputations.put(st, mscs);
+
+            List<ModelTransition> ts = new ArrayList<>();
+            for(ModelTransition t: model.getTransitionsFromState(st))
+            {
+                Expression e = specialize(t.getCondition(), st, constants, memo);
+                if(e.getKind() != ExpressionKind.CONSTANT || e.getConstant().getBoolean())
+                {
+                    ts.add(new ModelTransition(t.getPath(), e));
+                }
+            }
+            transitions.put(st, ts);
+        }
+    }
+
+    // Substitute the current state (unless null) and constant signals, then simplify.
+    private Expression specialize(Expression e, State st, Map<Signal,Value> constants, Map<Expression,Expression> memo)
+    {
+        Expression done = memo.get(e);
+        if(done != null)
+        {
+            return done;
+        }
+
+        Expression result;
+        ExpressionKind k = e.getKind();
+        if(k == ExpressionKind.SIGNAL && constants.containsKey(e.getSignal()))
+        {
+            result = Expression.constant(constants.get(e.getSignal()));
+        }
+        else if(k == ExpressionKind.STATE_IS && st != null)
+        {
+            result = Expression.constant(e.getStates().contains(st));
+        }
+        else if(k == ExpressionKind.OPERATION)
+        {
+            List<Expression> operands = new ArrayList<>();
+            for(Expression operand: e.getOperands())
+            {
+                operands.add(specialize(operand, st, constants, memo));
+            }
+            result = Simplifier.simplify(Expression.operation(e.getOperator(), operands), simplified);
+        }
+        else
+        {
+            result = e;
+        }
+
+        memo.put(e, result);
+        return result;
+    }
+}
@@ -21,6 +21,12 @@ public class Statement
 
     // for any kind
     private String commentString;
+
+    // Computed once, as trees aren't changed once compiled. Trees can be
+    // shared between codes (see CompileMemo) and checked from several
+    // threads, so each is built in full and then published, unmodifiable.
+    private volatile Set<State> gotos;
+    private volatile List<Signal> emitted;
     
     private Statement()
     {
@@ -89,15 +95,57 @@ public class Statement
     public Expression getCondition() { return condition; }
     public Statement getTrueBranch() { return trueBranch; }
     public Statement getFalseBranch() { return falseBranch; }
-    
+
+    // A copy with signals and states replaced according to the maps (see
+    // CompileMemo). Anything not in a map is kept as is.
+    Statement translate(Map<Signal,Signal> signalMap, Map<State,State> stateMap, Map<Expression,Expression> memo)
+    {
+        Statement result;
+        if(kind == StatementKind.GROUP)
+        {
+            List<Statement> translated = new ArrayList<>();
+            for(Statement stm: statements)
+            {
+                translated.add(stm.translate(signalMap, stateMap, memo));
+            }
+            result = group(translated);
+        }
+        else if(kind == StatementKind.EMIT)
+        {
+            result = emit(signalMap.getOrDefault(signal, signal), emittedExp.translate(signalMap, stateMap, memo));
+        }
+        else if(kind == StatementKind.GOTO)
+        {
+            result = gotoState(stateMap.getOrDefault(destination, destination));
+        }
+        else if(kind == StatementKind.COND)
+        {
+            result = conditional(condition.translate(signalMap, stateMap, memo),
+                                 trueBranch.translate(signalMap, stateMap, memo),
+                                 falseBranch.translate(signalMap, stateMap, memo));
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+
+        result.commentString = commentString;
+        return result;
+    }
+
     
     // Directly-next states.
     // Note that this ignores the default situation where no transition is made.
     public Set<State> getGOTOs()
     {
-        Set<State> states = new HashSet<State>();
-        addGOTOs(states);
-        return states;
+        Set<State> done = gotos;
+        if(done == null)
+        {
+            Set<State> states = new HashSet<State>();
+            addGOTOs(states);
+            gotos = done = Collections.unmodifiableSet(states);
+        }
+        return new HashSet<State>(done);
     }
 
     private void addGOTOs(Set<State> states)
@@ -130,6 +178,49 @@ public class Statement
         }
     }
     
+    // Signals emitted by this statement tree, in order (with repeats).
+    public List<Signal> getEmittedSignals()
+    {
+        List<Signal> done = emitted;
+        if(done == null)
+        {
+            List<Signal> signals = new ArrayList<Signal>();
+            addEmittedSignals(signals);
+            emitted = done = Collections.unmodifiableList(signals);
+        }
+        return new ArrayList<Signal>(done);
+    }
+
+    private void addEmittedSignals(List<Signal> signals)
+    {
+        StatementKind k = getKind();
+
+        if(k == StatementKind.GROUP)
+        {
+            for(Statement stm: getStatements())
+            {
+                stm.addEmittedSignals(signals);
+            }
+        }
+        else if(k == StatementKind.EMIT)
+        {
+            signals.add(getSignal());
+        }
+        else if(k == StatementKind.GOTO)
+        {
+            // no emissions
+        }
+        else if(k == StatementKind.COND)
+        {
+            getTrueBranch().addEmittedSignals(signals);
+            getFalseBranch().addEmittedSignals(signals);
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+    }
+
     // All signals referenced by this statement tree.
     public Set<Signal> getReferencedSignals()
     {
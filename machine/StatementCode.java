@@ -8,11 +8,26 @@ public class StatementCode extends Code<Statement>
         super(m);
     }
     
+    protected Set<Signal> findReferencedSignals(Statement compiled)
+    {
+        return compiled.getReferencedSignals();
+    }
+
+    protected Set<State> findReferencedStates(Statement compiled)
+    {
+        return compiled.getReferencedStates();
+    }
+
+    protected Statement translate(Statement compiled, Map<Signal,Signal> signalMap, Map<State,State> stateMap)
+    {
+        return compiled.translate(signalMap, stateMap, new IdentityHashMap<>());
+    }
+
     protected Statement compileSource()
     {
         String bracketified = Bracketer.bracketify(getSource());
         Tokenizer tz = new Tokenizer(bracketified);
-        List<Token> tokens = tz.tokenize();
+        TokenCursor tokens = new TokenCursor(tz.tokenize());
 
         List<Statement> topLevelStms = new ArrayList<>();
         while(!tokens.isEmpty())
@@ -24,7 +39,7 @@ public class StatementCode extends Code<Statement>
         return simplify(topLevel);
     }
 
-    private Statement parseStatement(List<Token> tokens, boolean top)
+    private Statement parseStatement(TokenCursor tokens, boolean top)
     {
         if(tokens.isEmpty())
         {
@@ -39,7 +54,7 @@ public class StatementCode extends Code<Statement>
         }
 
         
-        if(tokens.get(0).kind == TokenKind.END)
+        if(tokens.peek().kind == TokenKind.END)
         {
             if(top)
             {
@@ -49,18 +64,18 @@ public class StatementCode extends Code<Statement>
             return null;
         }
 
-        Token t = tokens.remove(0);
+        Token t = tokens.next();
 
         if(t.kind == TokenKind.ATOM)
         {
-            String keyword = t.s;
+            String keyword = t.getText();
             Statement stm;
 
             if(keyword.equals("emit"))
             {
                 Signal signal = parseSignal(tokens);
 
-                stm = Statement.emit(signal, new Expression(new Value(true)));
+                stm = Statement.emit(signal, Expression.constant(true));
             }
             else if(keyword.equals("let"))
             {
@@ -86,7 +101,7 @@ public class StatementCode extends Code<Statement>
             }
             else
             {
-                throw new ParseError("Unknown keyword " + t.s, t);
+                throw new ParseError("Unknown keyword " + t.getText(), t);
             }
 
             return stm;
@@ -94,7 +109,7 @@ public class StatementCode extends Code<Statement>
         else if(t.kind == TokenKind.COMMENT)
         {
             Statement stm = Statement.emptyGroup();
-            stm.setComment(t.s);
+            stm.setComment(t.getText());
             return stm;
         }
         else
@@ -104,14 +119,14 @@ public class StatementCode extends Code<Statement>
         }
     }
 
-    private Statement parseGroup(List<Token> tokens)
+    private Statement parseGroup(TokenCursor tokens)
     {
         if(tokens.isEmpty())
         {
             throw unexpectedEOF();
         }
 
-        Token t = tokens.remove(0);
+        Token t = tokens.next();
         
         if(t.kind == TokenKind.BEGIN)
         {
@@ -124,7 +139,7 @@ public class StatementCode extends Code<Statement>
                 foo = parseStatement(tokens, false);
             }
 
-            t = tokens.remove(0);
+            t = tokens.next();
             if(t.kind != TokenKind.END)
             {
                 throw new Error("Internal error: this should be a END token");
@@ -138,7 +153,7 @@ public class StatementCode extends Code<Statement>
         }
     }
 
-    private Statement parseIf(List<Token> tokens)
+    private Statement parseIf(TokenCursor tokens)
     {
         Expression condition = parseExpression(tokens);
         Statement trueBranch = parseGroup(tokens);
@@ -146,16 +161,16 @@ public class StatementCode extends Code<Statement>
 
         if(!tokens.isEmpty())
         {
-            Token peek = tokens.get(0);
+            Token peek = tokens.peek();
         
-            if(peek.kind == TokenKind.ATOM && peek.s.equals("elif"))
+            if(peek.kind == TokenKind.ATOM && peek.getText().equals("elif"))
             {
-                tokens.remove(0);
+                tokens.next();
                 falseBranch = parseIf(tokens);
             }
-            else if(peek.kind == TokenKind.ATOM && peek.s.equals("else"))
+            else if(peek.kind == TokenKind.ATOM && peek.getText().equals("else"))
             {
-                tokens.remove(0);
+                tokens.next();
                 falseBranch = parseGroup(tokens);
             }
         }
@@ -163,7 +178,7 @@ public class StatementCode extends Code<Statement>
         return Statement.conditional(condition, trueBranch, falseBranch);
     }
 
-    private Expression parseExpression(List<Token> tokens)
+    private Expression parseExpression(TokenCursor tokens)
     {
         if(tokens.isEmpty())
         {
@@ -175,49 +190,49 @@ public class StatementCode extends Code<Statement>
         return c.convert(sexp);
     }
 
-    private Signal parseSignal(List<Token> tokens)
+    private Signal parseSignal(TokenCursor tokens)
     {
         if(tokens.isEmpty())
         {
             throw unexpectedEOF();
         }
 
-        Token tok = tokens.remove(0);
+        Token tok = tokens.next();
         
         if(tok.kind != TokenKind.STRING && tok.kind != TokenKind.ATOM)
         {
             throw new ParseError("Expected signal name as string or atom", tok);
         }
         
-        Signal s = getMachine().findSignal(tok.s);
+        Signal s = getMachine().findSignal(tok.getText());
 
         if(s == null)
         {
-            throw new ParseError("Cannot find signal " + SExpPrinter.quote(tok.s), tok);
+            throw new ParseError("Cannot find signal " + SExpPrinter.quote(tok.getText()), tok);
         }
         
         return s;
     }
     
-    private State parseState(List<Token> tokens)
+    private State parseState(TokenCursor tokens)
     {
         if(tokens.isEmpty())
         {
             throw unexpectedEOF();
         }
 
-        Token tok = tokens.remove(0);
+        Token tok = tokens.next();
         
         if(tok.kind != TokenKind.STRING && tok.kind != TokenKind.ATOM)
         {
             throw new ParseError("Expected state name as string or atom", tok);
         }
         
-        State st = getMachine().findState(tok.s);
+        State st = getMachine().findState(tok.getText());
 
         if(st == null)
         {
-            throw new ParseError("Cannot find state " + SExpPrinter.quote(tok.s), tok);
+            throw new ParseError("Cannot find state " + SExpPrinter.quote(tok.getText()), tok);
         }
         
         return st;
@@ -0,0 +1,646 @@
+package machine;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import javax.tools.*;
+
+/*
+ * Generates, compiles and loads a Java class implementing ModelStepper for
+ * a CompiledModel, so the JIT can compile each cycle as straight-line code.
+ *
+ * Every state gets its own method, with (state_is ...) already decided,
+ * and step() switches on the state index. Signal values live in the same
+ * slots as in the CompiledModel, and transition indices are the
+ * CompiledModel's, so the result can stand in for it.
+ *
+ * Within a state, subexpressions used more than once (see
+ * SharedExpressions) are computed once into temporaries, and so are parts
+ * of expressions bigger than MAX_INLINE_NODES. Long states are split into
+ * methods of about NODES_PER_METHOD nodes each, to stay clear of the 64K
+ * method limit; temporaries used by more than one of them are kept in a
+ * field, so an instance mustn't step on several threads at once.
+ *
+ * Compilation uses the system Java compiler, so this needs a JDK.
+ */
+public class StepperGenerator
+{
+    public static final String CLASS_NAME = "GeneratedStepper";
+    public static final int NODES_PER_METHOD = 2048;
+    public static final int MAX_INLINE_NODES = 256;
+
+    public static final String NO_COMPILER = "No Java compiler available (running on a JRE?), cannot generate a simulator.";
+
+    // Whether generate() can compile, i.e. whether there's a JDK.
+    public static boolean isAvailable()
+    {
+        return ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    public static ModelStepper generate(CompiledModel cm)
+    {
+        return load(generateSource(cm));
+    }
+
+    public static String generateSource(CompiledModel cm)
+    {
+        StringBuilder methods = new StringBuilder();
+        int fields = 0;
+        for(int i = 0; i < cm.getStateCount(); i++)
+        {
+            StateCode code = new StateCode(cm, i);
+            code.append(methods);
+            fields = Math.max(fields, code.fields);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("public final class " + CLASS_NAME + " implements machine.ModelStepper\n{\n");
+        if(fields > 0)
+        {
+            sb.append("    private final boolean[] w = new boolean[" + fields + "];\n\n");
+        }
+        sb.append("    public int step(boolean[] v, int state)\n    {\n");
+        sb.append("        switch(state)\n        {\n");
+        for(int i = 0; i < cm.getStateCount(); i++)
+        {
+            sb.append("        case " + i + ": return s" + i + "(v);\n");
+        }
+        sb.append("        default: throw new IllegalArgumentException(\"No state with index \" + state);\n");
+        sb.append("        }\n    }\n");
+        sb.append(methods);
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    // Run 'stepper' next to Model.fillEnvironment (i.e. Expression.evaluate)
+    // from random states with random inputs, honoring any pinned inputs.
+    // Returns null if they always agree, or else a description of the first
+    // difference.
+    public static String checkEquivalence(CompiledModel cm, ModelStepper stepper, int cycles, long seed)
+    {
+        Model model = cm.getModel();
+        SpecializedModel spec = cm.getSpecializedModel();
+        Map<Signal,Value> pinned = spec == null ? new HashMap<>() : spec.getPinnedInputs();
+        List<Signal> inputs = model.getInputs();
+        int[] inputSlots = cm.getInputSlots();
+        Random random = new Random(seed);
+        boolean[] values = new boolean[cm.getSlotCount()];
+
+        for(int cycle = 0; cycle < cycles; cycle++)
+        {
+            int state = random.nextInt(cm.getStateCount());
+            State st = cm.getState(state);
+            Environment e = new Environment(st);
+            for(int i = 0; i < inputSlots.length; i++)
+            {
+                Value v = pinned.get(inputs.get(i));
+                boolean b = v == null ? random.nextBoolean() : v.getBoolean();
+                values[inputSlots[i]] = b;
+                e.setValue(inputs.get(i), new Value(b));
+            }
+
+            int taken = stepper.step(values, state);
+
+            for(ModelSignalComputation msc: model.getSignalComputations())
+            {
+                Value expected = msc.getExpression().evaluate(e);
+                e.setValue(msc.getSignal(), expected);
+                if(expected.getBoolean() != values[cm.getSlot(msc.getSignal())])
+                {
+                    return "Cycle " + cycle + ", state " + st.getName() + ": signal " + msc.getSignal().getName() + " should be " + expected.getBoolean();
+                }
+            }
+
+            List<State> expectedPath = null;
+            for(ModelTransition t: model.getTransitionsFromState(st))
+            {
+                if(t.getCondition().evaluate(e).getBoolean())
+                {
+                    expectedPath = t.getPath();
+                }
+            }
+            List<State> path = taken < 0 ? null : cm.getTransition(state, taken).getPath();
+            if(!Objects.equals(expectedPath, path))
+            {
+                return "Cycle " + cycle + ", state " + st.getName() + ": path should be " + expectedPath + ", not " + path;
+            }
+        }
+
+        return null;
+    }
+
+    private static void generateExpression(StringBuilder sb, Expression e, State st, CompiledModel cm, Map<Expression,Temp> temps)
+    {
+        Temp t = temps.get(e);
+        if(t != null)
+        {
+            sb.append(t.getName());
+        }
+        else
+        {
+            generateNode(sb, e, st, cm, temps);
+        }
+    }
+
+    // 'e' itself, even if it has a temporary.
+    private static void generateNode(StringBuilder sb, Expression e, State st, CompiledModel cm, Map<Expression,Temp> temps)
+    {
+        ExpressionKind k = e.getKind();
+        if(k == ExpressionKind.CONSTANT)
+        {
+            sb.append(e.getConstant().getBoolean());
+        }
+        else if(k == ExpressionKind.SIGNAL)
+        {
+            int slot = cm.getSlot(e.getSignal());
+            if(slot < 0)
+            {
+                throw new Error("Internal error: model missing signal " + e.getSignal().getName());
+            }
+            sb.append("v[" + slot + "]");
+        }
+        else if(k == ExpressionKind.STATE_IS)
+        {
+            sb.append(e.getStates().contains(st));
+        }
+        else if(k == ExpressionKind.OPERATION)
+        {
+            Operator op = e.getOperator();
+            List<Expression> operands = e.getOperands();
+            if(op == Operator.NOT)
+            {
+                if(operands.size() != 1)
+                {
+                    throw new Error("Uncaught arity problem - >1");
+                }
+                sb.append("!");
+                generateExpression(sb, operands.get(0), st, cm, temps);
+                return;
+            }
+
+            String separator;
+            boolean empty; // value with no operands, before negation
+            boolean negate = op == Operator.NAND || op == Operator.NOR;
+            switch(op)
+            {
+            case AND:
+            case NAND:
+                separator = " && ";
+                empty = true;
+                break;
+            case OR:
+            case NOR:
+                separator = " || ";
+                empty = false;
+                break;
+            case XOR:
+                separator = " ^ ";
+                empty = false;
+                break;
+            default:
+                throw Misc.impossible();
+            }
+
+            if(negate)
+            {
+                sb.append("!");
+            }
+            sb.append("(");
+            if(operands.isEmpty())
+            {
+                sb.append(empty);
+            }
+            for(int i = 0; i < operands.size(); i++)
+            {
+                if(i > 0)
+                {
+                    sb.append(separator);
+                }
+                generateExpression(sb, operands.get(i), st, cm, temps);
+            }
+            sb.append(")");
+        }
+        else
+        {
+            throw Misc.impossible();
+        }
+    }
+
+    private static String quote(String s)
+    {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    // Loading
+
+    private static ModelStepper load(String source)
+    {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if(javac == null)
+        {
+            throw new IllegalStateException(NO_COMPILER);
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        MemoryFileManager files = new MemoryFileManager(javac.getStandardFileManager(diagnostics, null, null));
+        List<String> options = Arrays.asList("-classpath", classPath(), "-g:none", "-proc:none");
+        JavaFileObject unit = new SourceFile(CLASS_NAME, source);
+
+        boolean ok = javac.getTask(null, files, diagnostics, options, null, Arrays.asList(unit)).call();
+        if(!ok)
+        {
+            String details = "";
+            for(Diagnostic<? extends JavaFileObject> d: diagnostics.getDiagnostics())
+            {
+                details += d.getMessage(null) + "\n";
+            }
+            throw new IllegalStateException("Generated simulator did not compile:\n" + details);
+        }
+
+        try
+        {
+            Class<?> c = new MemoryClassLoader(files.getClasses()).loadClass(CLASS_NAME);
+            return (ModelStepper)c.getDeclaredConstructor().newInstance();
+        }
+        catch(ReflectiveOperationException ex)
+        {
+            throw new Error("Internal error: could not load generated simulator", ex);
+        }
+    }
+
+    // The generated class only refers to ModelStepper.
+    private static String classPath()
+    {
+        String cp = System.getProperty("java.class.path");
+        try
+        {
+            URL location = ModelStepper.class.getProtectionDomain().getCodeSource().getLocation();
+            cp = Paths.get(location.toURI()).toString() + File.pathSeparator + cp;
+        }
+        catch(URISyntaxException | SecurityException | NullPointerException ex)
+        {
+            // fall back on the class path alone
+        }
+        return cp;
+    }
+
+    // Generating one state's methods
+
+    private static final int SIGNAL = 0, TEMP = 1, TRANSITION = 2;
+
+    // A value computed once for a state: a local, or an element of the
+    // field 'w' if it's used in more than one method.
+    private static class Temp
+    {
+        final int id;
+        boolean defined = false;
+        int chunk = -1; // method it's defined in
+        int field = -1; // index into 'w', if any
+
+        Temp(int id)
+        {
+            this.id = id;
+        }
+
+        String getName()
+        {
+            return field >= 0 ? "w[" + field + "]" : "t" + id;
+        }
+    }
+
+    // A statement: a signal's (or pinned input's) value, a temporary's
+    // value, or a transition's test.
+    private static class Item
+    {
+        final int kind;
+        final int target; // slot, or transition index
+        final Expression expression;
+        final Temp temp; // for TEMP
+        final int size;
+        final List<Temp> uses = new ArrayList<>();
+        int chunk;
+
+        Item(int kind, int target, Expression expression, Temp temp, int size)
+        {
+            this.kind = kind;
+            this.target = target;
+            this.expression = expression;
+            this.temp = temp;
+            this.size = size;
+        }
+    }
+
+    private static class StateCode
+    {
+        final CompiledModel cm;
+        final int index;
+        final State st;
+        final SharedExpressions shared;
+        final Map<Expression,Temp> temps = new IdentityHashMap<>();
+        final Map<Expression,Integer> sizes = new IdentityHashMap<>(); // with temporaries as one node
+        final List<Item> items = new ArrayList<>();
+        int chunks = 1;
+        int fields = 0; // temporaries in 'w'
+
+        StateCode(CompiledModel cm, int index)
+        {
+            this.cm = cm;
+            this.index = index;
+            st = cm.getState(index);
+            SpecializedModel spec = cm.getSpecializedModel();
+
+            List<ModelSignalComputation> mscs = spec == null ? cm.getModel().getSignalComputations() : spec.getSignalComputations(st);
+            List<Expression> roots = new ArrayList<>();
+            for(ModelSignalComputation msc: mscs)
+            {
+                roots.add(msc.getExpression());
+            }
+            for(int t = 0; t < cm.getTransitionCount(index); t++)
+            {
+                roots.add(cm.getTransition(index, t).getCondition());
+            }
+            shared = new SharedExpressions(roots);
+
+            if(spec != null)
+            {
+                for(Map.Entry<Signal,Value> entry: spec.getPinnedInputs().entrySet())
+                {
+                    add(SIGNAL, cm.getSlot(entry.getKey()), Expression.constant(entry.getValue()));
+                }
+            }
+            for(ModelSignalComputation msc: mscs)
+            {
+                add(SIGNAL, cm.getSlot(msc.getSignal()), msc.getExpression());
+            }
+            for(int t = 0; t < cm.getTransitionCount(index); t++)
+            {
+                add(TRANSITION, t, cm.getTransition(index, t).getCondition());
+            }
+
+            split();
+        }
+
+        private void add(int kind, int target, Expression e)
+        {
+            size(e);
+            Item item = new Item(kind, target, e, null, temps.containsKey(e) ? 1 : sizes.get(e));
+            define(e, item, false);
+            items.add(item);
+        }
+
+        // Adds the temporaries 'item' uses, that aren't there yet, before it.
+        private void define(Expression e, Item item, boolean top)
+        {
+            Temp t = temps.get(e);
+            if(!top && t != null)
+            {
+                item.uses.add(t);
+                if(!t.defined)
+                {
+                    t.defined = true;
+                    Item def = new Item(TEMP, -1, e, t, sizes.get(e));
+                    define(e, def, true);
+                    items.add(def);
+                }
+            }
+            else if(e.getKind() == ExpressionKind.OPERATION)
+            {
+                for(Expression operand: e.getOperandList())
+                {
+                    define(operand, item, false);
+                }
+            }
+        }
+
+        // Decides on temporaries, operands first: shared subexpressions,
+        // and an expression's biggest operations while it's too big.
+        private int size(Expression e)
+        {
+            Integer done = sizes.get(e);
+            if(done != null)
+            {
+                return done;
+            }
+
+            int size = 1;
+            if(e.getKind() == ExpressionKind.OPERATION)
+            {
+                List<Expression> operands = e.getOperandList();
+                for(Expression operand: operands)
+                {
+                    size += inlineSize(operand);
+                }
+                while(size > MAX_INLINE_NODES)
+                {
+                    Expression biggest = null;
+                    for(Expression operand: operands)
+                    {
+                        if(!temps.containsKey(operand) && operand.getKind() == ExpressionKind.OPERATION && (biggest == null || sizes.get(operand) > sizes.get(biggest)))
+                        {
+                            biggest = operand;
+                        }
+                    }
+                    if(biggest == null)
+                    {
+                        break; // just many operands
+                    }
+                    size -= sizes.get(biggest) - 1;
+                    temps.put(biggest, new Temp(temps.size()));
+                }
+                if(shared.isShared(e))
+                {
+                    temps.put(e, new Temp(temps.size()));
+                }
+            }
+            sizes.put(e, size);
+            return size;
+        }
+
+        private int inlineSize(Expression e)
+        {
+            int size = size(e);
+            return temps.containsKey(e) ? 1 : size;
+        }
+
+        // Into methods of about NODES_PER_METHOD nodes
+        private void split()
+        {
+            int chunk = 0;
+            int size = 0;
+            for(Item item: items)
+            {
+                if(size > 0 && size + item.size > NODES_PER_METHOD)
+                {
+                    chunk++;
+                    size = 0;
+                }
+                size += item.size;
+                item.chunk = chunk;
+                if(item.temp != null)
+                {
+                    item.temp.chunk = chunk;
+                }
+            }
+            chunks = chunk + 1;
+
+            for(Item item: items)
+            {
+                for(Temp t: item.uses)
+                {
+                    if(t.chunk != item.chunk && t.field < 0)
+                    {
+                        t.field = fields++;
+                    }
+                }
+            }
+        }
+
+        void append(StringBuilder sb)
+        {
+            sb.append("\n    // " + st.getName() + "\n");
+            sb.append("    private int s" + index + "(boolean[] v)\n    {\n");
+            sb.append("        int taken = -1;\n");
+            if(chunks == 1)
+            {
+                appendItems(sb, 0);
+            }
+            else
+            {
+                for(int c = 0; c < chunks; c++)
+                {
+                    sb.append("        taken = c" + index + "_" + c + "(v, taken);\n");
+                }
+            }
+            sb.append("        return taken;\n    }\n");
+
+            for(int c = 0; chunks > 1 && c < chunks; c++)
+            {
+                sb.append("\n    private int c" + index + "_" + c + "(boolean[] v, int taken)\n    {\n");
+                appendItems(sb, c);
+                sb.append("        return taken;\n    }\n");
+            }
+        }
+
+        private void appendItems(StringBuilder sb, int chunk)
+        {
+            for(Item item: items)
+            {
+                if(item.chunk != chunk)
+                {
+                    continue;
+                }
+
+                switch(item.kind)
+                {
+                case SIGNAL:
+                    sb.append("        v[" + item.target + "] = ");
+                    generateExpression(sb, item.expression, st, cm, temps);
+                    sb.append(";\n");
+                    break;
+                case TEMP:
+                    sb.append("        " + (item.temp.field >= 0 ? "" : "boolean ") + item.temp.getName() + " = ");
+                    generateNode(sb, item.expression, st, cm, temps);
+                    sb.append(";\n");
+                    break;
+                case TRANSITION:
+                    sb.append("        if(");
+                    generateExpression(sb, item.expression, st, cm, temps);
+                    sb.append(")\n        {\n");
+                    if(item.target > 0)
+                    {
+                        sb.append("            if(taken >= 0) throw new Error(\"Internal error: multiple transitions from state \" + " + quote(st.getName()) + ");\n");
+                    }
+                    sb.append("            taken = " + item.target + ";\n");
+                    sb.append("        }\n");
+                    break;
+                default:
+                    throw Misc.impossible();
+                }
+            }
+        }
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject
+    {
+        private String source;
+
+        public SourceFile(String className, String source)
+        {
+            super(URI.create("string:///" + className + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+        {
+            return source;
+        }
+    }
+
+    private static class ClassFile extends SimpleJavaFileObject
+    {
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public ClassFile(String className)
+        {
+            super(URI.create("bytes:///" + className + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        public OutputStream openOutputStream()
+        {
+            return bytes;
+        }
+
+        public byte[] getBytes()
+        {
+            return bytes.toByteArray();
+        }
+    }
+
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+        private Map<String,ClassFile> classes = new HashMap<>();
+
+        public MemoryFileManager(StandardJavaFileManager m)
+        {
+            super(m);
+        }
+
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+        {
+            ClassFile f = new ClassFile(className);
+            classes.put(className, f);
+            return f;
+        }
+
+        public Map<String,byte[]> getClasses()
+        {
+            Map<String,byte[]> result = new HashMap<>();
+            for(Map.Entry<String,ClassFile> entry: classes.entrySet())
+            {
+                result.put(entry.getKey(), entry.getValue().getBytes());
+            }
+            return result;
+        }
+    }
+
+    private static class MemoryClassLoader extends ClassLoader
+    {
+        private Map<String,byte[]> classes;
+
+        public MemoryClassLoader(Map<String,byte[]> classes)
+        {
+            super(ModelStepper.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        protected Class<?> findClass(String name) throws ClassNotFoundException
+        {
+            byte[] bytes = classes.get(name);
+            if(bytes == null)
+            {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package machine;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/*
+ * Recorded input vectors, read through memory mapping so that files much
+ * larger than the heap can be replayed (see StimulusReplay).
+ *
+ * Format (big-endian): the magic bytes "STIM", a version int, the number
+ * of columns, and each column's signal name (as DataOutput.writeUTF).
+ * Then one row per cycle, with bit (i % 8) of byte (i / 8) holding
+ * column i. The number of cycles follows from the file length. Written by
+ * StimulusWriter.
+ */
+public class StimulusFile implements Closeable
+{
+    public static final String EXTENSION = "stim";
+    public static final int MAGIC = 0x5354494d; // "STIM"
+    public static final int VERSION = 1;
+    public static final long WINDOW_BYTES = 1L << 28; // mapped at a time
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private List<String> names = new ArrayList<>();
+    private long dataOffset;
+    private int rowBytes;
+    private long cycles;
+
+    private MappedByteBuffer window;
+    private long windowFirst = 0; // first cycle in the window
+    private long windowEnd = 0; // end cycle of the window
+
+    public StimulusFile(File f) throws IOException
+    {
+        file = f;
+        raf = new RandomAccessFile(f, "r");
+        try
+        {
+            if(raf.readInt() != MAGIC)
+            {
+                throw new IOException("Not a stimulus file: " + f.getPath());
+            }
+            int version = raf.readInt();
+            if(version != VERSION)
+            {
+                throw new IOException("Unsupported stimulus file version " + version + ": " + f.getPath());
+            }
+            int count = raf.readInt();
+            for(int i = 0; i < count; i++)
+            {
+                names.add(raf.readUTF());
+            }
+            dataOffset = raf.getFilePointer();
+        }
+        catch(EOFException e)
+        {
+            raf.close();
+            throw new IOException("Truncated stimulus file: " + f.getPath());
+        }
+        catch(IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+
+        channel = raf.getChannel();
+        rowBytes = getRowBytes(names.size());
+        cycles = rowBytes == 0 ? 0 : (channel.size() - dataOffset) / rowBytes;
+    }
+
+    static int getRowBytes(int columns)
+    {
+        return (columns + 7) / 8;
+    }
+
+    public File getFile() { return file; }
+    public List<String> getNames() { return new ArrayList<>(names); }
+    public long getCycleCount() { return cycles; }
+
+    public boolean get(long cycle, int column)
+    {
+        if(cycle < 0 || cycle >= cycles)
+        {
+            throw new IndexOutOfBoundsException("No cycle " + cycle + " (of " + cycles + ")");
+        }
+        if(column < 0 || column >= names.size())
+        {
+            throw new IndexOutOfBoundsException("No column " + column);
+        }
+
+        if(cycle < windowFirst || cycle >= windowEnd)
+        {
+            map(cycle);
+        }
+        byte b = window.get((int)((cycle - windowFirst) * rowBytes) + column / 8);
+        return (b & (1 << (column % 8))) != 0;
+    }
+
+    public void close() throws IOException
+    {
+        window = null;
+        raf.close();
+    }
+
+    // Map the window of rows that starts at the one holding 'cycle'.
+    private void map(long cycle)
+    {
+        long rows = Math.max(1, WINDOW_BYTES / rowBytes);
+        windowFirst = cycle / rows * rows;
+        windowEnd = Math.min(cycles, windowFirst + rows);
+        try
+        {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + windowFirst * rowBytes, (windowEnd - windowFirst) * rowBytes);
+        }
+        catch(IOException e)
+        {
+            windowFirst = windowEnd = 0;
+            throw new UncheckedIOException(e);
+        }
+    }
+}
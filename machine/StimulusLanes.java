@@ -0,0 +1,74 @@
+package machine;
+
+import java.util.*;
+
+/*
+ * Inputs for a ParallelSimulator from several StimulusReplays, one lane
+ * each (lane i reads replay i). Lanes without a replay, or whose replay
+ * has run out of cycles, get low inputs.
+ */
+public class StimulusLanes implements BulkInputSource
+{
+    private List<StimulusReplay> replays;
+
+    public StimulusLanes(List<StimulusReplay> replays)
+    {
+        this.replays = new ArrayList<>(replays);
+    }
+
+    public long getInputWord(Signal input, int word)
+    {
+        long bits = 0;
+        int first = word * ParallelSimulator.LANES_PER_WORD;
+        int end = Math.min(first + ParallelSimulator.LANES_PER_WORD, replays.size());
+        for(int lane = first; lane < end; lane++)
+        {
+            if(replays.get(lane).getInputValue(input).getBoolean())
+            {
+                bits |= 1L << (lane - first);
+            }
+        }
+        return bits;
+    }
+
+    // Step every lane through the rest of its replay, from its current
+    // state. 'sim' needs a lane per replay. Returns the state each lane was
+    // in after its last cycle.
+    public List<State> replay(ParallelSimulator sim)
+    {
+        if(sim.getLaneCount() < replays.size())
+        {
+            throw new IllegalArgumentException("Need a lane for each of " + replays.size() + " replays.");
+        }
+
+        List<State> ends = new ArrayList<>(Collections.nCopies(replays.size(), (State)null));
+        int running = 0;
+        for(int lane = 0; lane < replays.size(); lane++)
+        {
+            if(replays.get(lane).hasCycle())
+            {
+                running++;
+            }
+            else
+            {
+                ends.set(lane, sim.getState(lane));
+            }
+        }
+
+        sim.setInputSource(this);
+        while(running > 0)
+        {
+            sim.step();
+            for(int lane = 0; lane < replays.size(); lane++)
+            {
+                StimulusReplay r = replays.get(lane);
+                if(r.hasCycle() && !r.advance())
+                {
+                    ends.set(lane, sim.getState(lane));
+                    running--;
+                }
+            }
+        }
+        return ends;
+    }
+}
@@ -0,0 +1,88 @@
+package machine;
+
+import java.util.*;
+import java.util.function.*;
+
+/*
+ * Inputs from a StimulusFile, one row per cycle. Inputs are matched to
+ * columns by name (with whitespace as '_' as a fallback, the way
+ * VCDWriter writes names); inputs without a column are low.
+ */
+public class StimulusReplay implements InputSource
+{
+    private StimulusFile file;
+    private Map<String,Integer> columns = new HashMap<>();
+    private Map<Signal,Integer> signalColumns = new HashMap<>(); // -1 for none
+    private long cycle = 0;
+
+    public StimulusReplay(StimulusFile f)
+    {
+        file = f;
+        List<String> names = f.getNames();
+        for(int i = 0; i < names.size(); i++)
+        {
+            columns.putIfAbsent(names.get(i), i);
+        }
+    }
+
+    public StimulusFile getFile() { return file; }
+    public long getCycle() { return cycle; }
+    public boolean hasCycle() { return cycle < file.getCycleCount(); }
+
+    public void seek(long cycle)
+    {
+        this.cycle = cycle;
+    }
+
+    // Move to the next cycle, false if there is none.
+    public boolean advance()
+    {
+        cycle++;
+        return hasCycle();
+    }
+
+    public Value getInputValue(Signal input)
+    {
+        int column = getColumn(input);
+        return new Value(column >= 0 && hasCycle() && file.get(cycle, column));
+    }
+
+    // Step the simulator through the rest of the file, from its current
+    // state, passing each cycle (state and values) to 'sink' if not null.
+    // Stops early if the simulator has no next state, and otherwise leaves
+    // it in the state after the last cycle. Returns the number of cycles
+    // simulated.
+    public long replay(Simulator sim, Consumer<SimulationState> sink)
+    {
+        long done = 0;
+        sim.setInputSource(this); // recomputes with this cycle's inputs
+        while(hasCycle() && sim.getNextState() != null)
+        {
+            if(sink != null)
+            {
+                sink.accept(new SimulationState(sim.getState(), sim.getEnvironment()));
+            }
+            done++;
+
+            State next = sim.getNextState();
+            advance();
+            sim.setState(next);
+        }
+        return done;
+    }
+
+    private int getColumn(Signal input)
+    {
+        Integer column = signalColumns.get(input);
+        if(column == null)
+        {
+            column = columns.get(input.getName());
+            if(column == null)
+            {
+                column = columns.getOrDefault(input.getName().replaceAll("\\s+", "_"), -1);
+            }
+            signalColumns.put(input, column);
+        }
+        return column;
+    }
+}
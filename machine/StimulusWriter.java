@@ -0,0 +1,181 @@
+package machine;
+
+import java.io.*;
+import java.util.*;
+
+// Writes StimulusFiles, row by row, or converted from a VCD.
+public class StimulusWriter implements Closeable
+{
+    private DataOutputStream out;
+    private int columns;
+    private byte[] row;
+
+    public StimulusWriter(File f, List<String> names) throws IOException
+    {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        columns = names.size();
+        row = new byte[StimulusFile.getRowBytes(columns)];
+
+        out.writeInt(StimulusFile.MAGIC);
+        out.writeInt(StimulusFile.VERSION);
+        out.writeInt(columns);
+        for(String name: names)
+        {
+            out.writeUTF(name);
+        }
+    }
+
+    public void writeRow(boolean[] values) throws IOException
+    {
+        if(values.length != columns)
+        {
+            throw new IllegalArgumentException("Expected " + columns + " values, got " + values.length);
+        }
+
+        Arrays.fill(row, (byte)0);
+        for(int i = 0; i < columns; i++)
+        {
+            if(values[i])
+            {
+                row[i / 8] |= 1 << (i % 8);
+            }
+        }
+        out.write(row);
+    }
+
+    public void close() throws IOException
+    {
+        out.close();
+    }
+
+    // Convert the 1-bit variables of a VCD to a stimulus file, one cycle
+    // per time unit from the first timestamp on (the way VCDWriter writes
+    // them). Unknown and high-impedance values become 0.
+    public static StimulusFile fromVCD(Reader vcd, File out) throws IOException
+    {
+        VCDScanner in = new VCDScanner(vcd);
+
+        // Definitions
+        List<String> names = new ArrayList<>();
+        Map<String,Integer> columnsById = new HashMap<>();
+        Set<String> seenNames = new HashSet<>();
+        String tok;
+        while(!"$enddefinitions".equals(tok = in.next()))
+        {
+            if(tok == null)
+            {
+                throw new IOException("VCD ends before $enddefinitions");
+            }
+            if(tok.equals("$var"))
+            {
+                List<String> var = in.untilEnd();
+                if(var.size() >= 4 && var.get(1).equals("1") && !columnsById.containsKey(var.get(2)) && seenNames.add(var.get(3)))
+                {
+                    columnsById.put(var.get(2), names.size());
+                    names.add(var.get(3));
+                }
+            }
+            else if(tok.startsWith("$") && !tok.equals("$end") && !tok.equals("$upscope"))
+            {
+                in.untilEnd();
+            }
+        }
+        in.untilEnd();
+
+        // Value changes
+        boolean[] values = new boolean[names.size()];
+        long time = -1;
+        boolean pending = false; // changes since the last row written
+        try(StimulusWriter w = new StimulusWriter(out, names))
+        {
+            while((tok = in.next()) != null)
+            {
+                char c = tok.charAt(0);
+                if(c == '#')
+                {
+                    long t = Long.parseLong(tok.substring(1));
+                    if(time >= 0)
+                    {
+                        for(long i = time; i < t; i++)
+                        {
+                            w.writeRow(values);
+                        }
+                    }
+                    time = Math.max(time, t);
+                    pending = false;
+                }
+                else if(c == '0' || c == '1' || c == 'x' || c == 'X' || c == 'z' || c == 'Z')
+                {
+                    Integer column = columnsById.get(tok.substring(1));
+                    if(column != null)
+                    {
+                        values[column] = c == '1';
+                        pending = true;
+                    }
+                }
+                else if(c == 'b' || c == 'B' || c == 'r' || c == 'R')
+                {
+                    in.next(); // identifier of a vector or real
+                }
+                else if(c == '$')
+                {
+                    if(tok.equals("$comment"))
+                    {
+                        in.untilEnd();
+                    }
+                }
+            }
+            if(pending && time >= 0)
+            {
+                w.writeRow(values);
+            }
+        }
+
+        return new StimulusFile(out);
+    }
+
+    // Whitespace-separated VCD tokens.
+    private static class VCDScanner
+    {
+        private Reader in;
+
+        VCDScanner(Reader r)
+        {
+            in = r instanceof BufferedReader ? r : new BufferedReader(r);
+        }
+
+        // null at the end.
+        String next() throws IOException
+        {
+            int c = in.read();
+            while(c != -1 && Character.isWhitespace(c))
+            {
+                c = in.read();
+            }
+            if(c == -1)
+            {
+                return null;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            while(c != -1 && !Character.isWhitespace(c))
+            {
+                sb.append((char)c);
+                c = in.read();
+            }
+            return sb.toString();
+        }
+
+        // The tokens up to the next $end.
+        List<String> untilEnd() throws IOException
+        {
+            List<String> toks = new ArrayList<>();
+            String tok;
+            while((tok = next()) != null && !tok.equals("$end"))
+            {
+                toks.add(tok);
+            }
+            return toks;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package machine;
+import java.util.*;
+
+/*
+ * Indices kept up to date by a Machine:
+ * - its signals and states by name, and
+ * - for each signal and state, the code referring to it, as of that code's
+ *   last successful compilation (Code reports compiling and resetting).
+ *
+ * Names must only change through Machine.renameSignal/renameState.
+ * Several objects may share a name (a name conflict, see CheckNameConflicts),
+ * in which case lookups find the first one added.
+ */
+class SymbolTable
+{
+    private Map<String,List<Signal>> signalsByName = new HashMap<>();
+    private Map<String,List<State>> statesByName = new HashMap<>();
+
+    private Map<Signal,Set<Code<?>>> signalReferrers = new HashMap<>();
+    private Map<State,Set<Code<?>>> stateReferrers = new HashMap<>();
+    private Map<Code<?>,Set<Signal>> signalReferences = new HashMap<>();
+    private Map<Code<?>,Set<State>> stateReferences = new HashMap<>();
+
+    Signal findSignal(String name)
+    {
+        List<Signal> ss = signalsByName.get(name);
+        return ss == null ? null : ss.get(0);
+    }
+
+    State findState(String name)
+    {
+        List<State> sts = statesByName.get(name);
+        return sts == null ? null : sts.get(0);
+    }
+
+    Set<Code<?>> getReferrers(Signal s)
+    {
+        return new HashSet<>(signalReferrers.getOrDefault(s, Collections.emptySet()));
+    }
+
+    Set<Code<?>> getReferrers(State st)
+    {
+        return new HashSet<>(stateReferrers.getOrDefault(st, Collections.emptySet()));
+    }
+
+    // Names
+
+    void addSignal(Signal s) { addToList(signalsByName, s.getName(), s); }
+    void addState(State st) { addToList(statesByName, st.getName(), st); }
+    void removeSignal(Signal s) { removeFromList(signalsByName, s.getName(), s); }
+    void removeState(State st) { removeFromList(statesByName, st.getName(), st); }
+
+    void renameSignal(Signal s, String oldName, String newName)
+    {
+        removeFromList(signalsByName, oldName, s);
+        addToList(signalsByName, newName, s);
+    }
+
+    void renameState(State st, String oldName, String newName)
+    {
+        removeFromList(statesByName, oldName, st);
+        addToList(statesByName, newName, st);
+    }
+
+    // References
+
+    void setReferences(Code<?> code, Set<Signal> signals, Set<State> states)
+    {
+        clearReferences(code);
+        signalReferences.put(code, new HashSet<>(signals));
+        stateReferences.put(code, new HashSet<>(states));
+        for(Signal s: signals)
+        {
+            addToSet(signalReferrers, s, code);
+        }
+        for(State st: states)
+        {
+            addToSet(stateReferrers, st, code);
+        }
+    }
+
+    void clearReferences(Code<?> code)
+    {
+        Set<Signal> signals = signalReferences.remove(code);
+        if(signals != null)
+        {
+            for(Signal s: signals)
+            {
+                removeFromSet(signalReferrers, s, code);
+            }
+        }
+
+        Set<State> states = stateReferences.remove(code);
+        if(states != null)
+        {
+            for(State st: states)
+            {
+                removeFromSet(stateReferrers, st, code);
+            }
+        }
+    }
+
+    // Source rewriting
+
+    // Replace the atoms and strings in 'source' that are exactly 'oldName'
+    // by 'newName' (as an atom if possible). Returns null if 'source' doesn't
+    // tokenize.
+    static String rewriteName(String source, String oldName, String newName)
+    {
+        List<Token> tokens;
+        try
+        {
+            tokens = new Tokenizer(source).tokenize();
+        }
+        catch(ParseError e)
+        {
+            return null;
+        }
+
+        String replacement = isAtom(newName) ? newName : SExpPrinter.quote(newName);
+        StringBuilder sb = new StringBuilder();
+        int done = 0;
+        for(Token tok: tokens)
+        {
+            if((tok.kind == TokenKind.ATOM || tok.kind == TokenKind.STRING) && tok.getText().equals(oldName))
+            {
+                sb.append(source, done, tok.loc);
+                sb.append(replacement);
+                done = tok.end;
+            }
+        }
+        sb.append(source.substring(done));
+        return sb.toString();
+    }
+
+    static boolean isAtom(String s)
+    {
+        if(s.isEmpty() || !Tokenizer.isAtomStartChar(s.charAt(0)))
+        {
+            return false;
+        }
+        for(int i = 1; i < s.length(); i++)
+        {
+            if(!Tokenizer.isAtomChar(s.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <K,V> void addToList(Map<K,List<V>> map, K key, V value)
+    {
+        List<V> list = map.get(key);
+        if(list == null)
+        {
+            list = new ArrayList<>(1);
+            map.put(key, list);
+        }
+        list.add(value);
+    }
+
+    private static <K,V> void removeFromList(Map<K,List<V>> map, K key, V value)
+    {
+        List<V> list = map.get(key);
+        if(list != null)
+        {
+            list.remove(value);
+            if(list.isEmpty())
+            {
+                map.remove(key);
+            }
+        }
+    }
+
+    private static <K,V> void addToSet(Map<K,Set<V>> map, K key, V value)
+    {
+        Set<V> set = map.get(key);
+        if(set == null)
+        {
+            set = new HashSet<>();
+            map.put(key, set);
+        }
+        set.add(value);
+    }
+
+    private static <K,V> void removeFromSet(Map<K,Set<V>> map, K key, V value)
+    {
+        Set<V> set = map.get(key);
+        if(set != null)
+        {
+            set.remove(value);
+            if(set.isEmpty())
+            {
+                map.remove(key);
+            }
+        }
+    }
+}
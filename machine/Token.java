@@ -2,19 +2,41 @@ package machine;
 public class Token
 {
     public TokenKind kind;
-    public String s; // atoms, strings, comments
     public int i; // ints
 
-    public String source;
+    public CharSequence source;
     public int loc;
-    
-    public Token(String source, int loc, TokenKind k)
+    public int end; // just past the token in the source
+
+    private boolean escaped; // strings with escape sequences
+    private String text; // once made
+
+    public Token(CharSequence source, int loc, int end, TokenKind k)
     {
         this.source = source;
         this.loc = loc;
+        this.end = end;
         kind = k;
     }
 
+    // Atoms: the atom; strings: the unquoted, unescaped contents;
+    // comments: the text after "--" and leading whitespace.
+    public String getText()
+    {
+        if(text == null)
+        {
+            if(kind == TokenKind.STRING)
+            {
+                text = escaped ? Tokenizer.unescape(source, loc, end) : source.subSequence(loc + 1, end - 1).toString();
+            }
+            else
+            {
+                text = source.subSequence(loc, end).toString();
+            }
+        }
+        return text;
+    }
+
     public String toString()
     {
         String before = "<" + kind.toString() + "@" + loc;
@@ -23,7 +45,7 @@ public class Token
 
         if(kind == TokenKind.ATOM)
         {
-            middle = s;
+            middle = getText();
         }
         else if(kind == TokenKind.INT)
         {
@@ -31,7 +53,7 @@ public class Token
         }
         else if(kind == TokenKind.STRING)
         {
-            middle = SExpPrinter.quote(s);
+            middle = SExpPrinter.quote(getText());
         }
 
         if(middle != "")
@@ -42,52 +64,48 @@ public class Token
         return before + middle + after;
     }
 
-    public static Token open(String source, int loc)
+    public static Token open(CharSequence source, int loc)
     {
-        return new Token(source, loc, TokenKind.OPEN);
+        return new Token(source, loc, loc + 1, TokenKind.OPEN);
     }
 
-    public static Token close(String source, int loc)
+    public static Token close(CharSequence source, int loc)
     {
-        return new Token(source, loc, TokenKind.CLOSE);
+        return new Token(source, loc, loc + 1, TokenKind.CLOSE);
     }
 
-    public static Token begin(String source, int loc)
+    public static Token begin(CharSequence source, int loc)
     {
-        return new Token(source, loc, TokenKind.BEGIN);
+        return new Token(source, loc, loc + 1, TokenKind.BEGIN);
     }
 
-    public static Token end(String source, int loc)
+    public static Token end(CharSequence source, int loc)
     {
-        return new Token(source, loc, TokenKind.END);
+        return new Token(source, loc, loc + 1, TokenKind.END);
     }
 
-    public static Token atom(String source, int loc, String s)
+    public static Token atom(CharSequence source, int loc, int end)
     {
-        Token t = new Token(source, loc, TokenKind.ATOM);
-        t.s = s;
-        return t;
+        return new Token(source, loc, end, TokenKind.ATOM);
     }
     
-    public static Token integer(String source, int loc, int i)
+    public static Token integer(CharSequence source, int loc, int end, int i)
     {
-        Token t = new Token(source, loc, TokenKind.INT);
+        Token t = new Token(source, loc, end, TokenKind.INT);
         t.i = i;
         return t;
     }
 
-    public static Token string(String source, int loc, String s)
+    // From the opening quote to just past the closing one.
+    public static Token string(CharSequence source, int loc, int end, boolean escaped)
     {
-        Token t = new Token(source, loc, TokenKind.STRING);
-        t.s = s;
+        Token t = new Token(source, loc, end, TokenKind.STRING);
+        t.escaped = escaped;
         return t;
     }
 
-    public static Token comment(String source, int loc, String s)
+    public static Token comment(CharSequence source, int loc, int end)
     {
-        Token t = new Token(source, loc, TokenKind.COMMENT);
-        t.s = s;
-        return t;
+        return new Token(source, loc, end, TokenKind.COMMENT);
     }
 }
-
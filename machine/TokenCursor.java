@@ -0,0 +1,29 @@
+package machine;
+import java.util.*;
+
+// Reads a list of tokens front to back, without modifying it.
+public class TokenCursor
+{
+    private List<Token> tokens;
+    private int pos = 0;
+
+    public TokenCursor(List<Token> tokens)
+    {
+        this.tokens = tokens;
+    }
+
+    public boolean isEmpty() { return pos >= tokens.size(); }
+    public int getPosition() { return pos; }
+
+    public Token peek()
+    {
+        return tokens.get(pos);
+    }
+
+    public Token next()
+    {
+        Token t = tokens.get(pos);
+        pos++;
+        return t;
+    }
+}
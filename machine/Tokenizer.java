@@ -1,201 +1,200 @@
 package machine;
+import java.io.*;
 import java.util.*;
 
+// Tokens only record where they are in the source; their text is made
+// when asked for (see Token.getText), so tokenizing is linear in the
+// length of the source, however long its strings.
 public class Tokenizer
 {
     public static final char OPEN = '(';
     public static final char CLOSE = ')';
     public static final char BEGIN = '{';
     public static final char END = '}';
-    private String source;
+    public static final int READ_BUFFER = 8192;
+    private CharSequence source;
     private int i;
 
-    public Tokenizer(String s)
+    public Tokenizer(CharSequence s)
     {
         source = s;
     }
+
+    // Reads all of 'in' (but doesn't close it).
+    public Tokenizer(Reader in) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[READ_BUFFER];
+        int n;
+        while((n = in.read(buf)) != -1)
+        {
+            sb.append(buf, 0, n);
+        }
+        source = sb;
+    }
     
     public List<Token> tokenize()
     {
         List<Token> tokens = new ArrayList<>();
-
-        String soFar = "";
-        boolean inAtom = false;
-        boolean inString = false;
-        boolean inInt = false;
-        boolean inComment = false;
-        int start = -1; // appease java
+        int length = source.length();
         
-        for(i = 0; i < source.length(); i++)
+        for(i = 0; i < length; i++)
         {
             char c = source.charAt(i);
+            int start = i;
 
-            if(inAtom)
+            if(c == OPEN)
             {
-                if(Character.isWhitespace(c) || isSymbol(c))
-                {
-                    inAtom = false;
-                    tokens.add(Token.atom(source, start, soFar));
-                    i--;
-                    continue;
-                }
-                else if(isAtomChar(c))
-                {
-                    soFar += c;
-                }
-                else
-                {
-                    unexpectedChar("atom", c);
-                }
+                tokens.add(Token.open(source, i));
             }
-            else if(inInt)
+            else if(c == CLOSE)
             {
-                if(Character.isWhitespace(c) || isSymbol(c))
-                {
-                    inInt = false;
-                    tokens.add(Token.integer(source, start, Integer.parseInt(soFar)));
-                    i--;
-                    continue;
-                }
-                else if(Character.isDigit(c))
-                {
-                    soFar += c;
-                }
-                else
-                {
-                    unexpectedChar("integer", c);
-                }
+                tokens.add(Token.close(source, i));
             }
-            else if(inString)
+            else if(c == BEGIN)
             {
-                if(c == '"')
-                {
-                    inString = false;
-                    tokens.add(Token.string(source, start, soFar));
-                }
-                else if(c == '\\')
-                {
-                    if(i + 1 == source.length())
-                    {
-                        unexpectedEndOfString();
-                    }
-                    i++;
-                    c = source.charAt(i);
-
-                    // TODO HEX, UNICODE, OTHER ESCAPE SEQUENCES
-                    if(c == '\\')
-                    {
-                        soFar += "\\";
-                    }
-                    else if(c == '"')
-                    {
-                        soFar += "\"";
-                    }
-                    else if(c == 'n')
-                    {
-                        soFar += "\n";
-                    }
-                    else
-                    {
-                        unexpectedChar("escape sequence", c);
-                    }
-                }
-                else
-                {
-                    soFar += c;
-                }
+                tokens.add(Token.begin(source, i));
             }
-            else if(inComment)
+            else if(c == END)
             {
-                if(c == '\n')
-                {
-                    tokens.add(Token.comment(source, start, soFar));
-                    inComment = false;
-                }
-                else
+                tokens.add(Token.end(source, i));
+            }
+            else if(c == '"')
+            {
+                tokens.add(scanString());
+            }
+            else if(isAtomStartChar(c))
+            {
+                i = scanWord(i + 1, "atom");
+                tokens.add(Token.atom(source, start, i));
+                i--;
+            }
+            else if(c == '-' && i + 1 < length && source.charAt(i+1) == '-')
+            {
+                if(!scanComment(tokens))
                 {
-                    if(soFar.length() == 0)
-                    {
-                        if(!Character.isWhitespace(c))
-                        {
-                            start = i;
-                            soFar += c;
-                        }
-                    }
-                    else
-                    {
-                        soFar += c;
-                    }
+                    break; // comments need a newline
                 }
             }
+            else if(Character.isDigit(c) || c == '-')
+            {
+                i = scanWord(i + 1, "integer");
+                tokens.add(Token.integer(source, start, i, Integer.parseInt(source.subSequence(start, i).toString())));
+                i--;
+            }
+            else if(Character.isWhitespace(c))
+            {
+                // just keep swimming
+            }
             else
             {
-                if(c == OPEN)
-                {
-                    tokens.add(Token.open(source, i));
-                }
-                else if(c == CLOSE)
-                {
-                    tokens.add(Token.close(source, i));
-                }
-                else if(c == BEGIN)
-                {
-                    tokens.add(Token.begin(source, i));
-                }
-                else if(c == END)
-                {
-                    tokens.add(Token.end(source, i));
-                }
-                else if(c == '"')
-                {
-                    soFar = "";
-                    inString = true;
-                    start = i;
-                }
-                else if(isAtomStartChar(c))
-                {
-                    soFar = "" + c;
-                    inAtom = true;
-                    start = i;
-                }
-                else if(c == '-' && i + 1 < source.length() && source.charAt(i+1) == '-')
+                unexpectedChar("anywhere", c);
+            }
+        }
+
+        return tokens;
+    }
+
+    // The end of the atom or integer that continues at 'from'.
+    private int scanWord(int from, String type)
+    {
+        boolean atom = type.equals("atom");
+        for(i = from; i < source.length(); i++)
+        {
+            char c = source.charAt(i);
+            if(Character.isWhitespace(c) || isSymbol(c))
+            {
+                break;
+            }
+            else if(atom ? !isAtomChar(c) : !Character.isDigit(c))
+            {
+                unexpectedChar(type, c);
+            }
+        }
+        return i;
+    }
+
+    // The string starting at i; leaves i at its closing quote.
+    private Token scanString()
+    {
+        int start = i;
+        boolean escaped = false;
+        for(i = start + 1; i < source.length(); i++)
+        {
+            char c = source.charAt(i);
+            if(c == '"')
+            {
+                return Token.string(source, start, i + 1, escaped);
+            }
+            else if(c == '\\')
+            {
+                if(i + 1 == source.length())
                 {
-                    soFar = "";
-                    inComment = true;
-                    start = i + 2;
-                    i++;
+                    unexpectedEndOfString();
                 }
-                else if(Character.isDigit(c) || c == '-')
+                i++;
+                c = source.charAt(i);
+
+                // TODO HEX, UNICODE, OTHER ESCAPE SEQUENCES
+                if(c != '\\' && c != '"' && c != 'n')
                 {
-                    soFar = "" + c;
-                    inInt = true;
-                    start = i;
+                    unexpectedChar("escape sequence", c);
                 }
-                else if(Character.isWhitespace(c))
+                escaped = true;
+            }
+        }
+        unexpectedEndOfString();
+        return null;
+    }
+
+    // The comment starting at i (with "--"), without leading whitespace;
+    // leaves i at the newline ending it. False if there is no newline.
+    private boolean scanComment(List<Token> tokens)
+    {
+        int start = i + 2;
+        int textStart = -1;
+        for(i = start; i < source.length(); i++)
+        {
+            char c = source.charAt(i);
+            if(c == '\n')
+            {
+                if(textStart < 0)
                 {
-                    // just keep swimming
+                    tokens.add(Token.comment(source, start, start));
                 }
                 else
                 {
-                    unexpectedChar("anywhere", c);
+                    tokens.add(Token.comment(source, textStart, i));
                 }
+                return true;
+            }
+            else if(textStart < 0 && !Character.isWhitespace(c))
+            {
+                textStart = i;
             }
         }
+        return false;
+    }
 
-        if(inAtom)
-        {
-            tokens.add(Token.atom(source, start, soFar));
-        }
-        else if(inInt)
-        {
-            tokens.add(Token.integer(source, start, Integer.parseInt(soFar)));
-        }
-        else if(inString)
+    // Unescaped contents of the quoted string at source[start, end).
+    static String unescape(CharSequence source, int start, int end)
+    {
+        StringBuilder sb = new StringBuilder(end - start);
+        for(int j = start + 1; j < end - 1; j++)
         {
-            unexpectedEndOfString();
+            char c = source.charAt(j);
+            if(c == '\\')
+            {
+                j++;
+                c = source.charAt(j);
+                sb.append(c == 'n' ? '\n' : c);
+            }
+            else
+            {
+                sb.append(c);
+            }
         }
-
-        return tokens;
+        return sb.toString();
     }
 
     private void unexpectedChar(String type, char c)
@@ -0,0 +1,443 @@
+package machine;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/*
+ * The full trace of a simulation, cycle by cycle, compactly.
+ *
+ * Each cycle is a state id plus a packed row of signal bits (known and
+ * value for every signal, as captured at the first record after
+ * construction or clear()). Rows are kept in fixed-size chunks, and once
+ * the full chunks exceed the heap budget, the oldest ones are moved to a
+ * memory-mapped temporary file.
+ *
+ * Alongside, every signal has a run-length encoded column (always on the
+ * heap), which answers "when was X high" without looking at the rows.
+ */
+public class TraceStore
+{
+    public static final int CHUNK_CYCLES = 4096;
+    public static final long DEFAULT_HEAP_BYTES = 16L << 20;
+
+    public static final byte UNKNOWN = 0;
+    public static final byte LOW = 1;
+    public static final byte HIGH = 2;
+
+    private Machine machine;
+    private long heapBytes = DEFAULT_HEAP_BYTES;
+
+    private List<Signal> signals; // null until the first record
+    private Map<Signal,Integer> signalIndices;
+    private int words; // per row
+
+    private List<State> stateList = new ArrayList<>(); // by id
+    private Map<State,Integer> stateIds = new HashMap<>();
+
+    private List<Chunk> chunks = new ArrayList<>();
+    private int heapChunks = 0; // full chunks on the heap
+    private int size = 0;
+    private Column[] columns;
+
+    private RandomAccessFile spillFile;
+    private File spillPath;
+    private long spillEnd = 0;
+    private boolean spillFailed = false;
+
+    public TraceStore(Machine m)
+    {
+        machine = m;
+    }
+
+    public void clear()
+    {
+        closeSpill();
+        signals = null;
+        signalIndices = null;
+        stateList.clear();
+        stateIds.clear();
+        chunks.clear();
+        heapChunks = 0;
+        size = 0;
+        columns = null;
+    }
+
+    // Deletes the spill file, if any. The store is empty afterwards.
+    public void close()
+    {
+        clear();
+    }
+
+    // Bytes of full chunks to keep on the heap before spilling.
+    public void setHeapBytes(long heapBytes)
+    {
+        this.heapBytes = heapBytes;
+        spill();
+    }
+
+    public int size() { return size; }
+    public List<Signal> getSignals() { return signals == null ? new ArrayList<>() : new ArrayList<>(signals); }
+    public List<State> getStates() { return new ArrayList<>(stateList); } // by state id
+    public boolean isSpilled() { return spillFile != null; }
+
+    public void record(SimulationState sims)
+    {
+        if(signals == null)
+        {
+            startRecording();
+        }
+
+        int offset = size % CHUNK_CYCLES;
+        if(offset == 0)
+        {
+            chunks.add(new Chunk(words));
+        }
+        Chunk chunk = chunks.get(chunks.size() - 1);
+
+        chunk.stateIds[offset] = getStateId(sims.getState());
+        Historian.pack(sims.getEnvironment(), signals, chunk.bits, offset * words);
+        for(int index = 0; index < signals.size(); index++)
+        {
+            columns[index].append(size, read(chunk.bits, offset * words, index));
+        }
+        size++;
+
+        if(offset == CHUNK_CYCLES - 1)
+        {
+            heapChunks++;
+            spill();
+        }
+    }
+
+    // Forget the last cycle.
+    public void unrecord()
+    {
+        if(size == 0)
+        {
+            return;
+        }
+
+        size--;
+        if(size % CHUNK_CYCLES == CHUNK_CYCLES - 1)
+        {
+            // the last chunk is no longer full
+            Chunk last = chunks.get(chunks.size() - 1);
+            if(last.isOnHeap())
+            {
+                heapChunks--;
+            }
+            else
+            {
+                last.unspill(words);
+                spillEnd -= Chunk.getBytes(words);
+            }
+        }
+        if(size % CHUNK_CYCLES == 0)
+        {
+            chunks.remove(chunks.size() - 1);
+        }
+        for(Column c: columns)
+        {
+            c.truncate(size);
+        }
+    }
+
+    public State getState(int cycle)
+    {
+        checkCycle(cycle);
+        return stateList.get(chunks.get(cycle / CHUNK_CYCLES).getStateId(cycle % CHUNK_CYCLES));
+    }
+
+    // UNKNOWN, LOW or HIGH.
+    public byte getValue(int cycle, Signal s)
+    {
+        checkCycle(cycle);
+        Integer index = signalIndices == null ? null : signalIndices.get(s);
+        if(index == null)
+        {
+            return UNKNOWN;
+        }
+        return columns[index].get(cycle);
+    }
+
+    // The whole row of a cycle: 2 bits (known, value) per signal, in the
+    // order of getSignals().
+    public long[] getRow(int cycle)
+    {
+        checkCycle(cycle);
+        long[] row = new long[words];
+        chunks.get(cycle / CHUNK_CYCLES).getRow(cycle % CHUNK_CYCLES, row);
+        return row;
+    }
+
+    // The cycle ranges [start, end) in which the signal had the value
+    // (UNKNOWN, LOW or HIGH), in order, clipped to [from, to).
+    public List<int[]> getIntervals(Signal s, byte value, int from, int to)
+    {
+        List<int[]> out = new ArrayList<>();
+        Integer index = signalIndices == null ? null : signalIndices.get(s);
+        if(index == null)
+        {
+            if(value == UNKNOWN && from < Math.min(to, size))
+            {
+                out.add(new int[]{Math.max(from, 0), Math.min(to, size)});
+            }
+            return out;
+        }
+
+        Column c = columns[index];
+        for(int run = Math.max(c.findRun(Math.max(from, 0)), 0); run < c.runs && c.starts[run] < to; run++)
+        {
+            if(c.values[run] == value)
+            {
+                int end = run + 1 < c.runs ? c.starts[run + 1] : size;
+                out.add(new int[]{Math.max(c.starts[run], from), Math.min(end, to)});
+            }
+        }
+        return out;
+    }
+
+    public List<int[]> getIntervals(Signal s, byte value)
+    {
+        return getIntervals(s, value, 0, size);
+    }
+
+    // The first cycle after 'from' where the signal's value differs from
+    // that at 'from', or size() if none.
+    public int nextChange(Signal s, int from)
+    {
+        Integer index = signalIndices == null ? null : signalIndices.get(s);
+        if(index == null || from >= size)
+        {
+            return size;
+        }
+        Column c = columns[index];
+        int run = c.findRun(Math.max(from, 0));
+        return run + 1 < c.runs ? c.starts[run + 1] : size;
+    }
+
+    private void startRecording()
+    {
+        signals = machine.getSignals();
+        signalIndices = new HashMap<>();
+        columns = new Column[signals.size()];
+        for(int index = 0; index < signals.size(); index++)
+        {
+            signalIndices.put(signals.get(index), index);
+            columns[index] = new Column();
+        }
+        words = Historian.getWordsPerRow(signals.size());
+    }
+
+    private int getStateId(State st)
+    {
+        Integer id = stateIds.get(st);
+        if(id == null)
+        {
+            id = stateList.size();
+            stateList.add(st);
+            stateIds.put(st, id);
+        }
+        return id;
+    }
+
+    private void checkCycle(int cycle)
+    {
+        if(cycle < 0 || cycle >= size)
+        {
+            throw new IndexOutOfBoundsException("No cycle " + cycle + " (of " + size + ")");
+        }
+    }
+
+    private static byte read(long[] bits, int base, int index)
+    {
+        long w = bits[base + (index >> 5)] >>> (2 * (index & 31));
+        if((w & 1) == 0)
+        {
+            return UNKNOWN;
+        }
+        return (w & 2) != 0 ? HIGH : LOW;
+    }
+
+    // Move the oldest full chunks off the heap while over budget.
+    private void spill()
+    {
+        long chunkBytes = Chunk.getBytes(words);
+        int first = chunks.size() - (size % CHUNK_CYCLES == 0 ? 0 : 1) - heapChunks;
+        while(!spillFailed && heapChunks > 0 && heapChunks * chunkBytes > heapBytes)
+        {
+            try
+            {
+                chunks.get(first).spill(getSpillChannel(), spillEnd, words);
+                spillEnd += chunkBytes;
+                heapChunks--;
+                first++;
+            }
+            catch(IOException e)
+            {
+                // keep everything on the heap instead
+                e.printStackTrace();
+                spillFailed = true;
+            }
+        }
+    }
+
+    private FileChannel getSpillChannel() throws IOException
+    {
+        if(spillFile == null)
+        {
+            spillPath = File.createTempFile("stately-trace", ".bin");
+            spillPath.deleteOnExit();
+            spillFile = new RandomAccessFile(spillPath, "rw");
+            spillEnd = 0;
+        }
+        return spillFile.getChannel();
+    }
+
+    private void closeSpill()
+    {
+        if(spillFile != null)
+        {
+            try
+            {
+                spillFile.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+            spillPath.delete();
+            spillFile = null;
+            spillPath = null;
+        }
+        spillEnd = 0;
+        spillFailed = false;
+    }
+
+    // CHUNK_CYCLES rows, either on the heap or mapped from the spill file.
+    private static class Chunk
+    {
+        int[] stateIds;
+        long[] bits;
+        ByteBuffer mapped; // state ids, then bits
+        int words;
+
+        Chunk(int words)
+        {
+            this.words = words;
+            stateIds = new int[CHUNK_CYCLES];
+            bits = new long[CHUNK_CYCLES * words];
+        }
+
+        static long getBytes(int words)
+        {
+            return CHUNK_CYCLES * (4L + 8L * words);
+        }
+
+        boolean isOnHeap() { return mapped == null; }
+
+        int getStateId(int offset)
+        {
+            return mapped == null ? stateIds[offset] : mapped.getInt(4 * offset);
+        }
+
+        void getRow(int offset, long[] row)
+        {
+            if(mapped == null)
+            {
+                System.arraycopy(bits, offset * words, row, 0, words);
+                return;
+            }
+            int base = 4 * CHUNK_CYCLES + 8 * offset * words;
+            for(int w = 0; w < words; w++)
+            {
+                row[w] = mapped.getLong(base + 8 * w);
+            }
+        }
+
+        void spill(FileChannel channel, long position, int words) throws IOException
+        {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, position, getBytes(words));
+            buf.asIntBuffer().put(stateIds);
+            buf.position(4 * CHUNK_CYCLES);
+            buf.slice().asLongBuffer().put(bits);
+            buf.position(0);
+            mapped = buf;
+            stateIds = null;
+            bits = null;
+        }
+
+        void unspill(int words)
+        {
+            stateIds = new int[CHUNK_CYCLES];
+            bits = new long[CHUNK_CYCLES * words];
+            mapped.asIntBuffer().get(stateIds);
+            mapped.position(4 * CHUNK_CYCLES);
+            mapped.slice().asLongBuffer().get(bits);
+            mapped = null;
+        }
+    }
+
+    // Run-length encoded values of one signal: run i has values[i] from
+    // cycle starts[i] up to the next run's start.
+    private static class Column
+    {
+        int[] starts = new int[4];
+        byte[] values = new byte[4];
+        int runs = 0;
+
+        void append(int cycle, byte value)
+        {
+            if(runs > 0 && values[runs - 1] == value)
+            {
+                return;
+            }
+            if(runs == starts.length)
+            {
+                starts = Arrays.copyOf(starts, 2 * runs);
+                values = Arrays.copyOf(values, 2 * runs);
+            }
+            starts[runs] = cycle;
+            values[runs] = value;
+            runs++;
+        }
+
+        // Keep only the first 'size' cycles.
+        void truncate(int size)
+        {
+            while(runs > 0 && starts[runs - 1] >= size)
+            {
+                runs--;
+            }
+        }
+
+        byte get(int cycle)
+        {
+            return values[findRun(cycle)];
+        }
+
+        // The run containing the cycle, -1 if before all runs.
+        int findRun(int cycle)
+        {
+            int lo = 0;
+            int hi = runs - 1;
+            int found = -1;
+            while(lo <= hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if(starts[mid] <= cycle)
+                {
+                    found = mid;
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+}
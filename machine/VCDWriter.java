@@ -0,0 +1,202 @@
+package machine;
+
+import java.io.*;
+import java.time.*;
+import java.util.*;
+
+/*
+ * Writes simulation cycles as a Value Change Dump, for waveform viewers
+ * such as GTKWave. Cycles are written as they are recorded, and only the
+ * signals that changed are, so memory use doesn't grow with the run.
+ *
+ * Cycle n is at time n. Each signal is a 1-bit wire (x when unknown), and
+ * the state is an integer: its index in the given state list (listed in a
+ * comment), or x.
+ *
+ * The output is only appended to: nothing already written is taken back,
+ * so a caller winding its history back can only note that with comment().
+ */
+public class VCDWriter implements Closeable
+{
+    public static final String STATE_VAR = "state";
+
+    private Writer out;
+    private List<Signal> signals;
+    private Map<State,Integer> stateIndices = new HashMap<>();
+    private String[] ids;
+    private String stateId;
+
+    private int words;
+    private long[] prevRow;
+    private long[] row;
+    private int prevState = -1;
+    private int cycle = 0;
+
+    public VCDWriter(Writer out, String name, List<Signal> signals, List<State> states) throws IOException
+    {
+        this.out = out instanceof BufferedWriter ? out : new BufferedWriter(out);
+        this.signals = new ArrayList<>(signals);
+        for(int i = 0; i < states.size(); i++)
+        {
+            stateIndices.put(states.get(i), i);
+        }
+
+        ids = new String[signals.size()];
+        for(int i = 0; i < ids.length; i++)
+        {
+            ids[i] = makeId(i);
+        }
+        stateId = makeId(ids.length);
+
+        words = Historian.getWordsPerRow(signals.size());
+        row = new long[words];
+
+        writeHeader(name, states);
+    }
+
+    // For a machine's signals and states as they are now.
+    public VCDWriter(Writer out, Machine m) throws IOException
+    {
+        this(out, m.getName(), m.getSignals(), m.getStates());
+    }
+
+    public int getCycle() { return cycle; }
+
+    public void record(SimulationState sims) throws IOException
+    {
+        Historian.pack(sims.getEnvironment(), signals, row, 0);
+        writeCycle(sims.getState());
+    }
+
+    // A cycle as a packed row (see Historian.pack).
+    public void record(State st, long[] packed) throws IOException
+    {
+        System.arraycopy(packed, 0, row, 0, words);
+        writeCycle(st);
+    }
+
+    // A $comment before the next cycle, e.g. to mark where the recording
+    // was rewound.
+    public void comment(String text) throws IOException
+    {
+        out.write("$comment " + text.replaceAll("\\$end", "") + " $end\n");
+    }
+
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    public void close() throws IOException
+    {
+        out.write("#" + cycle + "\n");
+        out.close();
+    }
+
+    // Everything in a trace, to 'out' (which is closed afterwards).
+    public static void writeTrace(TraceStore trace, String name, Writer out) throws IOException
+    {
+        VCDWriter w = new VCDWriter(out, name, trace.getSignals(), trace.getStates());
+        for(int c = 0; c < trace.size(); c++)
+        {
+            w.record(trace.getState(c), trace.getRow(c));
+        }
+        w.close();
+    }
+
+    private void writeHeader(String name, List<State> states) throws IOException
+    {
+        out.write("$date " + LocalDateTime.now() + " $end\n");
+        out.write("$version Stately $end\n");
+        out.write("$comment\n");
+        for(int i = 0; i < states.size(); i++)
+        {
+            out.write("  " + STATE_VAR + " " + i + " = " + states.get(i).getName() + "\n");
+        }
+        out.write("$end\n");
+        out.write("$timescale 1ns $end\n");
+        out.write("$scope module " + makeName(name) + " $end\n");
+        out.write("$var integer 32 " + stateId + " " + STATE_VAR + " $end\n");
+        for(int i = 0; i < signals.size(); i++)
+        {
+            out.write("$var wire 1 " + ids[i] + " " + makeName(signals.get(i).getName()) + " $end\n");
+        }
+        out.write("$upscope $end\n");
+        out.write("$enddefinitions $end\n");
+    }
+
+    private void writeCycle(State st) throws IOException
+    {
+        Integer index = st == null ? null : stateIndices.get(st);
+        int state = index == null ? -1 : index;
+
+        out.write("#" + cycle + "\n");
+        if(prevRow == null)
+        {
+            out.write("$dumpvars\n");
+            writeState(state);
+            for(int i = 0; i < signals.size(); i++)
+            {
+                writeSignal(i);
+            }
+            out.write("$end\n");
+            prevRow = new long[words];
+        }
+        else
+        {
+            if(state != prevState)
+            {
+                writeState(state);
+            }
+            for(int w = 0; w < words; w++)
+            {
+                long diff = row[w] ^ prevRow[w];
+                while(diff != 0)
+                {
+                    int bit = Long.numberOfTrailingZeros(diff);
+                    int i = 32 * w + bit / 2;
+                    writeSignal(i);
+                    diff &= ~(3L << (bit & ~1)); // both bits of the signal
+                }
+            }
+        }
+
+        System.arraycopy(row, 0, prevRow, 0, words);
+        prevState = state;
+        cycle++;
+    }
+
+    private void writeState(int state) throws IOException
+    {
+        out.write((state < 0 ? "bx" : "b" + Integer.toBinaryString(state)) + " " + stateId + "\n");
+    }
+
+    private void writeSignal(int i) throws IOException
+    {
+        long w = row[i >> 5] >>> (2 * (i & 31));
+        char c = (w & 1) == 0 ? 'x' : (w & 2) != 0 ? '1' : '0';
+        out.write(c);
+        out.write(ids[i]);
+        out.write('\n');
+    }
+
+    // Short identifier codes from the printable characters ! to ~.
+    private static String makeId(int n)
+    {
+        StringBuilder sb = new StringBuilder();
+        do
+        {
+            sb.append((char)('!' + n % 94));
+            n = n / 94 - 1;
+        }
+        while(n >= 0);
+        return sb.toString();
+    }
+
+    // VCD names can't contain whitespace.
+    private static String makeName(String s)
+    {
+        String name = s.replaceAll("\\s+", "_");
+        return name.isEmpty() ? "_" : name;
+    }
+}